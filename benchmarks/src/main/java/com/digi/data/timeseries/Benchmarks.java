@@ -0,0 +1,33 @@
+package com.digi.data.timeseries;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, always adding the
+ * gc profiler so the allocation rate (gc.alloc.rate.norm) is reported next to the
+ * throughput of every benchmark
+ */
+public class Benchmarks {
+    // xstream reflects into jdk internals, which newer jvms only allow when opened
+    private static final String[] OPENS = { "--add-opens", "java.base/java.util=ALL-UNNAMED", "--add-opens",
+            "java.base/java.lang.reflect=ALL-UNNAMED", "--add-opens", "java.base/java.text=ALL-UNNAMED",
+            "--add-opens", "java.desktop/java.awt.font=ALL-UNNAMED" };
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class);
+        if (!System.getProperty("java.specification.version").startsWith("1.")) {
+            builder.jvmArgsAppend(OPENS);
+        }
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
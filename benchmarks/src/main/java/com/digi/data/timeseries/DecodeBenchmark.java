@@ -0,0 +1,59 @@
+package com.digi.data.timeseries;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DataPoint.getValue() for each supported value type, the data is set again
+ * before every call so the value is decoded each time instead of cached
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({ "Integer", "Long", "Float", "Double", "Short", "Byte", "Boolean", "String" })
+    public String type;
+
+    private final DataPoint<Object> point = new DataPoint<Object>();
+    private String data;
+
+    @Setup
+    public void setUp() throws ClassNotFoundException {
+        point.setValueClass(Class.forName("java.lang." + type));
+        if (type.equals("Boolean")) {
+            data = "true";
+        } else if (type.equals("Float") || type.equals("Double")) {
+            data = "21.53";
+        } else if (type.equals("String")) {
+            data = "on";
+        } else {
+            data = "42";
+        }
+    }
+
+    @Benchmark
+    public Object getValue() {
+        point.setData(data);
+        return point.getValue();
+    }
+
+    @Benchmark
+    public double getDoubleValue() {
+        point.setData(data);
+        return type.equals("Boolean") || type.equals("String") ? 0 : point.getDoubleValue();
+    }
+}
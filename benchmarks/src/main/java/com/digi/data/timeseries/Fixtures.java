@@ -0,0 +1,117 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Recorded /ws responses used by the benchmarks and a local http server that
+ * replays them, so the benchmarks measure the client and not the network.
+ */
+final class Fixtures {
+    /**
+     * a full page of 1000 float data points from /ws/DataPoint
+     */
+    static final byte[] DATA_POINTS = load("/datapoints.xml");
+
+    /**
+     * 200 streams with their current values from /ws/DataStream
+     */
+    static final byte[] DATA_STREAMS = load("/datastreams.xml");
+
+    private Fixtures() {
+    }
+
+    private static byte[] load(String resource) {
+        InputStream in = Fixtures.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalStateException("Missing fixture " + resource);
+        }
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read fixture " + resource, e);
+        }
+    }
+
+    /**
+     * Serves the data point page for every /ws/DataPoint request, continued with a
+     * pageCursor until the given number of pages were returned and then an empty
+     * page, and the stream list for /ws/DataStream
+     */
+    static final class Server {
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final byte[][] pages;
+
+        Server(int pages) throws IOException {
+            String page = new String(DATA_POINTS, "UTF-8");
+            int end = page.lastIndexOf("</result>");
+            this.pages = new byte[pages + 1][];
+            for (int i = 0; i < pages; i++) {
+                String body = page.substring(0, end) + "<pageCursor>" + (i + 1) + "</pageCursor>"
+                        + page.substring(end);
+                this.pages[i] = body.getBytes("UTF-8");
+            }
+            // a full page is always followed by another request, the server answers the last with an empty page
+            this.pages[pages] = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<result resultSize=\"0\" requestedSize=\"1000\" remainingSize=\"0\" resultTotal=\"0\"></result>")
+                    .getBytes("UTF-8");
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.setExecutor(executor);
+            server.createContext("/ws/DataPoint/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    String query = exchange.getRequestURI().getRawQuery();
+                    int cursor = query.indexOf("pageCursor=");
+                    int page = cursor < 0 ? 0 : Integer.parseInt(query.substring(cursor + "pageCursor=".length())
+                            .split("&")[0]);
+                    send(exchange, Server.this.pages[page]);
+                }
+            });
+            server.createContext("/ws/DataStream", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    send(exchange, DATA_STREAMS);
+                }
+            });
+            server.start();
+        }
+
+        DataStreamService service() {
+            DataStreamService service = DataStreamService.getServiceForHost("localhost", "user", "password");
+            service.setSecureScheme(false);
+            service.setPort(server.getAddress().getPort());
+            return service;
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        private static void send(HttpExchange exchange, byte[] body) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+}
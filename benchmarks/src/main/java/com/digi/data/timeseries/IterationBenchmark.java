@@ -0,0 +1,79 @@
+package com.digi.data.timeseries;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end iteration of a stream served by a local http server replaying the
+ * recorded page, through StreamSnapshot with and without prefetch and through
+ * ColumnarSnapshot, and bulk loading stream metadata
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IterationBenchmark {
+    @Param({ "10" })
+    public int pages;
+
+    @Param({ "0", "2" })
+    public int prefetch;
+
+    private Fixtures.Server server;
+    private DataStream<Float> stream;
+    private DataStreamService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new Fixtures.Server(pages);
+        service = server.service();
+        stream = service.getStream("00000000-00000000-00409DFF-FF000001/temperature", Float.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public double snapshot() {
+        double total = 0;
+        for (DataPoint<Float> point : stream.get(0, Long.MAX_VALUE).prefetch(prefetch)) {
+            total += point.getValue();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double columns() throws DataServiceException {
+        double total = 0;
+        ColumnarSnapshot columns = stream.getColumns(0, Long.MAX_VALUE);
+        DataPointBatch batch = new DataPointBatch();
+        while (columns.next(batch)) {
+            for (int i = 0; i < batch.size(); i++) {
+                total += batch.getValue(i);
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int loadStreams() throws DataServiceException {
+        return service.loadStreams("");
+    }
+}
@@ -0,0 +1,72 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a recorded page of 1000 data points with the handlers the library
+ * uses, into DataPoints by StreamSnapshot.PointCollector and into a
+ * DataPointBatch by ColumnarSnapshot.BatchCollector, and a page of stream
+ * metadata by the StreamCollector of DataStreamService
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PageParseBenchmark {
+    private final DataPointBatch batch = new DataPointBatch();
+    private final ValueDecoder<Float> decoder = ValueDecoder.forClass(Float.class);
+    private DataStreamService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = DataStreamService.getServiceForHost("localhost", "benchmark", "password");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+    }
+
+    @Benchmark
+    public List<DataPoint<Float>> dataPoints() throws Exception {
+        List<DataPoint<Float>> points = new ArrayList<DataPoint<Float>>(1000);
+        PageParser.parse(new ByteArrayInputStream(Fixtures.DATA_POINTS), "DataPoint",
+                new StreamSnapshot.PointCollector<Float>(points, Float.class));
+        return points;
+    }
+
+    @Benchmark
+    public DataPointBatch columns() throws Exception {
+        batch.clear();
+        PageParser.parse(new ByteArrayInputStream(Fixtures.DATA_POINTS), "DataPoint",
+                new ColumnarSnapshot.BatchCollector(batch, decoder));
+        return batch;
+    }
+
+    @Benchmark
+    public List<Map<String, String>> streams() throws Exception {
+        List<Map<String, String>> streams = new ArrayList<Map<String, String>>();
+        PageParser.parse(new ByteArrayInputStream(Fixtures.DATA_STREAMS), "DataStream",
+                service.new StreamCollector(streams, null));
+        return streams;
+    }
+}
@@ -0,0 +1,269 @@
+package com.digi.data.timeseries;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * The data points of a query read with the non blocking http client of the
+ * service, so no thread waits on the network while a page is in flight. Pages
+ * are parsed and handed to the caller on the executor of the service.
+ *
+ * Every call to toList() or subscribe() runs the query again. As a Publisher the
+ * next page is only requested once the subscriber has asked for more data points
+ * than are buffered.
+ *
+ * <pre>
+ * stream.getAsync(start, end).toList().thenAccept(new Consumer&lt;List&lt;DataPoint&lt;Float>>>() {
+ *     public void accept(List&lt;DataPoint&lt;Float>> points) {
+ *         ...
+ *     }
+ * });
+ * </pre>
+ *
+ * On java 9 and newer the publisher can be adapted with
+ * org.reactivestreams.FlowAdapters.toFlowPublisher(snapshot).
+ */
+public class AsyncSnapshot<DataType> implements Publisher<DataPoint<DataType>> {
+    private final StreamSnapshot<DataType> query;
+    private final DataStreamService service;
+
+    AsyncSnapshot(StreamSnapshot<DataType> query) {
+        this.query = query;
+        this.service = query.getStream().getService();
+    }
+
+    /**
+     * All data points of the query, completed once the last page was read or
+     * exceptionally with the reason a page could not be
+     */
+    public CompletableFuture<List<DataPoint<DataType>>> toList() {
+        CompletableFuture<List<DataPoint<DataType>>> result = new CompletableFuture<List<DataPoint<DataType>>>();
+        collect(null, new ArrayList<DataPoint<DataType>>(), result);
+        return result;
+    }
+
+    private void collect(String cursor, final List<DataPoint<DataType>> points,
+            final CompletableFuture<List<DataPoint<DataType>>> result) {
+        readPage(cursor, new StreamSnapshot.PointCollector<DataType>(points, query.getStream().getValueClass()),
+                new FutureCallback<PageParser.Page>() {
+                    public void completed(PageParser.Page page) {
+                        if (StreamSnapshot.more(page) && !result.isDone()) {
+                            collect(page.cursor, points, result);
+                        } else {
+                            result.complete(points);
+                        }
+                    }
+
+                    public void failed(Exception e) {
+                        result.completeExceptionally(e);
+                    }
+
+                    public void cancelled() {
+                        result.cancel(false);
+                    }
+                });
+    }
+
+    /**
+     * Stream the data points of the query to the subscriber as it requests them
+     */
+    public void subscribe(Subscriber<? super DataPoint<DataType>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        PointSubscription subscription = new PointSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /*
+     * request the page starting at cursor without blocking, the response is parsed into
+     * the handler on the executor of the service before the callback is completed
+     */
+    private Future<HttpResponse> readPage(String cursor, final PageParser.Handler handler,
+            final FutureCallback<PageParser.Page> callback) {
+        HttpGet request;
+        HttpAsyncClient client;
+        final int requested = query.pageSize();
+        final long begin = System.nanoTime();
+        try {
+            request = query.request(cursor);
+            client = service.getAsyncClient();
+        } catch (URISyntaxException e) {
+            callback.failed(new DataServiceException("Invalid URI created: " + e.getMessage(), e));
+            return null;
+        } catch (IOException e) {
+            callback.failed(new DataServiceException("IOException: " + e.getMessage(), e));
+            return null;
+        }
+        return client.execute(request, new FutureCallback<HttpResponse>() {
+            public void completed(final HttpResponse rsp) {
+                final long responded = System.nanoTime();
+                final Metrics metrics = service.getMetrics();
+                metrics.request(Metrics.DATA_POINT, query.getStream().getStreamName(),
+                        rsp.getStatusLine().getStatusCode(), responded - begin);
+                try {
+                    // keep the parsing and the callers work off of the io threads
+                    service.getExecutor().execute(new Runnable() {
+                        public void run() {
+                            PageParser.Page page;
+                            long parsing = System.nanoTime();
+                            try {
+                                page = StreamSnapshot.parse(rsp, handler, metrics,
+                                        query.getStream().getStreamName());
+                                query.paged(requested, page, responded - begin, System.nanoTime() - parsing);
+                            } catch (Exception e) {
+                                callback.failed(new DataServiceException("Failed reading page: "
+                                        + e.getMessage(), e));
+                                return;
+                            }
+                            callback.completed(page);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    callback.failed(e);
+                }
+            }
+
+            public void failed(Exception e) {
+                service.getMetrics().request(Metrics.DATA_POINT, query.getStream().getStreamName(), -1,
+                        System.nanoTime() - begin);
+                callback.failed(new DataServiceException("IOException: " + e.getMessage(), e));
+            }
+
+            public void cancelled() {
+                callback.cancelled();
+            }
+        });
+    }
+
+    /*
+     * Hands the points of one pass to a subscriber. Signals are serialized with a work in
+     * progress counter instead of a lock, whichever thread requests more or completes a
+     * page drains what it can and the others only note there is more work.
+     */
+    private final class PointSubscription implements Subscription {
+        private final Subscriber<? super DataPoint<DataType>> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        // only touched while draining
+        private List<DataPoint<DataType>> current = null;
+        private int index = 0;
+        private boolean fetching = false;
+        private boolean terminated = false;
+        // handed over by the page callback, the cursor is published by arrived
+        private String cursor = null;
+        private volatile List<DataPoint<DataType>> arrived = null;
+        private volatile boolean last = false;
+        private volatile Throwable error = null;
+        private volatile boolean cancelled = false;
+        private volatile Future<HttpResponse> inflight = null;
+
+        PointSubscription(Subscriber<? super DataPoint<DataType>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested " + n + " data points, must be positive");
+            } else {
+                long r;
+                do {
+                    r = requested.get();
+                } while (!requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            }
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            Future<HttpResponse> f = inflight;
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                long r = requested.get();
+                long emitted = 0;
+                while (!cancelled && !terminated) {
+                    if (error != null) {
+                        terminated = true;
+                        subscriber.onError(error);
+                    } else if (current != null && index < current.size()) {
+                        if (emitted == r) {
+                            break;
+                        }
+                        subscriber.onNext(current.get(index++));
+                        emitted++;
+                    } else if (arrived != null) {
+                        current = arrived;
+                        index = 0;
+                        arrived = null;
+                        fetching = false;
+                    } else if (fetching) {
+                        break;
+                    } else if (last) {
+                        terminated = true;
+                        subscriber.onComplete();
+                    } else {
+                        // only read the next page once the subscriber wants more than is buffered
+                        if (emitted < r) {
+                            fetch();
+                        }
+                        break;
+                    }
+                }
+                if (emitted > 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void fetch() {
+            fetching = true;
+            final List<DataPoint<DataType>> points = new ArrayList<DataPoint<DataType>>(StreamSnapshot.PAGE_SIZE);
+            inflight = readPage(cursor, new StreamSnapshot.PointCollector<DataType>(points,
+                    query.getStream().getValueClass()), new FutureCallback<PageParser.Page>() {
+                public void completed(PageParser.Page page) {
+                    cursor = page.cursor;
+                    last = !StreamSnapshot.more(page);
+                    arrived = points;
+                    drain();
+                }
+
+                public void failed(Exception e) {
+                    error = e;
+                    drain();
+                }
+
+                public void cancelled() {
+                    cancelled = true;
+                }
+            });
+            if (cancelled) {
+                cancel();
+            }
+        }
+    }
+}
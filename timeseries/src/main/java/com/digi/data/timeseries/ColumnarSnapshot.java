@@ -0,0 +1,114 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the data points of a numeric stream a page at a time into a
+ * DataPointBatch. The timestamp and data of each DataPoint element are parsed
+ * straight into the batches arrays, no DataPoint objects are created.
+ *
+ * <pre>
+ * ColumnarSnapshot columns = stream.getColumns(start, end);
+ * DataPointBatch batch = new DataPointBatch();
+ * while (columns.next(batch)) {
+ *     for (int i = 0; i &lt; batch.size(); i++) {
+ *         total += batch.getValue(i);
+ *     }
+ * }
+ * </pre>
+ */
+public class ColumnarSnapshot implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ColumnarSnapshot.class);
+
+    private final StreamSnapshot<?> snapshot;
+    private final ValueDecoder<?> decoder;
+    private boolean more = true;
+
+    ColumnarSnapshot(StreamSnapshot<?> snapshot) {
+        this.snapshot = snapshot;
+        Class<?> valueClass = snapshot.getStream().getValueClass();
+        if (valueClass == null) {
+            valueClass = Double.class;
+        }
+        this.decoder = ValueDecoder.forClass(valueClass);
+    }
+
+    /**
+     * Clears the batch and fills it with the next page of data points
+     *
+     * @param batch
+     * @return false once there are no more data points
+     * @throws DataServiceException
+     *             if the page could not be fetched or parsed
+     * @throws ClassCastException
+     *             if a value is not numeric
+     */
+    public synchronized boolean next(final DataPointBatch batch) throws DataServiceException {
+        batch.clear();
+        while (batch.size() == 0 && more) {
+            try {
+                // the batch only holds this page, a failed attempt is cleared before retrying
+                more = snapshot.readPage(new BatchCollector(batch, decoder), new Runnable() {
+                    public void run() {
+                        batch.clear();
+                    }
+                });
+            } catch (ClassCastException e) {
+                throw e;
+            } catch (Exception e) {
+                more = false;
+                log.error(e.getMessage(), e);
+                throw new DataServiceException("Failed reading page: " + e.getMessage(), e);
+            }
+        }
+        return batch.size() > 0;
+    }
+
+    /**
+     * aborts an in flight request
+     */
+    public void close() {
+        snapshot.close();
+    }
+
+    /*
+     * parses the timestamp and data of each DataPoint element into the batch
+     */
+    static class BatchCollector implements PageParser.Handler {
+        private final DataPointBatch batch;
+        private final ValueDecoder<?> decoder;
+        private long timestamp;
+        private double value;
+
+        BatchCollector(DataPointBatch batch, ValueDecoder<?> decoder) {
+            this.batch = batch;
+            this.decoder = decoder;
+        }
+
+        public void startRecord() {
+            timestamp = 0;
+            value = Double.NaN;
+        }
+
+        public void field(String name, String value) {
+            if (name.equals("timestamp")) {
+                timestamp = value.length() == 0 ? 0 : Long.parseLong(value);
+            } else if (name.equals("data")) {
+                try {
+                    this.value = decoder.decodeDouble(value);
+                } catch (RuntimeException e) {
+                    ClassCastException cce = new ClassCastException("Cannot convert data '" + value + "' to double");
+                    cce.initCause(e);
+                    throw cce;
+                }
+            }
+        }
+
+        public void endRecord() {
+            batch.add(timestamp, value);
+        }
+    }
+}
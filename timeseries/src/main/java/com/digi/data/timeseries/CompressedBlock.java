@@ -0,0 +1,317 @@
+package com.digi.data.timeseries;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Numeric data points of one time partition compressed like Gorilla does, in
+ * a direct buffer off the heap. The first timestamp and value are stored in
+ * full, after that each timestamp as the difference of its delta to the
+ * previous delta and each value as the XOR with the previous value:
+ *
+ * <pre>
+ * delta of delta   0                  '0'
+ *                  [-64, 63]          '10'    + 7 bits
+ *                  [-256, 255]        '110'   + 9 bits
+ *                  [-2048, 2047]      '1110'  + 12 bits
+ *                  32 bit             '11110' + 32 bits
+ *                  otherwise          '11111' + 64 bits
+ * value xor        0                  '0'
+ *                  within the previous leading and trailing zeros
+ *                                     '10' + the meaningful bits
+ *                  otherwise          '11' + 5 bits leading zeros + 6 bits length + the meaningful bits
+ * </pre>
+ *
+ * Regular timestamps take a bit and repeated values a bit. Points are appended
+ * in timestamp order, the count, sum, min, max, mean and squared deviation of
+ * the block are kept as they are so rollups can use a block without decoding
+ * it. Appending is not thread safe, a reader works on a view() taken while no
+ * append runs and is unaffected by later appends.
+ */
+final class CompressedBlock {
+    private static final int INITIAL_BYTES = 64;
+
+    final long start;
+    private ByteBuffer buffer;
+    /* bits written, the word being filled is kept in word and also stored in the buffer */
+    private long bits = 0;
+    private long word = 0;
+    private int count = 0;
+    private long first;
+    private long last;
+    private long delta;
+    private long previous;
+    private int leading = Integer.MAX_VALUE;
+    private int trailing = 0;
+    private double sum = 0;
+    private double min = 0;
+    private double max = 0;
+    private double mean = 0;
+    private double squares = 0;
+
+    CompressedBlock(long start) {
+        this.start = start;
+        this.buffer = ByteBuffer.allocateDirect(INITIAL_BYTES);
+    }
+
+    /*
+     * appends a data point, the timestamp may not be before the last one
+     */
+    void append(long timestamp, double value) {
+        long v = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            first = timestamp;
+            write(timestamp, 64);
+            write(v, 64);
+            min = value;
+            max = value;
+        } else {
+            long d = timestamp - last;
+            long dod = d - delta;
+            delta = d;
+            if (dod == 0) {
+                write(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                write(0x2, 2);
+                write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                write(0x6, 3);
+                write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                write(0xe, 4);
+                write(dod, 12);
+            } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+                write(0x1e, 5);
+                write(dod, 32);
+            } else {
+                write(0x1f, 5);
+                write(dod, 64);
+            }
+            long xor = v ^ previous;
+            if (xor == 0) {
+                write(0, 1);
+            } else {
+                int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+                int trail = Long.numberOfTrailingZeros(xor);
+                if (lead >= leading && trail >= trailing) {
+                    write(0x2, 2);
+                    write(xor >>> trailing, 64 - leading - trailing);
+                } else {
+                    int length = 64 - lead - trail;
+                    write(0x3, 2);
+                    write(lead, 5);
+                    // a length of 64 is stored as 0
+                    write(length, 6);
+                    write(xor >>> trail, length);
+                    leading = lead;
+                    trailing = trail;
+                }
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        last = timestamp;
+        previous = v;
+        count++;
+        sum += value;
+        double dm = value - mean;
+        mean += dm / count;
+        squares += dm * (value - mean);
+    }
+
+    /*
+     * the lowest n bits of value
+     */
+    private void write(long value, int n) {
+        while (n > 0) {
+            int used = (int) (bits & 63);
+            int take = Math.min(n, 64 - used);
+            word |= ((value >>> (n - take)) & mask(take)) << (64 - used - take);
+            bits += take;
+            n -= take;
+            if ((bits & 63) == 0) {
+                store((int) (bits >>> 6) - 1);
+                word = 0;
+            }
+        }
+        if ((bits & 63) != 0) {
+            store((int) (bits >>> 6));
+        }
+    }
+
+    private static long mask(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+    /*
+     * stores the word at an index, growing the buffer when it is full
+     */
+    private void store(int index) {
+        int at = index * 8;
+        if (at + 8 > buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(at + 8, buffer.capacity() * 2));
+            ByteBuffer old = buffer.duplicate();
+            old.clear();
+            grown.put(old);
+            buffer = grown;
+        }
+        buffer.putLong(at, word);
+    }
+
+    /*
+     * releases the unused end of the buffer, once no more points are expected
+     */
+    void trim() {
+        int used = (int) ((bits + 63) >>> 6) * 8;
+        if (used < buffer.capacity()) {
+            ByteBuffer trimmed = ByteBuffer.allocateDirect(Math.max(8, used));
+            ByteBuffer old = buffer.duplicate();
+            old.clear();
+            old.limit(used);
+            trimmed.put(old);
+            buffer = trimmed;
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    /*
+     * timestamp of the first data point
+     */
+    long first() {
+        return first;
+    }
+
+    /*
+     * timestamp of the last data point
+     */
+    long last() {
+        return last;
+    }
+
+    /*
+     * bytes held off the heap
+     */
+    int bytes() {
+        return buffer.capacity();
+    }
+
+    double sum() {
+        return sum;
+    }
+
+    double min() {
+        return min;
+    }
+
+    double max() {
+        return max;
+    }
+
+    double mean() {
+        return mean;
+    }
+
+    double squares() {
+        return squares;
+    }
+
+    /*
+     * a decoder of the points appended so far
+     */
+    Decoder view() {
+        return new Decoder(buffer, count);
+    }
+
+    /*
+     * decodes the points of a block in order
+     */
+    static final class Decoder {
+        private final ByteBuffer buffer;
+        private final int count;
+        private int read = 0;
+        private long position = 0;
+        private long timestamp;
+        private long delta = 0;
+        private long value;
+        private int leading;
+        private int trailing;
+
+        Decoder(ByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        boolean next() {
+            if (read >= count) {
+                return false;
+            }
+            if (read == 0) {
+                timestamp = read(64);
+                value = read(64);
+            } else {
+                long dod;
+                if (read(1) == 0) {
+                    dod = 0;
+                } else if (read(1) == 0) {
+                    dod = signed(read(7), 7);
+                } else if (read(1) == 0) {
+                    dod = signed(read(9), 9);
+                } else if (read(1) == 0) {
+                    dod = signed(read(12), 12);
+                } else if (read(1) == 0) {
+                    dod = signed(read(32), 32);
+                } else {
+                    dod = read(64);
+                }
+                delta += dod;
+                timestamp += delta;
+                if (read(1) != 0) {
+                    if (read(1) != 0) {
+                        leading = (int) read(5);
+                        int length = (int) read(6);
+                        if (length == 0) {
+                            length = 64;
+                        }
+                        trailing = 64 - leading - length;
+                    }
+                    value ^= read(64 - leading - trailing) << trailing;
+                }
+            }
+            read++;
+            return true;
+        }
+
+        long timestamp() {
+            return timestamp;
+        }
+
+        double value() {
+            return Double.longBitsToDouble(value);
+        }
+
+        /*
+         * the next n bits as the lowest of a long
+         */
+        private long read(int n) {
+            int index = (int) (position >>> 6);
+            int offset = (int) (position & 63);
+            position += n;
+            long w = buffer.getLong(index * 8);
+            if (offset + n <= 64) {
+                return n == 64 ? w : (w << offset) >>> (64 - n);
+            }
+            int low = offset + n - 64;
+            long high = (w << offset) >>> (64 - n);
+            return high | (buffer.getLong(index * 8 + 8) >>> (64 - low));
+        }
+
+        /*
+         * sign extends the lowest n bits
+         */
+        private static long signed(long v, int n) {
+            return (v << (64 - n)) >> (64 - n);
+        }
+    }
+}
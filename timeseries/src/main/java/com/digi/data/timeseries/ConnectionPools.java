@@ -0,0 +1,410 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The blocking and non blocking http clients of one DataStreamService, each
+ * with its own connection pool built from the ConnectionSettings. The non
+ * blocking client is only started once it is used. Idle and expired
+ * connections of both pools are closed by a shared background task, which
+ * only holds the pools weakly so the pools of a service that was never closed
+ * can still be garbage collected.
+ *
+ * Unless turned off in the settings requests ask for a gzip or deflate
+ * compressed response, which parse() decompresses while it is parsed. The time
+ * requests wait for a pooled connection is passed to the Metrics of the
+ * service.
+ */
+final class ConnectionPools implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPools.class);
+
+    /**
+     * value of the Accept-Encoding header when compression is on
+     */
+    static final String ACCEPT_ENCODING = "gzip,deflate";
+
+    private static ScheduledExecutorService evictor;
+
+    private static synchronized ScheduledExecutorService evictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "datastream-evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return evictor;
+    }
+
+    private final ConnectionSettings settings;
+    private final DataStreamService service;
+    private final PoolingHttpClientConnectionManager pool;
+    private final CloseableHttpClient http;
+    private final ScheduledFuture<?> eviction;
+    private volatile PoolingNHttpClientConnectionManager asyncPool = null;
+    private CloseableHttpAsyncClient async = null;
+    private boolean closed = false;
+
+    ConnectionPools(ConnectionSettings settings, DataStreamService service) {
+        this.settings = settings;
+        this.service = service;
+        pool = new PoolingHttpClientConnectionManager() {
+            @Override
+            public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+                final ConnectionRequest request = super.requestConnection(route, state);
+                return new ConnectionRequest() {
+                    public HttpClientConnection get(long timeout, TimeUnit unit) throws InterruptedException,
+                            ExecutionException, ConnectionPoolTimeoutException {
+                        long begin = System.nanoTime();
+                        try {
+                            return request.get(timeout, unit);
+                        } finally {
+                            ConnectionPools.this.service.getMetrics().poolWait(System.nanoTime() - begin);
+                        }
+                    }
+
+                    public boolean cancel() {
+                        return request.cancel();
+                    }
+                };
+            }
+        };
+        pool.setMaxTotal(settings.getMaxTotal());
+        pool.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+        pool.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(millis(settings.getSocketTimeout())).build());
+        // responses are decompressed by parse() so the bytes received can be counted
+        http = HttpClients.custom()
+                .setConnectionManager(pool)
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .setConnectionReuseStrategy(reuseStrategy())
+                .disableContentCompression()
+                .build();
+        long idle = settings.getEvictIdle();
+        if (idle > 0) {
+            long period = Math.max(1000, idle / 2);
+            Eviction task = new Eviction(this);
+            eviction = evictor().scheduleWithFixedDelay(task, period, period, TimeUnit.MILLISECONDS);
+            task.scheduled = eviction;
+        } else {
+            eviction = null;
+        }
+    }
+
+    /*
+     * evicts the connections of pools still in use and cancels itself once they were
+     * garbage collected
+     */
+    private static final class Eviction implements Runnable {
+        private final WeakReference<ConnectionPools> pools;
+        volatile ScheduledFuture<?> scheduled;
+
+        Eviction(ConnectionPools pools) {
+            this.pools = new WeakReference<ConnectionPools>(pools);
+        }
+
+        public void run() {
+            ConnectionPools p = pools.get();
+            if (p != null) {
+                p.evict();
+            } else if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    HttpClient http() {
+        return http;
+    }
+
+    /*
+     * the non blocking client, started on first use with its io threads as daemons
+     */
+    synchronized HttpAsyncClient async() throws IOException {
+        if (closed) {
+            throw new IOException("Connection pools were closed");
+        }
+        if (async == null) {
+            ThreadFactory threads = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "datastream-io-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            IOReactorConfig reactor = IOReactorConfig.custom()
+                    .setConnectTimeout(millis(settings.getConnectTimeout()))
+                    .setSoTimeout(millis(settings.getSocketTimeout()))
+                    .build();
+            PoolingNHttpClientConnectionManager connections = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(reactor, threads)) {
+                @Override
+                public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state,
+                        long connectTimeout, long leaseTimeout, TimeUnit unit,
+                        final FutureCallback<NHttpClientConnection> callback) {
+                    final long begin = System.nanoTime();
+                    return super.requestConnection(route, state, connectTimeout, leaseTimeout, unit,
+                            new FutureCallback<NHttpClientConnection>() {
+                                public void completed(NHttpClientConnection connection) {
+                                    service.getMetrics().poolWait(System.nanoTime() - begin);
+                                    if (callback != null) {
+                                        callback.completed(connection);
+                                    }
+                                }
+
+                                public void failed(Exception e) {
+                                    if (callback != null) {
+                                        callback.failed(e);
+                                    }
+                                }
+
+                                public void cancelled() {
+                                    if (callback != null) {
+                                        callback.cancelled();
+                                    }
+                                }
+                            });
+                }
+            };
+            connections.setMaxTotal(settings.getMaxTotal());
+            connections.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+            async = HttpAsyncClients.custom()
+                    .setConnectionManager(connections)
+                    .setThreadFactory(threads)
+                    .setDefaultRequestConfig(requestConfig())
+                    .setKeepAliveStrategy(keepAliveStrategy())
+                    .setConnectionReuseStrategy(reuseStrategy())
+                    .build();
+            async.start();
+            asyncPool = connections;
+        }
+        return async;
+    }
+
+    /*
+     * Reads a page of records off of a response body, decompressing it as it is read,
+     * and passes what it took to the metrics of the service
+     */
+    static PageParser.Page parse(HttpEntity entity, String recordElement, PageParser.Handler handler,
+            Metrics metrics, String endpoint, String stream) throws IOException, XMLStreamException {
+        boolean measure = metrics != Metrics.NONE;
+        long allocated = measure ? ThreadAllocation.current() : -1;
+        long begin = System.nanoTime();
+        Counted raw = new Counted(entity.getContent());
+        InputStream in = decode(entity, raw);
+        try {
+            PageParser.Page page = PageParser.parse(in, recordElement, handler);
+            if (measure) {
+                long parse = System.nanoTime() - begin;
+                long after = allocated == -1 ? -1 : ThreadAllocation.current();
+                metrics.page(endpoint, stream, raw.count, page.records, parse, after == -1 ? -1 : after - allocated);
+            }
+            return page;
+        } finally {
+            // also ends the inflater of a compressed body
+            in.close();
+        }
+    }
+
+    private static InputStream decode(HttpEntity entity, InputStream raw) throws IOException {
+        String codec = codec(entity);
+        if (codec == null) {
+            return raw;
+        } else if (codec.equals("gzip") || codec.equals("x-gzip")) {
+            return new GZIPInputStream(raw);
+        }
+        return new DeflateInputStream(raw);
+    }
+
+    /*
+     * Replaces a compressed body by one that is decompressed while read, for responses
+     * handed to callers as they are
+     */
+    static void decompress(HttpResponse rsp) throws IOException {
+        HttpEntity entity = rsp.getEntity();
+        String codec = entity == null ? null : codec(entity);
+        if (codec == null) {
+            return;
+        } else if (codec.equals("gzip") || codec.equals("x-gzip")) {
+            rsp.setEntity(new GzipDecompressingEntity(entity));
+        } else {
+            rsp.setEntity(new DeflateDecompressingEntity(entity));
+        }
+        rsp.removeHeaders("Content-Length");
+        rsp.removeHeaders("Content-Encoding");
+        rsp.removeHeaders("Content-MD5");
+    }
+
+    /*
+     * gzip, x-gzip or deflate, null if the body is not compressed
+     */
+    private static String codec(HttpEntity entity) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null) {
+            for (HeaderElement element : encoding.getElements()) {
+                String codec = element.getName().toLowerCase(Locale.US);
+                if (codec.equals("gzip") || codec.equals("x-gzip") || codec.equals("deflate")) {
+                    return codec;
+                } else if (!codec.equals("identity")) {
+                    throw new IOException("Unsupported content encoding: " + codec);
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * counts the bytes read through it
+     */
+    private static final class Counted extends FilterInputStream {
+        long count = 0;
+
+        Counted(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /*
+     * close connections that were idle too long or whose keep alive expired
+     */
+    void evict() {
+        long idle = settings.getEvictIdle();
+        pool.closeExpiredConnections();
+        pool.closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+        PoolingNHttpClientConnectionManager a = asyncPool;
+        if (a != null) {
+            a.closeExpiredConnections();
+            a.closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * closes every pooled connection, in flight requests fail
+     */
+    public synchronized void close() {
+        closed = true;
+        if (eviction != null) {
+            eviction.cancel(false);
+        }
+        try {
+            http.close();
+        } catch (IOException e) {
+            log.debug("Closing http client: " + e.getMessage());
+        }
+        if (async != null) {
+            try {
+                async.close();
+            } catch (IOException e) {
+                log.debug("Closing async http client: " + e.getMessage());
+            }
+        }
+    }
+
+    private RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(millis(settings.getConnectTimeout()))
+                .setSocketTimeout(millis(settings.getSocketTimeout()))
+                .build();
+    }
+
+    /*
+     * the servers Keep-Alive timeout when it sends a shorter one than configured
+     */
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        final long keepAlive = settings.getKeepAlive();
+        return new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long server = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return server > 0 ? Math.min(server, keepAlive) : keepAlive;
+            }
+        };
+    }
+
+    private ConnectionReuseStrategy reuseStrategy() {
+        return settings.getKeepAlive() == 0 ? NoConnectionReuseStrategy.INSTANCE
+                : DefaultConnectionReuseStrategy.INSTANCE;
+    }
+
+    private static int millis(long ms) {
+        return (int) Math.min(Integer.MAX_VALUE, ms);
+    }
+}
@@ -0,0 +1,218 @@
+package com.digi.data.timeseries;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection pool and timeout settings of the http clients of a
+ * DataStreamService, set with DataStreamService.configure(). Every service
+ * has its own pool of connections to its host.
+ *
+ * <pre>
+ * service.configure(new ConnectionSettings()
+ *         .maxConnections(50, 20)
+ *         .timeouts(5, 30, TimeUnit.SECONDS)
+ *         .keepAlive(1, TimeUnit.MINUTES)
+ *         .evictIdle(2, TimeUnit.MINUTES));
+ * </pre>
+ */
+public class ConnectionSettings {
+    public static final int DEFAULT_MAX_TOTAL = 20;
+    public static final int DEFAULT_MAX_PER_ROUTE = 10;
+
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+    private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private long connectTimeout = TimeUnit.SECONDS.toMillis(10);
+    private long socketTimeout = TimeUnit.SECONDS.toMillis(60);
+    private long keepAlive = TimeUnit.SECONDS.toMillis(30);
+    private long evictIdle = TimeUnit.SECONDS.toMillis(60);
+    private boolean compression = true;
+    private int retries = 3;
+    private long initialBackoff = 200;
+    private long maxBackoff = TimeUnit.SECONDS.toMillis(10);
+
+    public ConnectionSettings() {
+    }
+
+    ConnectionSettings(ConnectionSettings other) {
+        this.maxTotal = other.maxTotal;
+        this.maxPerRoute = other.maxPerRoute;
+        this.connectTimeout = other.connectTimeout;
+        this.socketTimeout = other.socketTimeout;
+        this.keepAlive = other.keepAlive;
+        this.evictIdle = other.evictIdle;
+        this.compression = other.compression;
+        this.retries = other.retries;
+        this.initialBackoff = other.initialBackoff;
+        this.maxBackoff = other.maxBackoff;
+    }
+
+    /**
+     * Size of the connection pool, defaults to 20 in total and 10 per route. Parallel
+     * scans do not fetch more sub ranges at once than perRoute.
+     *
+     * @return these settings
+     */
+    public ConnectionSettings maxConnections(int total, int perRoute) {
+        if (total < 1 || perRoute < 1) {
+            throw new IllegalArgumentException("Need at least one connection, not " + total + "/" + perRoute);
+        }
+        this.maxTotal = total;
+        this.maxPerRoute = Math.min(perRoute, total);
+        return this;
+    }
+
+    /**
+     * How long to wait for a connection to open and for data on an open connection,
+     * defaults to 10 and 60 seconds. 0 waits forever.
+     *
+     * @return these settings
+     */
+    public ConnectionSettings timeouts(long connect, long socket, TimeUnit unit) {
+        if (connect < 0 || socket < 0) {
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        }
+        this.connectTimeout = unit.toMillis(connect);
+        this.socketTimeout = unit.toMillis(socket);
+        return this;
+    }
+
+    /**
+     * How long an idle connection is kept for reuse unless the server sends a shorter
+     * Keep-Alive timeout, defaults to 30 seconds. 0 closes connections after every
+     * request.
+     *
+     * @return these settings
+     */
+    public ConnectionSettings keepAlive(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Keep alive cannot be negative");
+        }
+        this.keepAlive = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Close pooled connections that were idle this long, or whose keep alive expired,
+     * from a background task. Defaults to 60 seconds, 0 disables the task.
+     *
+     * @return these settings
+     */
+    public ConnectionSettings evictIdle(long idle, TimeUnit unit) {
+        if (idle < 0) {
+            throw new IllegalArgumentException("Idle time cannot be negative");
+        }
+        this.evictIdle = unit.toMillis(idle);
+        return this;
+    }
+
+    /**
+     * Ask for gzip or deflate compressed responses, on by default. Data points are
+     * decompressed while they are parsed, turn this off when the server is on a fast
+     * local network and cpu is the bottleneck.
+     *
+     * @return these settings
+     */
+    public ConnectionSettings compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * How often reading a page is retried after a connection failure, a timeout, a
+     * truncated response or a 408, 429 or 5xx status. Retry n waits a random time of up
+     * to initial * 2^n, but no more than max. Defaults to 3 retries waiting up to 200ms,
+     * 400ms and 800ms, 0 disables retrying.
+     *
+     * @return these settings
+     */
+    public ConnectionSettings retries(int retries, long initial, long max, TimeUnit unit) {
+        if (retries < 0 || initial < 0 || max < initial) {
+            throw new IllegalArgumentException("Invalid retries " + retries + " backing off " + initial + " to "
+                    + max);
+        }
+        this.retries = retries;
+        this.initialBackoff = unit.toMillis(initial);
+        this.maxBackoff = unit.toMillis(max);
+        return this;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    /**
+     * in ms
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * in ms
+     */
+    public long getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * in ms
+     */
+    public long getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * in ms
+     */
+    public long getEvictIdle() {
+        return evictIdle;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * in ms
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * in ms
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /*
+     * ms to wait before the given retry, starting at 0, with full jitter so clients that
+     * failed together do not retry together
+     */
+    long backoff(int retry) {
+        long cap = initialBackoff;
+        for (int i = 0; i < retry && cap < maxBackoff; i++) {
+            cap <<= 1;
+        }
+        cap = Math.min(cap, maxBackoff);
+        return cap == 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionSettings [maxTotal=" + maxTotal + ", maxPerRoute=" + maxPerRoute + ", connectTimeout="
+                + connectTimeout + ", socketTimeout=" + socketTimeout + ", keepAlive=" + keepAlive
+                + ", evictIdle=" + evictIdle + ", compression=" + compression + ", retries=" + retries + ", initialBackoff=" + initialBackoff
+                + ", maxBackoff=" + maxBackoff + "]";
+    }
+}
@@ -0,0 +1,297 @@
+package com.digi.data.timeseries;
+
+import java.util.UUID;
+
+public class DataPoint<Type> {
+    /**
+     * UUID representing this data point
+     */
+    private UUID id = null;
+
+    /**
+     * Timestamp reported by client
+     */
+    private long timestamp = 0;
+
+    /**
+     * Name of the stream this datapoint was uploaded to
+     */
+    private String streamId;
+
+    /**
+     * Id for customer who owns the stream
+     */
+    private int cstId;
+
+    /**
+     * Time this data point was uploaded to the server
+     */
+    private long serverTimestamp = 0;
+
+    /**
+     * description of data point (optional)
+     */
+    private String description = "";
+
+    /**
+     * quality of data point (optional)
+     */
+    private int quality = 0;
+
+    /**
+     * Location of data point.
+     */
+    private String location;
+
+    /**
+     * value of the data
+     */
+    private String data;
+
+    /**
+     * Class of the type to convert the data to
+     */
+    private Class<? extends Type> valueClass;
+
+    /**
+     * data converted to the value class, decoded on first use
+     */
+    private transient Type value;
+    private transient boolean decoded = false;
+
+    public DataPoint() {
+    }
+
+    // visable for testing
+    DataPoint(Class<? extends Type> valueClass, String data) {
+        this.valueClass = valueClass;
+        this.data = data;
+    }
+
+    /*
+     * set a field from an element of the /ws/DataPoint xml, used by the page
+     * parser. Unknown elements are ignored so new fields added to the resource
+     * do not break parsing.
+     */
+    void setField(String name, String value) {
+        if (name.equals("data")) {
+            setData(value);
+        } else if (name.equals("timestamp")) {
+            timestamp = value.length() == 0 ? 0 : Long.parseLong(value);
+        } else if (name.equals("id")) {
+            id = value.length() == 0 ? null : UUID.fromString(value);
+        } else if (name.equals("streamId")) {
+            streamId = value;
+        } else if (name.equals("serverTimestamp")) {
+            serverTimestamp = value.length() == 0 ? 0 : Long.parseLong(value);
+        } else if (name.equals("cstId")) {
+            cstId = value.length() == 0 ? 0 : Integer.parseInt(value);
+        } else if (name.equals("quality")) {
+            quality = value.length() == 0 ? 0 : Integer.parseInt(value);
+        } else if (name.equals("description")) {
+            description = value;
+        } else if (name.equals("location")) {
+            location = value;
+        }
+    }
+
+    /**
+     * retrieves the value of this data points value in its generic type. The
+     * data is converted with the ValueDecoder registered for the value class
+     * once and the result is reused on later calls.
+     * 
+     * @return
+     * @throws ClassCastException
+     *             if the data cannot be converted to the value class
+     */
+    public Type getValue() {
+        if (!decoded) {
+            try {
+                value = decoder().decode(data);
+            } catch (RuntimeException e) {
+                throw conversionFailed(valueClass, e);
+            }
+            decoded = true;
+        }
+        return value;
+    }
+
+    /**
+     * retrieves the value as a double without boxing, for numeric streams
+     * 
+     * @throws ClassCastException
+     *             if the data is not numeric
+     */
+    public double getDoubleValue() {
+        if (decoded && value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return decoder().decodeDouble(data);
+        } catch (RuntimeException e) {
+            throw conversionFailed(double.class, e);
+        }
+    }
+
+    /**
+     * retrieves the value as a long without boxing, for numeric streams.
+     * Decimal values are truncated.
+     * 
+     * @throws ClassCastException
+     *             if the data is not numeric
+     */
+    public long getLongValue() {
+        if (decoded && value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return decoder().decodeLong(data);
+        } catch (RuntimeException e) {
+            throw conversionFailed(long.class, e);
+        }
+    }
+
+    private ValueDecoder<? extends Type> decoder() {
+        if (valueClass == null) {
+            throw new IllegalStateException("No value class set");
+        }
+        return ValueDecoder.forClass(valueClass);
+    }
+
+    private ClassCastException conversionFailed(Class<?> type, RuntimeException cause) {
+        ClassCastException e = new ClassCastException("Cannot convert data '" + data + "' to "
+                + (type == null ? null : type.getName()));
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * UUID representing this data point
+     */
+    public UUID getId() {
+        return id;
+    }
+
+    /**
+     * UUID representing this data point
+     */
+    public void setId(UUID id) {
+        this.id = id;
+    }
+
+    /**
+     * Timestamp reported by client
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Timestamp reported by client
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Time this data point was uploaded to the server
+     */
+    public long getServerTimestamp() {
+        return serverTimestamp;
+    }
+
+    /*
+     * Time this data point was uploaded to the server
+     */
+    void setServerTimestamp(long serverTimestamp) {
+        this.serverTimestamp = serverTimestamp;
+    }
+
+    /**
+     * description of data point (optional)
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * description of data point (optional)
+     */
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    /**
+     * quality of data point (optional)
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * quality of data point (optional)
+     */
+    public void setQuality(int quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * Location of data point.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Location of data point.
+     */
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    /**
+     * Class of the type to convert the data to
+     */
+    public Class<? extends Type> getValueClass() {
+        return valueClass;
+    }
+
+    /**
+     * Class of the type to convert the data to
+     */
+    public void setValueClass(Class<? extends Type> valueClass) {
+        this.valueClass = valueClass;
+        this.value = null;
+        this.decoded = false;
+    }
+
+    /**
+     * Name of the stream this datapoint was uploaded to
+     */
+    public String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Name of the stream this datapoint was uploaded to
+     */
+    public void setStreamId(String streamId) {
+        this.streamId = streamId;
+    }
+
+    /**
+     * value of the data
+     */
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * value of the data
+     */
+    public void setData(String data) {
+        this.data = data;
+        this.value = null;
+        this.decoded = false;
+    }
+}
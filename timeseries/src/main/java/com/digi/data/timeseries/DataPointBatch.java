@@ -0,0 +1,88 @@
+package com.digi.data.timeseries;
+
+import java.util.Arrays;
+
+/**
+ * Reusable columnar batch of numeric data points, timestamps and values are
+ * kept in primitive arrays so reading a large stream does not create an
+ * object per data point. Only the first size() entries of the arrays are
+ * valid.
+ */
+public class DataPointBatch {
+    private long[] timestamps;
+    private double[] values;
+    private int size = 0;
+
+    public DataPointBatch() {
+        this(1000);
+    }
+
+    /**
+     * @param capacity
+     *            initial number of points the batch can hold, grows as needed
+     */
+    public DataPointBatch(int capacity) {
+        timestamps = new long[Math.max(1, capacity)];
+        values = new double[Math.max(1, capacity)];
+    }
+
+    /**
+     * number of data points in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Timestamp reported by client of the i'th data point
+     */
+    public long getTimestamp(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return timestamps[i];
+    }
+
+    /**
+     * value of the i'th data point
+     */
+    public double getValue(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return values[i];
+    }
+
+    /**
+     * backing array of the timestamps, valid up to size()
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * backing array of the values, valid up to size()
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * empty the batch, keeps the arrays for reuse
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * append a data point to the batch
+     */
+    public void add(long timestamp, double value) {
+        if (size == timestamps.length) {
+            int capacity = size + (size >> 1) + 1;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+}
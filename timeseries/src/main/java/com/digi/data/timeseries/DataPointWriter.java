@@ -0,0 +1,717 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads data points to /ws/DataPoint in batches. Data points are encoded
+ * (and gzipped, unless the services connection settings turn compression off)
+ * as they are written, a batch is sent once it holds batchSize data points or
+ * batchBytes of xml, or when it has waited for more for the linger time. Up to
+ * inFlight batches are uploaded at once over the pooled client of the service.
+ *
+ * <pre>
+ * DataPointWriter writer = service.getWriter().batchSize(500).inFlight(4);
+ * for (Reading r : readings) {
+ *     writer.write(r.getStream(), r.getTime(), r.getValue());
+ * }
+ * writer.close();
+ * </pre>
+ *
+ * When uploads fall behind, write() blocks until one of the batches waiting to be
+ * sent has been, so a slow or throttling server slows the writers down instead of
+ * filling the heap. Failed batches are retried with the backoff of the services
+ * connection settings, longer if the server asks for it with Retry-After. The
+ * outcome of every batch is passed to the listener.
+ *
+ * Delivery is at least once: a batch whose response was lost, ie to a read
+ * timeout or a dropped connection, is sent again although the server may have
+ * stored it already, so a data point can be uploaded twice.
+ */
+public class DataPointWriter implements Closeable, Flushable {
+    private static final Logger log = LoggerFactory.getLogger(DataPointWriter.class);
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_BATCH_BYTES = 512 * 1024;
+    public static final long DEFAULT_LINGER = 100;
+    public static final int DEFAULT_IN_FLIGHT = 4;
+    private static final XMLOutputFactory XML = XMLOutputFactory.newInstance();
+    private static final Batch STOP = new Batch(-1, false);
+
+    /**
+     * Told how each batch went, called on the thread that uploaded it.
+     */
+    public interface Listener {
+        void uploaded(Batch batch);
+
+        /**
+         * the batch was not uploaded, the last attempt failed with e
+         */
+        void failed(Batch batch, Exception e);
+    }
+
+    /**
+     * Data points uploaded together and what happened to them.
+     */
+    public static class Batch {
+        private final long sequence;
+        private final List<DataPoint<?>> points = new ArrayList<DataPoint<?>>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Counted counted;
+        private XMLStreamWriter xml;
+        private final long created = System.nanoTime();
+        private byte[] body;
+        private int status = -1;
+        private int attempts = 0;
+        private long latency = 0;
+        // ms the server asked to wait before the next attempt, 0 if it did not
+        private long retryAfter = 0;
+
+        Batch(long sequence, boolean compressed) {
+            this.sequence = sequence;
+            try {
+                counted = new Counted(compressed ? new GZIPOutputStream(buffer) : buffer);
+            } catch (IOException e) {
+                // not thrown writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /*
+         * encodes the data point, only the fields the server needs
+         */
+        void add(DataPoint<?> point) throws XMLStreamException {
+            if (xml == null) {
+                xml = XML.createXMLStreamWriter(counted, "UTF-8");
+                xml.writeStartDocument("UTF-8", "1.0");
+                xml.writeStartElement("list");
+            }
+            xml.writeStartElement("DataPoint");
+            element("streamId", point.getStreamId());
+            if (point.getTimestamp() > 0) {
+                element("timestamp", Long.toString(point.getTimestamp()));
+            }
+            element("data", point.getData());
+            if (point.getQuality() != 0) {
+                element("quality", Integer.toString(point.getQuality()));
+            }
+            if (point.getDescription() != null && point.getDescription().length() > 0) {
+                element("description", point.getDescription());
+            }
+            if (point.getLocation() != null) {
+                element("location", point.getLocation());
+            }
+            xml.writeEndElement();
+            xml.flush();
+            points.add(point);
+        }
+
+        private void element(String name, String value) throws XMLStreamException {
+            xml.writeStartElement(name);
+            xml.writeCharacters(value == null ? "" : value);
+            xml.writeEndElement();
+        }
+
+        /*
+         * ends the document, nothing can be added after
+         */
+        void seal() throws XMLStreamException, IOException {
+            xml.writeEndDocument();
+            xml.close();
+            counted.close();
+            body = buffer.toByteArray();
+            xml = null;
+        }
+
+        /*
+         * ms the server asked to wait after the last attempt with a Retry-After, 0 if it
+         * did not
+         */
+        long retryAfter() {
+            return retryAfter;
+        }
+
+        /*
+         * bytes of xml written, before compressing
+         */
+        long encoded() {
+            return counted.count;
+        }
+
+        /**
+         * order the batch was started in, from 0
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public List<DataPoint<?>> getPoints() {
+            return Collections.unmodifiableList(points);
+        }
+
+        public int size() {
+            return points.size();
+        }
+
+        /**
+         * bytes of the request body, compressed if it was
+         */
+        public long getBytes() {
+            return body == null ? 0 : body.length;
+        }
+
+        /**
+         * status of the last attempt, -1 if no response arrived
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * requests made, 1 if it was not retried
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * ns from the first data point being written until the batch was uploaded or
+         * given up on
+         */
+        public long getLatencyNanos() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "Batch [sequence=" + sequence + ", size=" + size() + ", bytes=" + getBytes() + ", status="
+                    + status + ", attempts=" + attempts + "]";
+        }
+    }
+
+    /*
+     * counts the bytes written through it
+     */
+    private static class Counted extends FilterOutputStream {
+        long count = 0;
+
+        Counted(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private final DataStreamService service;
+    private final String streamName;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long batchBytes = DEFAULT_BATCH_BYTES;
+    private long linger = DEFAULT_LINGER;
+    private int inFlight = DEFAULT_IN_FLIGHT;
+    private Listener listener;
+    private ExecutorService executor;
+
+    private BlockingQueue<Batch> sealed;
+    private Batch current;
+    private long sequence = 0;
+    /* batches sealed but not uploaded or given up on yet */
+    private int pending = 0;
+    private boolean started = false;
+    private volatile boolean closed = false;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /*
+     * package only constructor called from DataStreamService and DataStream, the stream
+     * name is used by write(timestamp, value) and may be null
+     */
+    DataPointWriter(DataStreamService service, String streamName) {
+        this.service = service;
+        this.streamName = streamName;
+    }
+
+    /**
+     * Most data points sent in one request, 500 by default.
+     *
+     * @return this writer
+     */
+    public synchronized DataPointWriter batchSize(int points) {
+        checkNotStarted();
+        if (points < 1) {
+            throw new IllegalArgumentException("Batches need at least one data point");
+        }
+        this.batchSize = points;
+        return this;
+    }
+
+    /**
+     * Most bytes of xml, before compressing, sent in one request, 512KB by default. A
+     * batch can go over by one data point.
+     *
+     * @return this writer
+     */
+    public synchronized DataPointWriter batchBytes(long bytes) {
+        checkNotStarted();
+        if (bytes < 1) {
+            throw new IllegalArgumentException("Batches need at least one byte");
+        }
+        this.batchBytes = bytes;
+        return this;
+    }
+
+    /**
+     * How long a batch waits for more data points before it is sent anyway, 100ms by
+     * default. Bounds the delay of data points written slowly.
+     *
+     * @return this writer
+     */
+    public synchronized DataPointWriter linger(long duration, TimeUnit unit) {
+        checkNotStarted();
+        if (duration < 1) {
+            throw new IllegalArgumentException("Linger has to be at least 1");
+        }
+        this.linger = Math.max(1, unit.toMillis(duration));
+        return this;
+    }
+
+    /**
+     * Number of batches uploaded at once, 4 by default, limited to the connections per
+     * route of the service. As many sealed batches can wait to be sent before writes
+     * block.
+     *
+     * @return this writer
+     */
+    public synchronized DataPointWriter inFlight(int batches) {
+        checkNotStarted();
+        if (batches < 1) {
+            throw new IllegalArgumentException("At least one batch has to be in flight");
+        }
+        this.inFlight = batches;
+        return this;
+    }
+
+    /**
+     * Told how each batch went. Without one failed batches are only logged.
+     *
+     * @return this writer
+     */
+    public synchronized DataPointWriter listener(Listener listener) {
+        checkNotStarted();
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Executor to upload on, defaults to the services executor. Uses inFlight of its
+     * threads until the writer is closed.
+     *
+     * @return this writer
+     */
+    public synchronized DataPointWriter executor(ExecutorService executor) {
+        checkNotStarted();
+        this.executor = executor;
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Writing has already started");
+        }
+    }
+
+    /**
+     * Writes a data point to the stream this writer was created for.
+     *
+     * @param timestamp
+     *            ms since epoc, 0 or less for the time the server receives it
+     * @param value
+     *            stored as its toString()
+     * @throws IllegalStateException
+     *             if the writer is not for a single stream
+     */
+    public void write(long timestamp, Object value) throws DataServiceException {
+        if (streamName == null) {
+            throw new IllegalStateException("No stream to write to, use write(stream, timestamp, value)");
+        }
+        write(streamName, timestamp, value);
+    }
+
+    /**
+     * Writes a data point to a stream.
+     *
+     * @param stream
+     *            name of the stream
+     * @param timestamp
+     *            ms since epoc, 0 or less for the time the server receives it
+     * @param value
+     *            stored as its toString()
+     */
+    public void write(String stream, long timestamp, Object value) throws DataServiceException {
+        DataPoint<Object> point = new DataPoint<Object>();
+        point.setStreamId(stream);
+        point.setTimestamp(timestamp);
+        point.setData(value == null ? "" : value.toString());
+        write(point);
+    }
+
+    /**
+     * Writes a data point, to its stream id or the stream of the writer if it has none.
+     * Blocks while the batches already waiting to be uploaded are.
+     *
+     * @throws DataServiceException
+     *             if interrupted while waiting, or closed
+     */
+    public void write(DataPoint<?> point) throws DataServiceException {
+        if (point.getStreamId() == null) {
+            if (streamName == null) {
+                throw new IllegalArgumentException("Data point has no stream id");
+            }
+            point.setStreamId(streamName);
+        }
+        Batch full = null;
+        synchronized (this) {
+            if (closed) {
+                throw new DataServiceException("Writer is closed");
+            }
+            start();
+            if (current == null) {
+                current = new Batch(sequence++, service.isCompressing());
+            }
+            try {
+                current.add(point);
+            } catch (XMLStreamException e) {
+                throw new DataServiceException("Error encoding data point: " + e.getMessage(), e);
+            }
+            written.incrementAndGet();
+            if (current.size() >= batchSize || current.encoded() >= batchBytes) {
+                full = seal();
+            }
+        }
+        if (full != null) {
+            enqueue(full);
+        }
+    }
+
+    /**
+     * Sends what was written so far and waits until every batch was uploaded or given up
+     * on.
+     *
+     * @throws DataServiceException
+     *             if interrupted while waiting
+     */
+    public void flush() throws DataServiceException {
+        Batch last;
+        synchronized (this) {
+            last = seal();
+        }
+        if (last != null) {
+            enqueue(last);
+        }
+        synchronized (this) {
+            try {
+                while (pending > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataServiceException("Interrupted waiting for uploads", e);
+            }
+        }
+    }
+
+    /**
+     * Uploads what was written and stops the uploading threads. Data points written
+     * after are rejected.
+     */
+    public void close() throws DataServiceException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            int senders;
+            synchronized (this) {
+                closed = true;
+                senders = started ? inFlight : 0;
+            }
+            // senders also stop once closed and idle, in case the queue had no room
+            for (int i = 0; i < senders; i++) {
+                sealed.offer(STOP);
+            }
+        }
+    }
+
+    /**
+     * stream written to by write(timestamp, value), null if there is none
+     */
+    public String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * data points written so far
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * data points the server accepted
+     */
+    public long getUploaded() {
+        return uploaded.get();
+    }
+
+    /**
+     * data points of batches that were given up on
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /*
+     * starts the uploading threads on the first write
+     */
+    private void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        inFlight = Math.min(inFlight, service.getMaxConnectionsPerRoute());
+        sealed = new LinkedBlockingQueue<Batch>(inFlight);
+        ExecutorService e = executor == null ? service.getExecutor() : executor;
+        for (int i = 0; i < inFlight; i++) {
+            e.submit(new Runnable() {
+                public void run() {
+                    send();
+                }
+            });
+        }
+    }
+
+    /*
+     * ends the current batch, null if there is none
+     */
+    private Batch seal() {
+        Batch batch = current;
+        if (batch == null) {
+            return null;
+        }
+        current = null;
+        try {
+            batch.seal();
+        } catch (Exception e) {
+            // not thrown writing to memory
+            throw new IllegalStateException(e);
+        }
+        pending++;
+        return batch;
+    }
+
+    /*
+     * hands a sealed batch to the uploading threads, waiting for room
+     */
+    private void enqueue(Batch batch) throws DataServiceException {
+        try {
+            sealed.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done(batch, new DataServiceException("Interrupted waiting to upload", e));
+            throw new DataServiceException("Interrupted waiting to upload", e);
+        }
+    }
+
+    /*
+     * loop of an uploading thread, sealing batches that lingered while idle
+     */
+    private void send() {
+        try {
+            while (true) {
+                Batch batch = sealed.poll(linger, TimeUnit.MILLISECONDS);
+                if (batch == STOP || (batch == null && closed)) {
+                    return;
+                } else if (batch != null) {
+                    upload(batch);
+                } else {
+                    Batch lingered = null;
+                    synchronized (this) {
+                        if (current != null
+                                && System.nanoTime() - current.created >= TimeUnit.MILLISECONDS.toNanos(linger)) {
+                            lingered = seal();
+                        }
+                    }
+                    if (lingered != null) {
+                        upload(lingered);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void upload(Batch batch) {
+        done(batch, post(batch));
+    }
+
+    /*
+     * posts the batch, retrying what may succeed later. Returns why the last attempt
+     * failed, null once the server accepted it.
+     */
+    Exception post(Batch batch) {
+        return post(batch, service.settings().getRetries());
+    }
+
+    /*
+     * posts the batch, retrying up to retries times, 0 for a caller that backs off on
+     * its own
+     */
+    Exception post(Batch batch, int retries) {
+        ConnectionSettings settings = service.settings();
+        Metrics metrics = service.getMetrics();
+        String name = streamName == null ? "" : streamName;
+        Exception error = null;
+        for (int retry = 0;; retry++) {
+            batch.retryAfter = 0;
+            batch.attempts++;
+            long begin = System.nanoTime();
+            try {
+                HttpResponse rsp = service.getHttpClient().execute(request(batch));
+                HttpEntity entity = rsp.getEntity();
+                try {
+                    batch.status = rsp.getStatusLine().getStatusCode();
+                    metrics.request(Metrics.DATA_POINT, name, batch.status, System.nanoTime() - begin);
+                    if (batch.status == 200 || batch.status == 201) {
+                        return null;
+                    }
+                    batch.retryAfter = retryAfter(rsp);
+                    log.error(entity == null ? "" : EntityUtils.toString(entity));
+                    error = new StreamSnapshot.StatusException(batch.status, "Unexpected status code: ("
+                            + batch.status + ") " + rsp.getStatusLine().getReasonPhrase());
+                } finally {
+                    EntityUtils.consume(entity);
+                }
+            } catch (IOException e) {
+                metrics.request(Metrics.DATA_POINT, name, -1, System.nanoTime() - begin);
+                batch.status = -1;
+                error = e;
+            } catch (URISyntaxException e) {
+                return e;
+            }
+            if (retry >= retries || !StreamSnapshot.retryable(error)) {
+                return error;
+            }
+            // a throttling server says how long to back off for
+            long ms = Math.max(settings.backoff(retry), batch.retryAfter);
+            metrics.retry(Metrics.DATA_POINT, name);
+            log.warn("Uploading " + batch + " failed, retry " + (retry + 1) + " of " + retries
+                    + " in " + ms + "ms: " + error.getMessage());
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return error;
+            }
+        }
+    }
+
+    private HttpPost request(Batch batch) throws URISyntaxException {
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(service.getScheme())
+            .setHost(service.getHost())
+            .setPort(service.getPort())
+            .setPath("/ws/DataPoint");
+        HttpPost post = new HttpPost(builder.build());
+        post.setHeader("Content-type", "text/xml; charset=utf-8");
+        post.setHeader("Authorization", "Basic " + service.getAuthHeader());
+        if (service.isCompressing()) {
+            post.setHeader("Content-Encoding", "gzip");
+        }
+        post.setEntity(new ByteArrayEntity(batch.body));
+        return post;
+    }
+
+    /*
+     * ms the server asked to wait with a Retry-After in seconds, 0 if it did not
+     */
+    private static long retryAfter(HttpResponse rsp) {
+        Header header = rsp.getFirstHeader("Retry-After");
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().trim()));
+        } catch (NumberFormatException e) {
+            // an http date, rather back off as configured
+            return 0;
+        }
+    }
+
+    /*
+     * reports the outcome of a batch, error is null if it was uploaded
+     */
+    private void done(Batch batch, Exception error) {
+        batch.latency = System.nanoTime() - batch.created;
+        if (error == null) {
+            uploaded.addAndGet(batch.size());
+        } else {
+            failed.addAndGet(batch.size());
+            log.error("Giving up on " + batch + ": " + error.getMessage());
+        }
+        try {
+            if (listener != null) {
+                if (error == null) {
+                    listener.uploaded(batch);
+                } else {
+                    listener.failed(batch, error);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Listener failed on " + batch, e);
+        } finally {
+            synchronized (this) {
+                pending--;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,667 @@
+package com.digi.data.timeseries;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Representation of a DataStream. Data streams represent time series data, a
+ * sequence of data points. You can create a data stream with web services, by
+ * uploading data points, or using the Dia or Smart energy frameworks with
+ * iDigi. You can query the data by time ranges, rollup intervals and perform
+ * basic aggregates.
+ * 
+ * @param <DataType>
+ *            Type of object to convert the value to: Float, Integer, Double,
+ *            String, etc...
+ */
+public class DataStream<DataType> {
+    private static final Logger log = LoggerFactory.getLogger(DataStream.class);
+    
+    /**
+    * Name of the stream
+    */
+    private String streamName;
+    
+    /**
+    * iDigi password
+    */
+    private String password;
+    
+    /**
+    * service used to create this datastream
+    */
+    private DataStreamService service;
+    
+    /**
+    * class of the generic type of this stream
+    */
+    private Class<? extends DataType> valueClass;
+    
+    /**
+    * Map of element:value for a data stream object
+    */
+    private Map<String, String> streamValues = null; 
+    
+    /*
+    * package only constructor called from DataStreamService, fetches the data type
+    * to use as the valueClass unless the metadata of the stream is cached
+    */
+    DataStream(String streamName, DataStreamService service) {
+        this.streamName = streamName;
+        this.service = service; 
+        try {
+            streamValues = service.getMetadataCache().get(streamName);
+            if (streamValues == null) {
+                refresh();
+            }
+            this.valueClass = (Class<? extends DataType>) this.getDataType();
+        } catch (Exception e) {
+            this.valueClass = (Class<? extends DataType>) String.class;
+        }
+        
+    }
+
+    /*
+    * package only constructor for streams with metadata loaded in bulk, values are
+    * null if the stream does not exist
+    */
+    @SuppressWarnings("unchecked")
+    DataStream(String streamName, DataStreamService service, Map<String, String> values) {
+        this.streamName = streamName;
+        this.service = service;
+        this.streamValues = values;
+        this.valueClass = (Class<? extends DataType>) (values == null ? String.class : dataType(values));
+    }
+    
+    /*
+    * package only constructor called from DataStreamService
+    */
+    DataStream(String streamName, Class<? extends DataType> valueClass, 
+            DataStreamService service) {
+        this.streamName = streamName;
+        this.service = service; 
+        this.valueClass = valueClass;
+    }
+    
+    /**
+    * Fetch the aggregate for a given interval between two times. The returned
+    * snapshot can be used as iterator or iterable in loop, ie
+    * 
+    * <pre>
+    * DataStream&lt;Float> steram = ...
+    * long now = System.currentTimeMillis();
+    * for(DataPoint&lt;Float> data : stream.get(Aggregate.Sum, Interval.Hour, 0L, now)) {
+    *       float sumForHour = data.getValue();
+    *     Data hour = new Date(data.getTimestamp());
+    *     System.err.println("Sum for the hour starting at " + hour +" is " + sumForHour);
+    * }
+    * </pre>
+    * 
+    * @param aggregate
+    *            an algorithm to apply to the data within each interval
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    */
+    public StreamSnapshot<DataType> get(Aggregate aggregate, Interval interval,
+            long start, long end, boolean reversed) {
+        return new StreamSnapshot<DataType>(this, start, end, reversed, -1, interval, aggregate, null);
+    }
+    
+    public StreamSnapshot<DataType> get(Aggregate aggregate, Interval interval,
+            long start, long end) {
+        return new StreamSnapshot<DataType>(this, start, end, false, -1, interval, aggregate, null);
+    }
+
+    /**
+     * Fetch the aggregate for a given interval between two times, with every option of
+     * the query.
+     * 
+     * @param aggregate
+     *            an algorithm to apply to the data within each interval
+     * @param interval
+     *            time frame to group data
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @param reversed
+     *            newest data points first
+     * @param size
+     *            most data points returned, ie reversed with a size of 1 the latest
+     *            one, -1 for all. Pages are sized by the service and ask for no more
+     *            than are left.
+     * @param joined
+     *            other streams to join, null for none
+     * @return
+     */
+    public StreamSnapshot<DataType> get(Aggregate aggregate, Interval interval, long start, long end, boolean reversed, int size, String joined) {
+        return new StreamSnapshot<DataType>(this, start, end, reversed, size, interval, aggregate, joined);
+    }
+    
+    public StreamSnapshot<DataType> get(Aggregate aggregate, Interval interval, long start, long end, String joined) {
+        return new StreamSnapshot<DataType>(this, start, end, interval, aggregate, joined);
+    }
+    
+    /**
+     * Fetch the data points between two times. The returned snapshot can be
+     * used as iterator or iterable in loop, ie
+     * 
+     * <pre>
+     * DataStream&lt;Float> steram = ...
+     * for(DataPoint&lt;Float> data : stream.get(0, System.currentTimeMillis()) ){
+     *     float dataPointValue = data.getValue();
+     *     System.err.println(dataPointValue);
+     * }
+     * </pre>
+     * 
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @return
+     */
+    public StreamSnapshot<DataType> get(long start, long end) {
+        return get(Aggregate.None, Interval.None, start, end);
+    }
+    
+
+    /**
+     * Convenience method to fetch all data points in a stream, this is the equivalent to 
+     * <pre>
+     *  stream.get(-1, -1);
+     * </pre>  
+     */
+    public StreamSnapshot<DataType> getAll() {
+        return get(-1, -1);
+    }
+    
+    /**
+     * The latest data points of the stream, newest first. Asks for no more than n so the
+     * latest data point is a single request of one.
+     * 
+     * <pre>
+     * DataPoint&lt;Float> latest = stream.latest(1).next();
+     * </pre>
+     * 
+     * @param n
+     *            most data points returned
+     * @return
+     */
+    public StreamSnapshot<DataType> latest(int n) {
+        return get(Aggregate.None, Interval.None, -1, -1, true, -1, null).limit(n);
+    }
+
+    /**
+     * Fetch the data points between two times without blocking the calling thread,
+     * either all at once as a CompletableFuture or as a Publisher driven by the demand
+     * of its subscriber, ie
+     *
+     * <pre>
+     * CompletableFuture&lt;List&lt;DataPoint&lt;Float>>> points = stream.getAsync(start, end).toList();
+     * </pre>
+     *
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @return
+     * @see AsyncSnapshot
+     */
+    public AsyncSnapshot<DataType> getAsync(long start, long end) {
+        return getAsync(Aggregate.None, Interval.None, start, end);
+    }
+
+    /**
+     * Fetch the aggregate for a given interval between two times without blocking the
+     * calling thread.
+     *
+     * @see #getAsync(long, long)
+     */
+    public AsyncSnapshot<DataType> getAsync(Aggregate aggregate, Interval interval, long start, long end) {
+        return new AsyncSnapshot<DataType>(get(aggregate, interval, start, end));
+    }
+
+    /**
+     * Follow the stream, passing each new data point to the listener as it arrives.
+     * The stream is polled on the executor of the service until the returned tail is
+     * closed, starting with the data points at or after since.
+     *
+     * @param since
+     *            number of ms since epoc of the first data point to deliver
+     * @param listener
+     *            receives the data points in timestamp order
+     * @return
+     * @see StreamTail
+     */
+    public StreamTail<DataType> tail(long since, StreamTail.Listener<DataType> listener) {
+        return new StreamTail<DataType>(this, since, listener).start();
+    }
+
+    /**
+     * Follow the stream from now on
+     *
+     * @see #tail(long, StreamTail.Listener)
+     */
+    public StreamTail<DataType> tail(StreamTail.Listener<DataType> listener) {
+        return tail(System.currentTimeMillis(), listener);
+    }
+
+    /**
+     * Follow the stream, putting each new data point on the queue. Polling waits while
+     * the queue is full.
+     *
+     * @see #tail(long, StreamTail.Listener)
+     */
+    public StreamTail<DataType> tail(long since, BlockingQueue<DataPoint<DataType>> queue) {
+        return new StreamTail<DataType>(this, since, queue).start();
+    }
+
+    /**
+     * Fetch the data points between two times by splitting the range into sub ranges
+     * that are fetched concurrently, returned in timestamp order. Meant for large
+     * historical ranges, start and end must be given.
+     *
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @param parallelism
+     *            number of sub ranges to fetch at once, limited to the connections per
+     *            route of the service
+     * @return
+     */
+    public ParallelScan<DataType> getParallel(long start, long end, int parallelism) {
+        return getParallel(Aggregate.None, Interval.None, start, end, parallelism, true);
+    }
+
+    /**
+     * Fetch the aggregate for a given interval between two times by fetching sub ranges
+     * concurrently. Only fixed length intervals (Half, Hour) can be split.
+     *
+     * @param ordered
+     *            if false data points are returned as pages arrive rather than in
+     *            timestamp order
+     * @see #getParallel(long, long, int)
+     */
+    public ParallelScan<DataType> getParallel(Aggregate aggregate, Interval interval, long start, long end,
+            int parallelism, boolean ordered) {
+        return new ParallelScan<DataType>(this, aggregate, interval, start, end, parallelism, ordered);
+    }
+
+    /**
+     * Fetch the data points between two times as columns of primitive timestamps and
+     * values, for numeric streams. Avoids creating a DataPoint per sample, ie
+     *
+     * <pre>
+     * ColumnarSnapshot columns = stream.getColumns(0, System.currentTimeMillis());
+     * DataPointBatch batch = new DataPointBatch();
+     * while (columns.next(batch)) {
+     *     for (int i = 0; i &lt; batch.size(); i++) {
+     *         System.err.println(batch.getTimestamp(i) + " " + batch.getValue(i));
+     *     }
+     * }
+     * </pre>
+     *
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @return
+     */
+    public ColumnarSnapshot getColumns(long start, long end) {
+        return getColumns(Aggregate.None, Interval.None, start, end);
+    }
+
+    /**
+     * Fetch the aggregate for a given interval between two times as columns of primitive
+     * timestamps and values.
+     *
+     * @see #getColumns(long, long)
+     */
+    public ColumnarSnapshot getColumns(Aggregate aggregate, Interval interval, long start, long end) {
+        return new ColumnarSnapshot(get(aggregate, interval, start, end));
+    }
+
+    /**
+     * Upload data points to this stream in batches, ie
+     *
+     * <pre>
+     * DataPointWriter writer = stream.getWriter();
+     * writer.write(System.currentTimeMillis(), 21.5f);
+     * writer.close();
+     * </pre>
+     *
+     * @return a writer that has to be closed to send the last batch
+     * @see DataPointWriter
+     */
+    public DataPointWriter getWriter() {
+        return new DataPointWriter(service, streamName);
+    }
+
+    /**
+     * Fetch the raw data points between two times once and roll them up locally, so
+     * several aggregates can be read without a request per aggregate, ie
+     *
+     * <pre>
+     * Rollup hourly = stream.rollup(Interval.Hour, start, end);
+     * DataPointBatch averages = hourly.get(Aggregate.Average);
+     * DataPointBatch deviations = hourly.get(Aggregate.Standarddev);
+     * </pre>
+     *
+     * Buckets are aligned in the timezone of the service.
+     *
+     * @param interval
+     *            time frame to group data
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @return
+     * @throws DataServiceException
+     *             if a page could not be fetched
+     * @throws ClassCastException
+     *             if the stream is not numeric
+     */
+    public Rollup rollup(Interval interval, long start, long end) throws DataServiceException {
+        Rollup rollup = Rollup.forService(service, interval);
+        ColumnarSnapshot columns = getColumns(start, end);
+        try {
+            DataPointBatch batch = new DataPointBatch();
+            while (columns.next(batch)) {
+                rollup.add(batch);
+            }
+        } finally {
+            columns.close();
+        }
+        return rollup;
+    }
+
+    /**
+     * Fetch the raw data points between two times and reduce them to a budget of
+     * points for a chart as they are read, ie
+     *
+     * <pre>
+     * DataPointBatch line = stream.downsample(Downsampler.Method.LTTB, chart.getWidth(), start, end);
+     * </pre>
+     *
+     * @param method
+     *            how to reduce the data points of a pixel column
+     * @param points
+     *            most points to return
+     * @param start
+     *            number of ms since epoc
+     * @param end
+     *            number of ms since epoc
+     * @return the points kept, in timestamp order
+     * @throws DataServiceException
+     *             if a page could not be fetched
+     * @throws ClassCastException
+     *             if the stream is not numeric
+     * @see Downsampler
+     */
+    public DataPointBatch downsample(Downsampler.Method method, int points, long start, long end)
+            throws DataServiceException {
+        Downsampler downsampler = new Downsampler(method, points, start, end);
+        ColumnarSnapshot columns = getColumns(start, end);
+        try {
+            DataPointBatch batch = new DataPointBatch();
+            while (columns.next(batch)) {
+                downsampler.add(batch);
+            }
+        } finally {
+            columns.close();
+        }
+        return downsampler.get();
+    }
+
+    /**
+    * Fetch the sum of the values for a given interval between two times. The returned
+    * snapshot can be used as iterator or iterable in loop, ie
+    * 
+    * <pre>
+    * DataStream&lt;Float> steram = ...
+    * long now = System.currentTimeMillis();
+    * for(DataPoint&lt;Float> data : stream.getSums(Interval.Hour, 0L, now)) {
+    *     float sumForHour = data.getValue();
+    *     Data hour = new Date(data.getTimestamp());
+    *     System.err.println("Sum for the hour starting at " + hour +" is " + sumForHour);
+    * }
+    * </pre>
+    * 
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    */
+    public StreamSnapshot<DataType> getSums(Interval interval, long start, long end) {
+        return get(Aggregate.Sum, interval, start, end);
+    }
+    
+    /**
+    * Fetch the count of the values for a given interval between two times. The returned
+    * snapshot can be used as iterator or iterable in loop, ie
+    * 
+    * <pre>
+    * DataStream&lt;Float> steram = ...
+    * long now = System.currentTimeMillis();
+    * for(DataPoint&lt;Float> data : stream.getCounts(Interval.Hour, 0L, now)) {
+    *     float count = data.getValue();
+    *     Data hour = new Date(data.getTimestamp());
+    *     System.err.println("Number of data points for the hour starting at " + hour +" is " + count);
+    * }
+    * </pre>
+    * 
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    */
+    public StreamSnapshot<DataType> getCounts(Interval interval, long start, long end) {
+        return get(Aggregate.Count, interval, start, end);
+    }
+
+    /**
+    * Fetch the largest value for a given interval between two times. The returned
+    * snapshot can be used as iterator or iterable in loop, ie
+    * 
+    * <pre>
+    * DataStream&lt;Float> steram = ...
+    * long now = System.currentTimeMillis();
+    * for(DataPoint&lt;Float> data : stream.getMaximums(Interval.Hour, 0L, now)) {
+    *     float max = data.getValue();
+    *     Data hour = new Date(data.getTimestamp());
+    *     System.err.println("Largest value for the hour starting at " + hour +" is " + max);
+    * }
+    * </pre>
+    * 
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    */
+    public StreamSnapshot<DataType> getMaximums(Interval interval, long start, long end) {
+        return get(Aggregate.Max, interval, start, end);
+    }
+    
+    /**
+    * Fetch the smallest value for a given interval between two times. The returned
+    * snapshot can be used as iterator or iterable in loop, ie
+    * 
+    * <pre>
+    * DataStream&lt;Float> steram = ...
+    * long now = System.currentTimeMillis();
+    * for(DataPoint&lt;Float> data : stream.getMinimums(Interval.Hour, 0L, now)) {
+    *     float min = data.getValue();
+    *     Data hour = new Date(data.getTimestamp());
+    *     System.err.println("Smallest value for the hour starting at " + hour +" is " + min);
+    * }
+    * </pre>
+    * 
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    */
+    public StreamSnapshot<DataType> getMinimums(Interval interval, long start, long end) {
+        return get(Aggregate.Min, interval, start, end);
+    }
+    
+    /**
+    * Fetch the average value for a given interval between two times. The returned
+    * snapshot can be used as iterator or iterable in loop, ie
+    * 
+    * <pre>
+    * DataStream&lt;Float> steram = ...
+    * long now = System.currentTimeMillis();
+    * for(DataPoint&lt;Float> data : stream.getAverages(Interval.Hour, 0L, now)) {
+    *     float avg = data.getValue();
+    *     Data hour = new Date(data.getTimestamp());
+    *     System.err.println("Average value for the hour starting at " + hour +" is " + avg);
+    * }
+    * </pre>
+    * 
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    */
+    public StreamSnapshot<DataType> getAverages(Interval interval, long start, long end) {
+        return get(Aggregate.Average, interval, start, end);
+    }
+
+    /**
+    * Name of the stream
+    */
+    public String getStreamName() {
+        return streamName;
+    } 
+
+    public String getUnits() throws DataServiceException {
+        return values().get("units");
+    }
+    
+    /**
+    * 
+    * @return
+    * @throws DataServiceException
+    */
+    public String getDescription() throws DataServiceException {
+        return values().get("description");
+    }
+    
+    /**
+    * class of the generic type of this stream
+    */
+    public Class<? extends DataType> getValueClass() {
+        return valueClass;
+    }
+ 
+    /**
+    * returns whatever class represents the datatype listed in the
+    * streams metadata.  This is from the "dataType" element returned
+    * from the /ws/DataStream web service.  If the metadata is in the
+    * services metadata cache it will use the cached value, otherwise it
+    * will make the web service call
+    * 
+    * @return
+    * @throws DataServiceException
+    */
+    public Class getDataType() throws DataServiceException {
+        return dataType(values());
+    }
+
+    /*
+    * class for the dataType element of the metadata
+    */
+    private static Class<?> dataType(Map<String, String> values) {
+        Class<?> ret = null;
+        String type = values.get("dataType") == null ? "" : values.get("dataType").toLowerCase();
+        if(type.equals("integer")) {
+            ret = Integer.class;
+        } else if(type.equals("double")) {
+            ret = Double.class;
+        } else if(type.equals("float")) {
+            ret = Float.class;
+        } else if(type.equals("long")) {
+            ret = Long.class;
+        } else {
+            ret = String.class;
+        }
+        return ret;
+    }
+
+    /*
+    * metadata of the stream, from the services cache or fetched if not cached or expired
+    */
+    private Map<String, String> values() throws DataServiceException {
+        Map<String, String> cached = service.getMetadataCache().get(streamName);
+        if(cached != null) {
+            streamValues = cached;
+        } else {
+            this.refresh();
+        }
+        return streamValues;
+    }
+    
+    /**
+    * fetches the current values of the data stream meta data, ie dataType, description, units
+    * 
+    * @throws DataServiceException
+    */
+    public void refresh() throws DataServiceException {  
+        // streams under this path are fetched along with it and cached for the service
+        List<Map<String, String>> streams = service.fetchStreams(streamName);
+        if(streams.isEmpty()) {
+            throw new DataServiceException("Cannot find matching data stream");
+        }
+        Map<String, String> values = null;
+        // only use the one that matches the name of this stream (ie its a parent path)
+        for (Map<String, String> stream : streams) {
+            if(this.streamName.equals(stream.get("streamId"))) {
+                values = stream;
+            }
+        }
+        // check if no matching streams were found
+        if(values == null) {
+            throw new DataServiceException("Cannot find matching data stream");
+        }
+        this.streamValues = values;
+    } 
+
+    /*
+    * internal mechanism to get the service used to create this stream
+    */
+    DataStreamService getService() {
+        return service;
+    }
+    
+    @Override
+    public String toString() {
+        return "DataStream [streamName=" + streamName + ", valueClass=" + valueClass + ", streamValues=" + streamValues
+                + "]";
+    }
+}
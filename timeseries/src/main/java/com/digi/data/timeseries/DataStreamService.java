@@ -0,0 +1,756 @@
+package com.digi.data.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service for retrieving DataStream objects which can be used to query data over ranges
+ * or aggregates.
+ */
+public class DataStreamService {
+    private static final Logger log = LoggerFactory.getLogger(DataStreamService.class);
+    /**
+     * number of streams requested per page when loading metadata in bulk
+     */
+    static int METADATA_PAGE_SIZE = 1000;
+
+    /**
+     * most devices whose streams loadStreams(Collection) lists a device at a time, the
+     * streams of more devices are picked out of one listing of the path they share
+     */
+    static int MAX_DEVICE_LISTINGS = 10;
+    /**
+     * streams queried at once by fleet queries unless set
+     */
+    public static final int DEFAULT_FLEET_CONCURRENCY = 64;
+    private String scheme = "https";
+    private int port = 443; 
+    private String host;
+    private String auth;
+    private String timezone = null;
+    private ExecutorService executor = null;
+    private volatile SegmentCache segmentCache = null;
+    private final StreamMetadataCache metadataCache = new StreamMetadataCache(this);
+    private volatile Semaphore fleetPermits = new Semaphore(DEFAULT_FLEET_CONCURRENCY);
+    private volatile int fleetConcurrency = DEFAULT_FLEET_CONCURRENCY;
+    private volatile PageSizer paging = null;
+    private volatile Metrics metrics = Metrics.NONE;
+    private volatile ConnectionSettings connectionSettings = new ConnectionSettings();
+    private volatile ConnectionPools pools = null;
+    
+    private static Map<String, DataStreamService> services = new HashMap();
+    
+    private DataStreamService(String username, String password, String host) {
+        super(); 
+        this.host = host;
+        String userpassword = username + ":" + password;
+        this.auth = Base64.encodeBase64String(userpassword.getBytes()).trim();
+    }
+    
+    /**
+    * Factory method for retrieving a DataStreamService. The username and
+    * password will be used in all sequential queries related to DataStreams
+    * created by this service.
+    * 
+    * If using Spring this is a good place to inject a bean for autowiring
+    * <pre>
+    *     &lt;bean id="dataStreamService" class="com.digi.data.timeseries.DataStreamService"
+    *                 factory-method="getService"> 
+    *         &lt;constructor-arg ref="${username}" />
+    *         &lt;constructor-arg ref="${password}" />
+    *  &lt;/bean>
+    * </pre>
+    * 
+    * @param host
+    * @param username
+    * @param password
+    * @return
+    */
+    public static synchronized DataStreamService getService(String username, String password) {
+        return new DataStreamService(username, password, "my.idigi.com");
+    }
+
+    /**
+    * @see getService
+    */
+    public static DataStreamService getServiceForHost(String host, String username, String password) { 
+        String key = host+"::"+username+"::"+DigestUtils.md5Hex(password);
+        if(services.get(key) == null) {
+            services.put(key, new DataStreamService(username, password, host));
+        }
+        return services.get(key);
+    }
+    
+    /**
+    * get a datastream that represents a given name.  Data point values retrieved from
+    * this stream will be represented as whatever class represents the dataType set in
+    * the streams meta data. To represent them as something else see
+    * getStream(String streamName, Class type)
+    * 
+    * @param streamName
+    * @return DataStream
+    */
+    public DataStream<?> getStream(String streamName) {
+        return new DataStream(streamName, this);
+    }
+    
+    /**
+    * Get stream of a given name, all Data Point values will be converted to the type provided
+    * when calling "getValue()".  The type must have a constructor that takes a String argument to
+    * convert from the XML provided from the /ws/DataPoint HTTP call
+    * 
+    * @param streamName
+    * @param type
+    * @return
+    */
+    public <DataType> DataStream<DataType> getStream(String streamName, Class<? extends DataType> type) {
+        return new DataStream<DataType>(streamName, type, this);
+    }
+
+    /**
+    * Continue a scan from a checkpoint, ie one saved by an earlier run of the process.
+    * The snapshot returns the data points the scan had not handed out yet, converted to
+    * the same type.
+    * 
+    * @param checkpoint
+    * @return the rest of the scan
+    * @see StreamSnapshot#checkpoint()
+    */
+    @SuppressWarnings("unchecked")
+    public <DataType> StreamSnapshot<DataType> resume(ScanCheckpoint checkpoint) {
+        DataStream<DataType> stream = getStream(checkpoint.getStreamName(),
+                (Class<? extends DataType>) checkpoint.getValueClass());
+        return new StreamSnapshot<DataType>(stream, checkpoint);
+    }
+
+    /**
+    * Upload data points to any of the streams of this account in batches, several
+    * batches at once. Each data point names its stream.
+    * 
+    * @return a writer that has to be closed to send the last batch
+    * @see DataPointWriter
+    */
+    public DataPointWriter getWriter() {
+        return new DataPointWriter(this, null);
+    }
+
+    /**
+    * Upload data points through a write ahead log in the directory, so writes never wait
+    * for the server and survive it being unreachable or the process restarting. The log
+    * has to be opened before writing.
+    * 
+    * @param directory
+    *            where the segments of the log are kept, created if missing
+    * @return an unopened log
+    * @see UploadLog
+    */
+    public UploadLog getUploadLog(File directory) {
+        return new UploadLog(this, directory);
+    }
+    
+    /**
+    * Query many streams over the same range at once, each on its own (virtual) thread.
+    * The streams are not looked up, their values are converted to the given type.
+    * 
+    * @param streamNames
+    * @param type
+    * @param aggregate
+    *            an algorithm to apply to the data within each interval
+    * @param interval
+    *            time frame to group data
+    * @param start
+    *            number of ms since epoc
+    * @param end
+    *            number of ms since epoc
+    * @return
+    * @see FleetQuery
+    */
+    public <DataType> FleetQuery<DataType> getFleet(Collection<String> streamNames, Class<? extends DataType> type,
+            Aggregate aggregate, Interval interval, long start, long end) {
+        return new FleetQuery<DataType>(this, streamNames, type, aggregate, interval, start, end);
+    }
+
+    /**
+    * Maximum number of streams queried at once by all fleet queries of this service,
+    * defaults to DEFAULT_FLEET_CONCURRENCY. The requests also wait for a connection of
+    * the http clients pool. Applies to fleet queries started after the change.
+    * 
+    * @param concurrency
+    */
+    public void setFleetConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Fleet concurrency must be at least 1");
+        }
+        this.fleetConcurrency = concurrency;
+        this.fleetPermits = new Semaphore(concurrency);
+    }
+
+    public int getFleetConcurrency() {
+        return fleetConcurrency;
+    }
+
+    Semaphore getFleetPermits() {
+        return fleetPermits;
+    }
+
+    /**
+    * Data points asked for per page by the snapshots of this service, -1 for the servers
+    * default of 1000. Applies to snapshots created after the change that were not given
+    * a size of their own.
+    * 
+    * @param size
+    */
+    public void setPageSize(int size) {
+        this.paging = size == -1 ? null : new PageSizer(size);
+    }
+
+    /**
+    * Adapt the page size of the snapshots of this service between min and max data points
+    * to how their pages are read, see StreamSnapshot.adaptivePaging(). Applies to
+    * snapshots created after the change that were not given a size of their own.
+    * 
+    * @param min
+    * @param max
+    */
+    public void setAdaptivePaging(int min, int max) {
+        this.paging = new PageSizer(min, max, StreamSnapshot.PAGE_SIZE);
+    }
+
+    /**
+    * Where to report the latency, throughput, retries and cache hits of the requests of
+    * this service, ie an InMemoryMetrics. Metrics.NONE by default, null resets to it.
+    * 
+    * @param metrics
+    */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics == null ? Metrics.NONE : metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+    * page sizer for a new snapshot, null for the servers default
+    */
+    PageSizer newPageSizer() {
+        PageSizer p = paging;
+        return p == null ? null : p.copy();
+    }
+
+    /**
+    * Executor used for background work such as prefetching pages. Unless one was set
+    * this is a shared pool of daemon threads.
+    */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = defaultExecutor();
+        }
+        return executor;
+    }
+
+    /**
+    * Override the executor used for background work, ie to share a pool managed by the
+    * application. The service does not shut it down.
+    * 
+    * @param executor
+    */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private static ExecutorService defaultExecutor;
+
+    private static synchronized ExecutorService defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "datastream-worker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+    * Replace the connection pool and timeout settings of this service. Should be done
+    * before the service is used, requests in flight on the previous pool fail.
+    * 
+    * @param settings
+    * @return this service
+    */
+    public synchronized DataStreamService configure(ConnectionSettings settings) {
+        this.connectionSettings = new ConnectionSettings(settings);
+        ConnectionPools previous = pools;
+        pools = null;
+        if (previous != null) {
+            previous.close();
+        }
+        return this;
+    }
+
+    /**
+    * copy of the connection pool and timeout settings in use
+    */
+    public ConnectionSettings getConnectionSettings() {
+        return new ConnectionSettings(connectionSettings);
+    }
+
+    /**
+    * Close the pooled connections of this service. A new pool is opened if the service
+    * is used again. Services that are dropped without closing them release their
+    * blocking pool once garbage collected, but the io threads of the asynchronous api
+    * keep running until close() is called.
+    */
+    public synchronized void close() {
+        ConnectionPools previous = pools;
+        pools = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /*
+    * the blocking http client of this service
+    */
+    HttpClient getHttpClient() {
+        return pools().http();
+    }
+
+    /*
+    * the non blocking http client of this service, used by the asynchronous api
+    */
+    HttpAsyncClient getAsyncClient() throws IOException {
+        return pools().async();
+    }
+
+    private ConnectionPools pools() {
+        ConnectionPools p = pools;
+        if (p == null) {
+            synchronized (this) {
+                p = pools;
+                if (p == null) {
+                    p = pools = new ConnectionPools(connectionSettings, this);
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+    * Cache of fetched data point ranges used by all snapshots of this service, or null
+    * if not caching
+    */
+    public SegmentCache getSegmentCache() {
+        return segmentCache;
+    }
+
+    /**
+    * Serve snapshots over historical ranges from a local cache, fetching only the ranges
+    * not cached yet. Set to null to stop caching.
+    * 
+    * @param segmentCache
+    */
+    public void setSegmentCache(SegmentCache segmentCache) {
+        this.segmentCache = segmentCache;
+    }
+
+    /**
+    * Maximum number of concurrent connections the http client will open to the host,
+    * parallel scans do not use more threads than this
+    */
+    public int getMaxConnectionsPerRoute() {
+        return connectionSettings.getMaxPerRoute();
+    }
+
+    /*
+    * true if requests ask for compressed responses
+    */
+    boolean isCompressing() {
+        return connectionSettings.isCompression();
+    }
+
+    /*
+    * the connection settings in use, not to be modified
+    */
+    ConnectionSettings settings() {
+        return connectionSettings;
+    }
+
+    String getAuthHeader() {
+        return auth;
+    } 
+
+    String getHost() {
+        return host;
+    }
+    
+    /**
+    * Fetch the metadata of every stream under a path (ie a device id) in as few paged
+    * requests as possible and add it to the metadata cache, so creating those streams
+    * does not need a request per stream. An empty path loads every stream of the account.
+    * 
+    * @param path
+    * @return number of streams loaded
+    * @throws DataServiceException
+    */
+    public int loadStreams(String path) throws DataServiceException {
+        return fetchStreams(path).size();
+    }
+
+    /**
+    * Fetch the metadata of many streams at once into the metadata cache. The names are
+    * grouped by device id and all streams under the deepest path the names of a device
+    * have in common are loaded, so names of a few devices do not list every stream of
+    * the account. The names of many devices are picked out of a single paged listing
+    * of the path they share instead of a request per device, only they are cached.
+    * 
+    * @param streamNames
+    * @return number of streams loaded
+    * @throws DataServiceException
+    */
+    public int loadStreams(Collection<String> streamNames) throws DataServiceException {
+        return fetchStreams(streamNames).size();
+    }
+
+    /**
+    * All streams under a path, with their metadata fetched in bulk
+    * 
+    * @param path
+    * @return
+    * @throws DataServiceException
+    * @see #loadStreams(String)
+    */
+    public List<DataStream<?>> getStreams(String path) throws DataServiceException {
+        List<DataStream<?>> streams = new ArrayList<DataStream<?>>();
+        for (Map<String, String> values : fetchStreams(path)) {
+            streams.add(new DataStream<Object>(values.get("streamId"), this, values));
+        }
+        return streams;
+    }
+
+    /**
+    * Get many streams at once, like getStream(String) for each name but the metadata of
+    * streams not already cached is fetched in bulk. Streams that do not exist represent
+    * their values as Strings.
+    * 
+    * @param streamNames
+    * @return streams in the order of the names
+    * @throws DataServiceException
+    * @see #loadStreams(Collection)
+    */
+    public List<DataStream<?>> getStreams(Collection<String> streamNames) throws DataServiceException {
+        Map<String, Map<String, String>> metadata = new HashMap<String, Map<String, String>>();
+        List<String> missing = new ArrayList<String>();
+        for (String name : streamNames) {
+            Map<String, String> values = metadataCache.get(name);
+            if (values == null) {
+                missing.add(name);
+            } else {
+                metadata.put(name, values);
+            }
+        }
+        if (!missing.isEmpty()) {
+            // not read back from the cache, which may have evicted them already
+            metadata.putAll(fetchStreams(missing));
+        }
+        List<DataStream<?>> streams = new ArrayList<DataStream<?>>();
+        for (String name : streamNames) {
+            streams.add(new DataStream<Object>(name, this, metadata.get(name)));
+        }
+        return streams;
+    }
+
+    /**
+    * Metadata of the streams of this service, used when creating streams with
+    * getStream(String) and reading their units, description and data type. Entries
+    * are refreshed in the background on the executor of this service.
+    */
+    public StreamMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /*
+    * fetches the metadata of all streams under the path a page at a time, every stream
+    * read is added to the metadata cache
+    */
+    List<Map<String, String>> fetchStreams(String path) throws DataServiceException {
+        return fetchStreams(path, null);
+    }
+
+    /*
+    * like fetchStreams(path) but only the streams named are kept and cached, null for
+    * all. Such a partial listing is not revalidated.
+    */
+    private List<Map<String, String>> fetchStreams(String path, Set<String> only) throws DataServiceException {
+        List<Map<String, String>> streams = new ArrayList<Map<String, String>>();
+        StreamCollector collector = new StreamCollector(streams, only);
+        String key = path == null ? "" : path;
+        Metrics metrics = this.metrics;
+        StreamMetadataCache.Validator validator = only == null ? metadataCache.validator(key) : null;
+        String etag = null;
+        String lastModified = null;
+        String cursor = null;
+        int pages = 0;
+        try {
+            do {
+                URIBuilder builder = new URIBuilder();
+                builder.setScheme(scheme)
+                    .setHost(host)
+                    .setPort(port)
+                    .setPath(key.length() == 0 ? "/ws/DataStream" : "/ws/DataStream/" + path)
+                    .setParameter("size", "" + METADATA_PAGE_SIZE);
+                if (cursor != null) {
+                    builder.setParameter("pageCursor", cursor);
+                }
+                HttpGet httpget = new HttpGet(builder.build());
+                httpget.setHeader("Content-type", "text/xml; charset=utf-8");
+                httpget.setHeader("Authorization", "Basic " + auth);
+                if (isCompressing()) {
+                    httpget.setHeader("Accept-Encoding", ConnectionPools.ACCEPT_ENCODING);
+                }
+                // only ask if it changed when the last response listed everything in one page
+                if (pages == 0 && validator != null) {
+                    if (validator.etag != null) {
+                        httpget.setHeader("If-None-Match", validator.etag);
+                    }
+                    if (validator.lastModified != null) {
+                        httpget.setHeader("If-Modified-Since", validator.lastModified);
+                    }
+                }
+
+                long begin = System.nanoTime();
+                HttpResponse rsp;
+                try {
+                    rsp = getHttpClient().execute(httpget);
+                } catch (IOException e) {
+                    metrics.request(Metrics.DATA_STREAM, key, -1, System.nanoTime() - begin);
+                    throw e;
+                }
+                metrics.request(Metrics.DATA_STREAM, key, rsp.getStatusLine().getStatusCode(),
+                        System.nanoTime() - begin);
+                HttpEntity entity = rsp.getEntity();
+                try {
+                    int status = rsp.getStatusLine().getStatusCode();
+                    if (status == 304 && pages == 0 && validator != null) {
+                        List<Map<String, String>> listed = metadataCache.notModified(key, validator);
+                        if (listed != null) {
+                            return listed;
+                        }
+                        // some of the streams were evicted since, list them all again
+                        validator = null;
+                        continue;
+                    } else if (status == 401) {
+                        throw new IOException("Invalid credentials, HTTP 401");
+                    } else if (status != 200) {
+                        log.error(entity == null ? "" : EntityUtils.toString(entity));
+                        throw new IOException("Unexpected status code: (" + status + ") " +
+                                rsp.getStatusLine().getReasonPhrase());
+                    }
+                    if (pages == 0) {
+                        etag = header(rsp, "ETag");
+                        lastModified = header(rsp, "Last-Modified");
+                    }
+                    cursor = ConnectionPools.parse(entity, "DataStream", collector, metrics, Metrics.DATA_STREAM,
+                            key).cursor;
+                    pages++;
+                } finally {
+                    EntityUtils.consume(entity);
+                }
+            } while (cursor != null || pages == 0);
+        } catch (IOException e) {
+            throw new DataServiceException("IOException: " + e.getMessage(), e);
+        } catch (XMLStreamException e) {
+            throw new DataServiceException("Error parsing document: " + e.getMessage(), e);
+        } catch (URISyntaxException e) {
+            throw new DataServiceException("Invalid URI created (/ws/DataStream/" + path + "): "
+                    + e.getMessage(), e);
+        }
+        if (only != null) {
+            return streams;
+        } else if (pages == 1) {
+            metadataCache.validated(key, etag, lastModified, streams);
+        } else {
+            metadataCache.validated(key, null, null, streams);
+        }
+        return streams;
+    }
+
+    /*
+    * metadata of the streams listed under the paths of the names by stream id, a request
+    * (or a page of one) per device id the names are of, or when there are more than
+    * MAX_DEVICE_LISTINGS devices the named streams of one listing of their common path
+    */
+    private Map<String, Map<String, String>> fetchStreams(Collection<String> streamNames)
+            throws DataServiceException {
+        Map<String, List<String>> devices = new LinkedHashMap<String, List<String>>();
+        for (String name : streamNames) {
+            int slash = name.indexOf('/');
+            String device = slash < 0 ? name : name.substring(0, slash);
+            List<String> names = devices.get(device);
+            if (names == null) {
+                names = new ArrayList<String>();
+                devices.put(device, names);
+            }
+            names.add(name);
+        }
+        Map<String, Map<String, String>> loaded = new HashMap<String, Map<String, String>>();
+        if (devices.size() > MAX_DEVICE_LISTINGS) {
+            for (Map<String, String> values : fetchStreams(commonPath(streamNames),
+                    new HashSet<String>(streamNames))) {
+                loaded.put(values.get("streamId"), values);
+            }
+            return loaded;
+        }
+        for (List<String> names : devices.values()) {
+            for (Map<String, String> values : fetchStreams(commonPath(names))) {
+                loaded.put(values.get("streamId"), values);
+            }
+        }
+        return loaded;
+    }
+
+    private static String header(HttpResponse rsp, String name) {
+        Header header = rsp.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /*
+    * deepest path all the names are under, empty if they have none in common
+    */
+    static String commonPath(Collection<String> names) {
+        String[] common = null;
+        int length = 0;
+        for (String name : names) {
+            String[] parts = name.split("/");
+            if (common == null) {
+                common = parts;
+                length = parts.length;
+            } else {
+                int i = 0;
+                while (i < length && i < parts.length && common[i].equals(parts[i])) {
+                    i++;
+                }
+                length = i;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append('/');
+            }
+            sb.append(common[i]);
+        }
+        return sb.toString();
+    }
+
+    /*
+    * collects the elements of each DataStream into a map and caches it, only those of
+    * the named streams if there are names
+    */
+    class StreamCollector implements PageParser.Handler {
+        private final List<Map<String, String>> streams;
+        private final Set<String> only;
+        private Map<String, String> current;
+
+        StreamCollector(List<Map<String, String>> streams, Set<String> only) {
+            this.streams = streams;
+            this.only = only;
+        }
+
+        public void startRecord() {
+            current = new HashMap<String, String>();
+        }
+
+        public void field(String name, String value) {
+            if (!name.equals("currentValue")) {
+                current.put(name, value);
+            }
+        }
+
+        public void endRecord() {
+            String streamId = current.get("streamId");
+            if (streamId != null && (only == null || only.contains(streamId))) {
+                Map<String, String> values = Collections.unmodifiableMap(current);
+                metadataCache.put(streamId, values);
+                streams.add(values);
+            }
+            current = null;
+        }
+    }
+    
+    /**
+    * Set if http requests for this service should use HTTP or HTTPS.  By default
+    * it will use HTTPS
+    * 
+    * @param isSecure
+    */
+    public void setSecureScheme(boolean isSecure) {
+       this.scheme = isSecure ? "HTTPS" : "HTTP";
+    }
+      
+    /**
+     * Can override the port used for the http[s] requests.  Defaults to 443
+     * 
+     * @param isSecure
+     */
+    public void setPort(int port) {
+       this.port = port;
+    }
+
+    /**
+    * retrieve the scheme (http/https) used for this service
+    */
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * retrieves port used to make the http[s] requests
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public String getTimezone() {
+        return timezone;
+    }
+
+    public void setTimezone(String timezone) {
+        this.timezone = timezone;
+    }
+}
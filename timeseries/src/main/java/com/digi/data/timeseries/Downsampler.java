@@ -0,0 +1,287 @@
+package com.digi.data.timeseries;
+
+/**
+ * Reduces the numeric data points of a time range to a budget of points for a
+ * chart, in a single pass over data points in timestamp order. The range is
+ * split into equally long buckets, ie a bucket per pixel column, and each
+ * bucket is reduced to:
+ *
+ * <ul>
+ * <li>LTTB, Largest-Triangle-Three-Buckets: the data point forming the largest
+ * triangle with the point kept of the previous bucket and the average of the
+ * next bucket. The first and last data points are always kept. Keeps the
+ * shape of a line with a point per pixel.</li>
+ * <li>MIN_MAX: the minimum and maximum data points, in timestamp order. Keeps
+ * every spike, two points per pixel.</li>
+ * </ul>
+ *
+ * No more than the budget of points are kept, empty buckets keep none. LTTB
+ * holds the data points of two buckets while reducing and MIN_MAX none, so the
+ * memory and the cost of rendering the result do not grow with the range.
+ *
+ * <pre>
+ * Downsampler line = new Downsampler(Downsampler.Method.LTTB, 800, start, end);
+ * line.addAll(stream.get(start, end));
+ * DataPointBatch points = line.get();
+ * </pre>
+ */
+public class Downsampler {
+    public enum Method {
+        LTTB, MIN_MAX
+    }
+
+    private final Method method;
+    private final int points;
+    private final long start;
+    private final long end;
+    private final int buckets;
+    private final DataPointBatch result;
+    private long count = 0;
+    private long previous = Long.MIN_VALUE;
+    private boolean finished = false;
+
+    // LTTB: the point kept last and the buckets waiting for the one after them
+    private long keptTimestamp;
+    private double keptValue;
+    private DataPointBatch current = new DataPointBatch(16);
+    private DataPointBatch next = new DataPointBatch(16);
+    private int nextBucket = -1;
+
+    // MIN_MAX: extremes of the bucket being filled
+    private int column = -1;
+    private long minTimestamp;
+    private double min;
+    private long maxTimestamp;
+    private double max;
+
+    /**
+     * @param method
+     *            how to reduce a bucket
+     * @param points
+     *            most points to keep, at least 3 for LTTB and 2 for MIN_MAX
+     * @param start
+     *            number of ms since epoc, data points before are ignored
+     * @param end
+     *            number of ms since epoc, data points at or after are ignored
+     */
+    public Downsampler(Method method, int points, long start, long end) {
+        if (method == null) {
+            throw new IllegalArgumentException("Downsampler needs a method");
+        }
+        if (points < (Method.LTTB.equals(method) ? 3 : 2)) {
+            throw new IllegalArgumentException("Too few points for " + method + ": " + points);
+        }
+        if (end <= start) {
+            throw new IllegalArgumentException("Empty range: " + start + " to " + end);
+        }
+        this.method = method;
+        this.points = points;
+        this.start = start;
+        this.end = end;
+        this.buckets = Method.LTTB.equals(method) ? points - 2 : points / 2;
+        this.result = new DataPointBatch(points);
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * most points kept
+     */
+    public int getPoints() {
+        return points;
+    }
+
+    /**
+     * number of data points within the range added so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * add a data point, in timestamp order
+     *
+     * @throws IllegalArgumentException
+     *             if the data point is before the last one added
+     * @throws IllegalStateException
+     *             if the points were already read
+     */
+    public void add(long timestamp, double value) {
+        if (finished) {
+            throw new IllegalStateException("Downsampler was already read");
+        }
+        if (timestamp < start || timestamp >= end) {
+            return;
+        }
+        if (timestamp < previous) {
+            throw new IllegalArgumentException("Data points have to be added in timestamp order, " + timestamp
+                    + " is before " + previous);
+        }
+        previous = timestamp;
+        count++;
+        if (Method.LTTB.equals(method)) {
+            triangle(timestamp, value);
+        } else {
+            extremes(timestamp, value);
+        }
+    }
+
+    /**
+     * add every data point of a batch
+     */
+    public void add(DataPointBatch batch) {
+        long[] timestamps = batch.getTimestamps();
+        double[] values = batch.getValues();
+        for (int i = 0; i < batch.size(); i++) {
+            add(timestamps[i], values[i]);
+        }
+    }
+
+    /**
+     * add the data points of a snapshot, which may not be reversed
+     *
+     * @throws ClassCastException
+     *             if a value is not numeric
+     */
+    public void addAll(Iterable<? extends DataPoint<?>> points) {
+        for (DataPoint<?> point : points) {
+            add(point.getTimestamp(), point.getDoubleValue());
+        }
+    }
+
+    /**
+     * The points kept, in timestamp order. Reduces the last buckets so no more data
+     * points can be added afterwards.
+     */
+    public DataPointBatch get() {
+        if (!finished) {
+            finished = true;
+            if (Method.LTTB.equals(method)) {
+                finishTriangles();
+            } else {
+                keepExtremes();
+            }
+        }
+        return result;
+    }
+
+    /*
+     * bucket of a timestamp within the range
+     */
+    private int bucket(long timestamp) {
+        int bucket = (int) ((double) (timestamp - start) / (end - start) * buckets);
+        return Math.min(bucket, buckets - 1);
+    }
+
+    private void triangle(long timestamp, double value) {
+        if (count == 1) {
+            keep(timestamp, value);
+            return;
+        }
+        int bucket = bucket(timestamp);
+        if (next.size() > 0 && bucket != nextBucket) {
+            // the next bucket is complete, the current one can be reduced
+            reduceCurrent();
+            DataPointBatch reduced = current;
+            current = next;
+            next = reduced;
+            next.clear();
+        }
+        if (current.size() == 0 || (next.size() == 0 && bucket == bucket(current.getTimestamp(0)))) {
+            current.add(timestamp, value);
+        } else {
+            nextBucket = bucket;
+            next.add(timestamp, value);
+        }
+    }
+
+    private void finishTriangles() {
+        if (next.size() > 0) {
+            reduceCurrent();
+            current = next;
+        }
+        int n = current.size();
+        if (n > 1) {
+            // the last data point is kept, and the largest triangle of the others with it
+            keepLargest(current, n - 1, current.getTimestamp(n - 1), current.getValue(n - 1));
+        }
+        if (n > 0) {
+            keep(current.getTimestamp(n - 1), current.getValue(n - 1));
+        }
+    }
+
+    /*
+     * keeps the point of the current bucket forming the largest triangle with the point
+     * kept last and the average of the next bucket
+     */
+    private void reduceCurrent() {
+        double timestamp = 0;
+        double value = 0;
+        for (int i = 0; i < next.size(); i++) {
+            timestamp += (next.getTimestamp(i) - timestamp) / (i + 1);
+            value += (next.getValue(i) - value) / (i + 1);
+        }
+        keepLargest(current, current.size(), timestamp, value);
+    }
+
+    /*
+     * keeps the point of the first n of a bucket forming the largest triangle with the
+     * point kept last and the given one
+     */
+    private void keepLargest(DataPointBatch bucket, int n, double timestamp, double value) {
+        double dx = timestamp - keptTimestamp;
+        double dy = value - keptValue;
+        int largest = 0;
+        double area = -1;
+        for (int i = 0; i < n; i++) {
+            double a = Math.abs((bucket.getTimestamp(i) - keptTimestamp) * dy - dx * (bucket.getValue(i) - keptValue));
+            if (a > area) {
+                area = a;
+                largest = i;
+            }
+        }
+        keep(bucket.getTimestamp(largest), bucket.getValue(largest));
+    }
+
+    private void keep(long timestamp, double value) {
+        keptTimestamp = timestamp;
+        keptValue = value;
+        result.add(timestamp, value);
+    }
+
+    private void extremes(long timestamp, double value) {
+        int bucket = bucket(timestamp);
+        if (bucket != column) {
+            keepExtremes();
+            column = bucket;
+            minTimestamp = timestamp;
+            min = value;
+            maxTimestamp = timestamp;
+            max = value;
+        } else if (value < min) {
+            minTimestamp = timestamp;
+            min = value;
+        } else if (value > max) {
+            maxTimestamp = timestamp;
+            max = value;
+        }
+    }
+
+    private void keepExtremes() {
+        if (column < 0) {
+            return;
+        }
+        if (minTimestamp == maxTimestamp && Double.compare(min, max) == 0) {
+            result.add(minTimestamp, min);
+        } else if (minTimestamp <= maxTimestamp) {
+            result.add(minTimestamp, min);
+            result.add(maxTimestamp, max);
+        } else {
+            result.add(maxTimestamp, max);
+            result.add(minTimestamp, min);
+        }
+        column = -1;
+    }
+}
@@ -0,0 +1,204 @@
+package com.digi.data.timeseries;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the same query over many streams, ie one per device, with a thread per
+ * stream that iterates its StreamSnapshot. On java 21 and newer these are
+ * virtual threads so a fleet scan costs sockets rather than platform threads,
+ * on older jvms the executor of the service is used instead.
+ *
+ * The number of streams queried at once across all fleet queries of a service
+ * is capped by DataStreamService.setFleetConcurrency(). Every stream is queried
+ * even when others fail, the failures are reported together once all streams
+ * were queried.
+ *
+ * <pre>
+ * service.getFleet(names, Float.class, Aggregate.Max, Interval.Hour, start, end).run(
+ *         new FleetQuery.Handler&lt;Float>() {
+ *             public void stream(DataStream&lt;Float> stream, StreamSnapshot&lt;Float> snapshot) {
+ *                 for (DataPoint&lt;Float> point : snapshot) {
+ *                     ...
+ *                 }
+ *             }
+ *         });
+ * </pre>
+ */
+public class FleetQuery<DataType> {
+    private static final Logger log = LoggerFactory.getLogger(FleetQuery.class);
+    private static final Method virtualThreads = virtualThreadFactory();
+
+    /**
+     * Receives the snapshot of each stream, called concurrently for different streams on
+     * the thread that queries the stream
+     */
+    public interface Handler<DataType> {
+        /**
+         * iterate the data points of one stream, an exception marks the stream as failed
+         */
+        void stream(DataStream<DataType> stream, StreamSnapshot<DataType> snapshot) throws Exception;
+    }
+
+    /**
+     * Thrown by run() when the query failed for some of the streams
+     */
+    public static class FleetException extends DataServiceException {
+        private static final long serialVersionUID = -2217096421460871633L;
+        private final Map<String, Exception> failures;
+
+        FleetException(Map<String, Exception> failures, int streams) {
+            super(failures.size() + " of " + streams + " streams failed, first "
+                    + failures.keySet().iterator().next() + ": "
+                    + failures.values().iterator().next().getMessage());
+            this.failures = Collections.unmodifiableMap(failures);
+            for (Exception e : failures.values()) {
+                addSuppressed(e);
+            }
+        }
+
+        /**
+         * why each failed stream failed, by stream name
+         */
+        public Map<String, Exception> getFailures() {
+            return failures;
+        }
+    }
+
+    private final DataStreamService service;
+    private final List<String> streamNames;
+    private final Class<? extends DataType> type;
+    private final Aggregate aggregate;
+    private final Interval interval;
+    private final long start;
+    private final long end;
+
+    FleetQuery(DataStreamService service, Collection<String> streamNames, Class<? extends DataType> type,
+            Aggregate aggregate, Interval interval, long start, long end) {
+        this.service = service;
+        this.streamNames = new ArrayList<String>(streamNames);
+        this.type = type;
+        this.aggregate = aggregate == null ? Aggregate.None : aggregate;
+        this.interval = interval == null ? Interval.None : interval;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * true if streams are queried on virtual threads
+     */
+    public static boolean isVirtual() {
+        return virtualThreads != null;
+    }
+
+    /**
+     * Query every stream and pass its snapshot to the handler, returns once all streams
+     * were queried
+     *
+     * @param handler
+     * @return number of streams queried
+     * @throws FleetException
+     *             if the query or the handler failed for any stream
+     * @throws InterruptedException
+     *             if interrupted while waiting, streams already started are closed
+     */
+    public int run(final Handler<DataType> handler) throws FleetException, InterruptedException {
+        final Map<String, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<String, Exception>());
+        final Semaphore permits = service.getFleetPermits();
+        final CountDownLatch done = new CountDownLatch(streamNames.size());
+        final List<StreamSnapshot<DataType>> running = Collections
+                .synchronizedList(new ArrayList<StreamSnapshot<DataType>>());
+        ExecutorService executor = executor();
+        try {
+            for (final String name : streamNames) {
+                permits.acquire();
+                final StreamSnapshot<DataType> snapshot = service.<DataType> getStream(name, type).get(aggregate,
+                        interval, start, end);
+                Runnable task = new Runnable() {
+                    public void run() {
+                        running.add(snapshot);
+                        try {
+                            handler.stream(snapshot.getStream(), snapshot);
+                            if (snapshot.failed()) {
+                                Exception cause = snapshot.failure();
+                                failures.put(name, new DataServiceException("Failed reading " + name
+                                        + (cause == null ? "" : ": " + cause.getMessage()), cause));
+                            }
+                        } catch (Exception e) {
+                            failures.put(name, e);
+                        } finally {
+                            running.remove(snapshot);
+                            permits.release();
+                            done.countDown();
+                        }
+                    }
+                };
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    failures.put(name, e);
+                    permits.release();
+                    done.countDown();
+                }
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            synchronized (running) {
+                for (StreamSnapshot<DataType> snapshot : running) {
+                    snapshot.close();
+                }
+            }
+            throw e;
+        } finally {
+            if (executor != service.getExecutor()) {
+                executor.shutdown();
+            }
+        }
+        if (!failures.isEmpty()) {
+            log.debug(failures.size() + " of " + streamNames.size() + " streams failed");
+            throw new FleetException(new LinkedHashMap<String, Exception>(failures), streamNames.size());
+        }
+        return streamNames.size();
+    }
+
+    /*
+     * a virtual thread per stream when available, the services executor otherwise
+     */
+    private ExecutorService executor() {
+        if (virtualThreads != null) {
+            try {
+                return (ExecutorService) virtualThreads.invoke(null);
+            } catch (Exception e) {
+                log.debug("Cannot create virtual threads, using the service executor: " + e.getMessage());
+            }
+        }
+        return service.getExecutor();
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor() if this jvm has it, looked up by name so
+     * the library still runs on older jvms
+     */
+    private static Method virtualThreadFactory() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // fails on jvms where virtual threads are a preview that is not enabled
+            ((ExecutorService) factory.invoke(null)).shutdown();
+            return factory;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.digi.data.timeseries;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of recorded values in log linear buckets, like an HdrHistogram with a
+ * precision of about 6%: values below 32 have a bucket each, every power of two
+ * above is split into 16 buckets. Values from 2^40 (about 18 minutes in ns) on
+ * share the last bucket. Recording is lock free, reading while recording gives
+ * a slightly inconsistent but usable view.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int HALF = SUB >> 1;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = SUB + (MAX_BITS - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * count a value, negative ones as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+        }
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * sum of the recorded values
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * smallest recorded value, 0 if none
+     */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * largest recorded value, 0 if none
+     */
+    public long getMax() {
+        return count.get() == 0 ? 0 : max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * The value at or below which the given share of the values are, ie 0.99 for the
+     * 99th percentile. Within the precision of the buckets, never more than getMax().
+     */
+    public long getPercentile(double share) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, share)) * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upper(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /*
+     * bucket of a value, exact below SUB, otherwise by its top SUB_BITS bits
+     */
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits > MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = bits - SUB_BITS;
+        return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /*
+     * largest value of a bucket
+     */
+    static long upper(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = (index - SUB) / HALF + 1;
+        long top = (index - SUB) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram [count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(0.5)
+                + ", p99=" + getPercentile(0.99) + ", max=" + getMax() + "]";
+    }
+}
@@ -0,0 +1,294 @@
+package com.digi.data.timeseries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics kept in memory for a dashboard or a log line: latency and parse time
+ * histograms, bytes, data points, retries and errors per endpoint and stream,
+ * the wait for pooled connections and the hit ratio of each cache.
+ *
+ * Every tracked stream costs two histograms of a few KB, streams beyond
+ * maxStreams are added up under the stream name OTHER.
+ *
+ * <pre>
+ * InMemoryMetrics metrics = new InMemoryMetrics();
+ * service.setMetrics(metrics);
+ * ...
+ * for (InMemoryMetrics.Stats stats : metrics.getSlowest(10)) {
+ *     log.info(stats.toString());
+ * }
+ * </pre>
+ */
+public class InMemoryMetrics implements Metrics {
+    /**
+     * stream name the streams beyond maxStreams are counted under
+     */
+    public static final String OTHER = "*";
+
+    private final int maxStreams;
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final Histogram poolWait = new Histogram();
+    private final ConcurrentHashMap<String, AtomicLong[]> caches = new ConcurrentHashMap<String, AtomicLong[]>();
+
+    /**
+     * tracks up to 256 endpoint and stream pairs
+     */
+    public InMemoryMetrics() {
+        this(256);
+    }
+
+    public InMemoryMetrics(int maxStreams) {
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * What was measured for the requests of one endpoint and stream
+     */
+    public static class Stats {
+        private final String endpoint;
+        private final String stream;
+        private final Histogram latency = new Histogram();
+        private final Histogram parse = new Histogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong pages = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong points = new AtomicLong();
+        private final AtomicLong allocated = new AtomicLong();
+
+        Stats(String endpoint, String stream) {
+            this.endpoint = endpoint;
+            this.stream = stream;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getStream() {
+            return stream;
+        }
+
+        /**
+         * ns until the response headers arrived, for every request
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * ns reading and parsing each page
+         */
+        public Histogram getParse() {
+            return parse;
+        }
+
+        public long getRequests() {
+            return latency.getCount();
+        }
+
+        /**
+         * requests answered with an error status or not at all
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public long getPages() {
+            return pages.get();
+        }
+
+        /**
+         * bytes received, compressed if the responses were
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * records read, data points or streams
+         */
+        public long getPoints() {
+            return points.get();
+        }
+
+        /**
+         * bytes of heap allocated while parsing, where the jvm reports it
+         */
+        public long getAllocated() {
+            return allocated.get();
+        }
+
+        /**
+         * records read per second spent waiting for and parsing responses
+         */
+        public double getPointsPerSecond() {
+            long nanos = latency.getTotal() + parse.getTotal();
+            return nanos == 0 ? 0 : points.get() * 1e9 / nanos;
+        }
+
+        /*
+         * total ns spent on the requests
+         */
+        long time() {
+            return latency.getTotal() + parse.getTotal();
+        }
+
+        @Override
+        public String toString() {
+            return endpoint + " " + stream + ": " + getRequests() + " requests (" + errors + " failed, " + retries
+                    + " retried), latency p50 " + ms(latency.getPercentile(0.5)) + "ms p99 "
+                    + ms(latency.getPercentile(0.99)) + "ms, parse p50 " + ms(parse.getPercentile(0.5)) + "ms, "
+                    + points + " points in " + pages + " pages, " + bytes + " bytes, " + (long) getPointsPerSecond()
+                    + " points/s, " + allocated + " bytes allocated";
+        }
+
+        private static long ms(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    public void request(String endpoint, String stream, int status, long latencyNanos) {
+        Stats s = stats(endpoint, stream);
+        s.latency.record(latencyNanos);
+        if (status < 200 || status >= 400) {
+            s.errors.incrementAndGet();
+        }
+    }
+
+    public void page(String endpoint, String stream, long bytes, int records, long parseNanos, long allocatedBytes) {
+        Stats s = stats(endpoint, stream);
+        s.parse.record(parseNanos);
+        s.pages.incrementAndGet();
+        s.bytes.addAndGet(bytes);
+        s.points.addAndGet(records);
+        if (allocatedBytes > 0) {
+            s.allocated.addAndGet(allocatedBytes);
+        }
+    }
+
+    public void retry(String endpoint, String stream) {
+        stats(endpoint, stream).retries.incrementAndGet();
+    }
+
+    public void poolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+
+    public void cache(String cache, boolean hit) {
+        AtomicLong[] counts = caches.get(cache);
+        if (counts == null) {
+            caches.putIfAbsent(cache, new AtomicLong[] { new AtomicLong(), new AtomicLong() });
+            counts = caches.get(cache);
+        }
+        counts[hit ? 0 : 1].incrementAndGet();
+    }
+
+    /**
+     * what was measured for an endpoint and stream, null if nothing was
+     */
+    public Stats getStats(String endpoint, String stream) {
+        return stats.get(endpoint + " " + stream);
+    }
+
+    /**
+     * everything measured, in no particular order
+     */
+    public List<Stats> getStats() {
+        return new ArrayList<Stats>(stats.values());
+    }
+
+    /**
+     * the endpoint and stream pairs that took the longest in total, slowest first
+     */
+    public List<Stats> getSlowest(int n) {
+        List<Stats> all = getStats();
+        Collections.sort(all, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                long ta = a.time();
+                long tb = b.time();
+                return ta > tb ? -1 : ta < tb ? 1 : 0;
+            }
+        });
+        return all.subList(0, Math.min(n, all.size()));
+    }
+
+    /**
+     * ns requests waited for a pooled connection
+     */
+    public Histogram getPoolWait() {
+        return poolWait;
+    }
+
+    public long getHits(String cache) {
+        AtomicLong[] counts = caches.get(cache);
+        return counts == null ? 0 : counts[0].get();
+    }
+
+    public long getMisses(String cache) {
+        AtomicLong[] counts = caches.get(cache);
+        return counts == null ? 0 : counts[1].get();
+    }
+
+    /**
+     * share of the lookups in the cache that were hits, NaN if there were none
+     */
+    public double getHitRatio(String cache) {
+        long hits = getHits(cache);
+        long total = hits + getMisses(cache);
+        return total == 0 ? Double.NaN : (double) hits / total;
+    }
+
+    /**
+     * forget everything measured
+     */
+    public void reset() {
+        stats.clear();
+        caches.clear();
+        poolWait.reset();
+    }
+
+    private Stats stats(String endpoint, String stream) {
+        String key = endpoint + " " + stream;
+        Stats s = stats.get(key);
+        if (s == null) {
+            if (stats.size() >= maxStreams) {
+                stream = OTHER;
+                key = endpoint + " " + OTHER;
+                s = stats.get(key);
+                if (s != null) {
+                    return s;
+                }
+            }
+            Stats created = new Stats(endpoint, stream);
+            s = stats.putIfAbsent(key, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stats s : getSlowest(Integer.MAX_VALUE)) {
+            sb.append(s).append('\n');
+        }
+        sb.append("pool wait ").append(poolWait).append('\n');
+        for (String cache : caches.keySet()) {
+            sb.append(cache).append(" cache hit ratio ").append(getHitRatio(cache)).append('\n');
+        }
+        return sb.toString();
+    }
+}
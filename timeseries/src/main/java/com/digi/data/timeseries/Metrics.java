@@ -0,0 +1,73 @@
+package com.digi.data.timeseries;
+
+/**
+ * Receives measurements of the work a DataStreamService does, set with
+ * DataStreamService.setMetrics(). Methods are called on the threads doing the
+ * work, implementations have to be thread safe and cheap. NONE, the default,
+ * drops everything, InMemoryMetrics keeps histograms per endpoint and stream.
+ *
+ * Endpoints are DATA_POINT and DATA_STREAM, the stream is the stream name or
+ * for DATA_STREAM the path whose streams were listed.
+ */
+public interface Metrics {
+    String DATA_POINT = "DataPoint";
+    String DATA_STREAM = "DataStream";
+
+    /**
+     * the metadata cache of the service
+     */
+    String METADATA_CACHE = "metadata";
+    /**
+     * the segment cache, counted per range served from a segment or fetched
+     */
+    String SEGMENT_CACHE = "segment";
+
+    /**
+     * records nothing
+     */
+    Metrics NONE = new Metrics() {
+        public void request(String endpoint, String stream, int status, long latencyNanos) {
+        }
+
+        public void page(String endpoint, String stream, long bytes, int records, long parseNanos,
+                long allocatedBytes) {
+        }
+
+        public void retry(String endpoint, String stream) {
+        }
+
+        public void poolWait(long nanos) {
+        }
+
+        public void cache(String cache, boolean hit) {
+        }
+    };
+
+    /**
+     * a request was answered with the status after latencyNanos, until the headers
+     * arrived. The status is -1 if no response arrived.
+     */
+    void request(String endpoint, String stream, int status, long latencyNanos);
+
+    /**
+     * a page of records was read, bytes is what was received before decompressing,
+     * parseNanos the time reading and parsing the body took and allocatedBytes the heap
+     * the parsing thread allocated meanwhile, -1 if the jvm does not tell.
+     */
+    void page(String endpoint, String stream, long bytes, int records, long parseNanos, long allocatedBytes);
+
+    /**
+     * a failed page is read again
+     */
+    void retry(String endpoint, String stream);
+
+    /**
+     * a request waited this long for a connection of the pool
+     */
+    void poolWait(long nanos);
+
+    /**
+     * a lookup in one of the caches was a hit or a miss
+     */
+    void cache(String cache, boolean hit);
+}
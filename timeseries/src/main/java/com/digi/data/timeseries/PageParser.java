@@ -0,0 +1,165 @@
+package com.digi.data.timeseries;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single pass pull parser for the paged results returned by the /ws web
+ * services. Each record element (ie DataPoint or DataStream) is handed to a
+ * Handler one child element at a time as it is read off the stream, so no DOM
+ * or intermediate xml strings are ever created.
+ */
+final class PageParser {
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Receives the contents of each record element in a page in document order
+     */
+    interface Handler {
+        /**
+         * a new record element was opened
+         */
+        void startRecord();
+
+        /**
+         * a child element of the current record, value is its text content
+         */
+        void field(String name, String value);
+
+        /**
+         * the current record element was closed
+         */
+        void endRecord();
+    }
+
+    /**
+     * What was read from a page besides the records
+     */
+    static final class Page {
+        /**
+         * cursor to continue from, null if the page did not have one
+         */
+        final String cursor;
+
+        /**
+         * number of record elements in the page
+         */
+        final int records;
+
+        Page(String cursor, int records) {
+            this.cursor = cursor;
+            this.records = records;
+        }
+    }
+
+    private PageParser() {
+    }
+
+    /**
+     * Parse a page of results, calling the handler for every element named
+     * recordElement. Elements nested inside of a records child (ie
+     * currentValue in a DataStream) are skipped.
+     *
+     * @param in
+     *            response body, not closed by this method
+     * @param recordElement
+     *            name of the elements to treat as records
+     * @param handler
+     * @return the pageCursor and number of records read
+     * @throws XMLStreamException
+     */
+    static Page parse(InputStream in, String recordElement, Handler handler) throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            String cursor = null;
+            int records = 0;
+            boolean root = true;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if (root) {
+                    // newer servers report the cursor as an attribute of the result
+                    cursor = reader.getAttributeValue(null, "pageCursor");
+                    root = false;
+                }
+                String name = reader.getLocalName();
+                if (name.equals(recordElement)) {
+                    handler.startRecord();
+                    readRecord(reader, handler);
+                    handler.endRecord();
+                    records++;
+                } else if (name.equals("pageCursor")) {
+                    cursor = readText(reader);
+                }
+            }
+            return new Page(cursor == null || cursor.length() == 0 ? null : cursor, records);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * reads each child of the record until the records end element
+     */
+    private static void readRecord(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                handler.field(name, readText(reader));
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * returns the direct text content of the current element and leaves the
+     * reader on its end element. Text of nested elements is ignored.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        String text = null;
+        StringBuilder sb = null;
+        int depth = 0;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (depth-- == 0) {
+                    return sb != null ? sb.toString() : text == null ? "" : text;
+                }
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (depth == 0) {
+                    // coalescing usually gives us a single event, avoid the copy
+                    if (text == null) {
+                        text = reader.getText();
+                    } else {
+                        if (sb == null) {
+                            sb = new StringBuilder(text);
+                        }
+                        sb.append(reader.getText());
+                    }
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return text == null ? "" : text;
+    }
+}
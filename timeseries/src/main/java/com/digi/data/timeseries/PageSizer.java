@@ -0,0 +1,92 @@
+package com.digi.data.timeseries;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the number of data points to ask for in the next page of a scan. A
+ * fixed sizer always asks for the same size, an adaptive one learns from the
+ * pages read so far: every request pays a round trip on top of the time spent
+ * transferring and parsing its points, so pages grow while the round trip is a
+ * large share of the time a page takes, and shrink again when single pages get
+ * so slow that consumers wait too long for them.
+ *
+ * A server that returns smaller pages than asked for while still having more
+ * caps the size, asking for more would only be ignored.
+ */
+final class PageSizer {
+    /*
+     * grow while the round trip takes more than this share of a page
+     */
+    static final double GROW_OVERHEAD = 0.25;
+    /*
+     * shrink pages that take longer than this
+     */
+    static final long SLOW_PAGE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final int min;
+    private int max;
+    private int size;
+
+    /*
+     * always asks for size
+     */
+    PageSizer(int size) {
+        this(size, size, size);
+    }
+
+    /*
+     * starts with initial, adapting between min and max
+     */
+    PageSizer(int min, int max, int initial) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid page sizes " + min + " to " + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.size = Math.max(min, Math.min(max, initial));
+    }
+
+    /*
+     * a sizer for another scan of the same query, starting from what this one learned
+     */
+    synchronized PageSizer copy() {
+        return new PageSizer(min, max, size);
+    }
+
+    /*
+     * data points to ask for in the next page
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /*
+     * learn from a page that was asked for requested data points and had records of them,
+     * latency is the time until the response arrived and parse the time reading it took
+     */
+    synchronized void paged(int requested, int records, boolean more, long latencyNanos, long parseNanos) {
+        if (min == max || requested != size) {
+            return;
+        }
+        if (records < requested) {
+            if (more && records > 0) {
+                // the server pages at less than was asked for
+                max = Math.max(min, records);
+                size = Math.min(size, max);
+            }
+            // the last page says nothing about the cost of full ones
+            return;
+        }
+        long total = latencyNanos + parseNanos;
+        if (total > SLOW_PAGE_NANOS) {
+            size = Math.max(min, size / 2);
+        } else if (latencyNanos > total * GROW_OVERHEAD) {
+            size = (int) Math.min(max, size * 2L);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PageSizer [min=" + min + ", max=" + max + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,412 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans a time range by splitting it into sub ranges that are fetched
+ * concurrently, each with its own cursor chain. Data points are returned in
+ * timestamp order by default, or in whatever order the pages arrive when
+ * unordered. At most getParallelism() sub ranges are fetched at once, which is
+ * never more than the connections per route of the services http client. When
+ * ordered, each sub range reads up to pointsAhead() data points ahead of the
+ * consumer so the ranges after the one being consumed keep fetching.
+ *
+ * <pre>
+ * for (DataPoint&lt;Float> data : stream.getParallel(start, end, 4)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * Rollups can be scanned in parallel when the interval has a fixed length
+ * (Half, Hour), sub ranges are aligned to the interval in the services
+ * timezone so no bucket is split.
+ *
+ * A sub range that cannot be read, even after retrying, fails the scan with a
+ * ScanFailedException rather than ending it early.
+ */
+public class ParallelScan<DataType> implements Iterator<DataPoint<DataType>>, Iterable<DataPoint<DataType>>,
+        Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ParallelScan.class);
+    /**
+     * number of sub ranges created per concurrent fetch, so a slow range does not
+     * hold up the others
+     */
+    static final int PARTITIONS_PER_THREAD = 4;
+    /**
+     * pages each sub range reads ahead of the consumer when unordered
+     */
+    static final int PAGES_AHEAD = 2;
+    /**
+     * data points each sub range reads ahead of the consumer when ordered, by default
+     */
+    public static final int POINTS_AHEAD = 10000;
+    private static final Object END = new Object();
+
+    private final DataStream<DataType> stream;
+    private final Aggregate aggregate;
+    private final Interval interval;
+    private final long start;
+    private final long end;
+    private final int parallelism;
+    private final boolean ordered;
+    private ExecutorService executor;
+    private int pointsAhead = POINTS_AHEAD;
+
+    private volatile List<Partition> partitions;
+    private BlockingQueue<Object> unorderedPages;
+    private final AtomicInteger nextToStart = new AtomicInteger();
+    private int current = 0;
+    private int finished = 0;
+    // the page being consumed and the position in it
+    private List<DataPoint<DataType>> buffer = Collections.emptyList();
+    private int position = 0;
+    private volatile boolean closed = false;
+    private ScanFailedException failure = null;
+
+    ParallelScan(DataStream<DataType> stream, Aggregate aggregate, Interval interval, long start, long end,
+            int parallelism, boolean ordered) {
+        if (start < 0 || end < 0 || end <= start) {
+            throw new IllegalArgumentException("Parallel scans need an explicit start and end time");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.stream = stream;
+        this.aggregate = aggregate == null ? Aggregate.None : aggregate;
+        this.interval = interval == null ? Interval.None : interval;
+        this.start = start;
+        this.end = end;
+        this.ordered = ordered;
+        this.parallelism = Math.min(parallelism, stream.getService().getMaxConnectionsPerRoute());
+        if (intervalLength(this.interval) < 0) {
+            throw new IllegalArgumentException("Rollups by " + this.interval + " cannot be split, only "
+                    + "fixed length intervals can be scanned in parallel");
+        }
+    }
+
+    /**
+     * number of sub ranges fetched at once
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * true if data points are returned in timestamp order
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Executor to fetch the sub ranges on, defaults to the services executor. Must be
+     * set before iterating.
+     *
+     * @return this scan
+     */
+    public synchronized ParallelScan<DataType> executor(ExecutorService executor) {
+        if (partitions != null) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Data points each sub range may read ahead of the consumer when ordered, a sub
+     * range waits once it has this many buffered. Must be set before iterating.
+     *
+     * @return this scan
+     */
+    public synchronized ParallelScan<DataType> pointsAhead(int points) {
+        if (partitions != null) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        if (points < 1) {
+            throw new IllegalArgumentException("At least one data point has to be read ahead");
+        }
+        this.pointsAhead = points;
+        return this;
+    }
+
+    /**
+     * returns true if there are additional data points in the range
+     *
+     * @throws ScanFailedException
+     *             if a sub range could not be read, the scan is closed
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized boolean hasNext() {
+        if (partitions == null) {
+            begin();
+        }
+        while (position >= buffer.size() && failure == null && !closed && finished < partitions.size()) {
+            try {
+                Object page = ordered ? partitions.get(current).take() : unorderedPages.poll(1, TimeUnit.SECONDS);
+                if (page == null) {
+                    continue;
+                } else if (page == END) {
+                    finished++;
+                    current++;
+                } else if (page instanceof Exception) {
+                    Exception e = (Exception) page;
+                    log.error(e.getMessage(), e);
+                    failure = new ScanFailedException("Parallel scan of " + stream.getStreamName() + " failed: "
+                            + e.getMessage(), e, null);
+                    close();
+                } else {
+                    buffer = (List<DataPoint<DataType>>) page;
+                    position = 0;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new ScanFailedException("Parallel scan of " + stream.getStreamName() + " was interrupted",
+                        e, null);
+                close();
+            }
+        }
+        if (position < buffer.size()) {
+            return true;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return false;
+    }
+
+    /**
+     * fetches the next data point
+     *
+     * @throws ScanFailedException
+     *             if a sub range could not be read
+     */
+    public synchronized DataPoint<DataType> next() {
+        if (!hasNext())
+            throw new IndexOutOfBoundsException();
+        return buffer.get(position++);
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Each call creates a new scan of the same range
+     */
+    public Iterator<DataPoint<DataType>> iterator() {
+        return new ParallelScan<DataType>(stream, aggregate, interval, start, end, parallelism, ordered)
+                .executor(executor).pointsAhead(pointsAhead);
+    }
+
+    /**
+     * Stops fetching the remaining sub ranges
+     */
+    public void close() {
+        closed = true;
+        List<Partition> ps = partitions;
+        if (ps != null) {
+            for (Partition p : ps) {
+                p.cancel();
+            }
+        }
+    }
+
+    /*
+     * split the range and start the first sub ranges
+     */
+    private void begin() {
+        if (executor == null) {
+            executor = stream.getService().getExecutor();
+        }
+        List<Partition> partitions = new ArrayList<Partition>();
+        long length = intervalLength(interval);
+        long[] bounds = split(start, end, parallelism * PARTITIONS_PER_THREAD, length, offset());
+        if (!ordered) {
+            unorderedPages = new LinkedBlockingQueue<Object>(parallelism * PAGES_AHEAD + parallelism);
+        }
+        for (int i = 0; i < bounds.length - 1; i++) {
+            boolean last = i == bounds.length - 2;
+            partitions.add(new Partition(bounds[i], bounds[i + 1], last));
+        }
+        this.partitions = partitions;
+        for (int i = 0; i < parallelism; i++) {
+            startNext();
+        }
+    }
+
+    /*
+     * sub ranges are started in order as earlier ones complete, so the one being
+     * consumed is always running
+     */
+    private void startNext() {
+        int i = nextToStart.getAndIncrement();
+        if (!closed && i < partitions.size()) {
+            partitions.get(i).start();
+        }
+    }
+
+    /*
+     * timezone offset at the start of the scan, to align rollup buckets
+     */
+    private long offset() {
+        String tz = stream.getService().getTimezone();
+        return tz == null ? 0 : TimeZone.getTimeZone(tz).getOffset(start);
+    }
+
+    /*
+     * length of the rollup interval in ms, 0 for raw data and -1 when the length varies
+     */
+    static long intervalLength(Interval interval) {
+        switch (interval) {
+        case None:
+            return 0;
+        case Half:
+            return TimeUnit.MINUTES.toMillis(30);
+        case Hour:
+            return TimeUnit.HOURS.toMillis(1);
+        default:
+            return -1;
+        }
+    }
+
+    /*
+     * boundaries of up to count sub ranges of [start, end), aligned to multiples of unit
+     * in local time when unit is set
+     */
+    static long[] split(long start, long end, int count, long unit, long offset) {
+        long step = Math.max(1, (end - start + count - 1) / count);
+        if (unit > 0) {
+            step = Math.max(unit, (step / unit) * unit);
+        }
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(start);
+        long next = start + step;
+        while (next < end) {
+            if (unit > 0) {
+                next = Math.floorDiv(next + offset, unit) * unit - offset;
+            }
+            if (next > bounds.get(bounds.size() - 1)) {
+                bounds.add(next);
+            }
+            next += step;
+        }
+        bounds.add(end);
+        long[] ret = new long[bounds.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = bounds.get(i);
+        }
+        return ret;
+    }
+
+    /*
+     * fetches one sub range page by page on the executor
+     */
+    private class Partition implements Runnable {
+        private final long from;
+        private final long to;
+        private final boolean last;
+        private final BlockingQueue<Object> pages;
+        // data points in pages not taken yet, when ordered
+        private int buffered = 0;
+        private StreamSnapshot<DataType> snapshot;
+        private Future<?> task;
+        private volatile boolean cancelled = false;
+
+        Partition(long from, long to, boolean last) {
+            this.from = from;
+            this.to = to;
+            this.last = last;
+            this.pages = ordered ? new LinkedBlockingQueue<Object>() : unorderedPages;
+        }
+
+        synchronized void start() {
+            snapshot = new StreamSnapshot<DataType>(stream, from, to, interval, aggregate, null);
+            task = executor.submit(this);
+        }
+
+        public void run() {
+            Object marker = END;
+            try {
+                boolean more = true;
+                while (more && !cancelled) {
+                    List<DataPoint<DataType>> page = new ArrayList<DataPoint<DataType>>();
+                    more = snapshot.readPage(page);
+                    if (!last) {
+                        // the end time may be inclusive, leave points on the boundary to the next range
+                        int n = page.size();
+                        while (n > 0 && page.get(n - 1).getTimestamp() >= to) {
+                            n--;
+                        }
+                        page.subList(n, page.size()).clear();
+                    }
+                    if (!page.isEmpty()) {
+                        put(page);
+                    }
+                }
+            } catch (Exception e) {
+                marker = e;
+            } finally {
+                put(marker);
+                startNext();
+            }
+        }
+
+        private void put(Object page) {
+            try {
+                if (ordered) {
+                    int points = page instanceof List ? ((List<?>) page).size() : 0;
+                    synchronized (this) {
+                        // wait for the consumer, a page larger than the limit still goes on its own
+                        while (!cancelled && buffered > 0 && buffered + points > pointsAhead) {
+                            wait(1000);
+                        }
+                        buffered += points;
+                    }
+                    pages.add(page);
+                } else {
+                    while (!cancelled && !pages.offer(page, 1, TimeUnit.SECONDS)) {
+                        // wait for the consumer
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        /*
+         * the next page of an ordered scan, null if none arrived within a second
+         */
+        Object take() throws InterruptedException {
+            Object page = pages.poll(1, TimeUnit.SECONDS);
+            if (page instanceof List) {
+                synchronized (this) {
+                    buffered -= ((List<?>) page).size();
+                    notifyAll();
+                }
+            }
+            return page;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (task != null) {
+                task.cancel(true);
+                snapshot.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.digi.data.timeseries;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the rollups the server does with rollupInterval and rollupMethod
+ * locally, from raw data points that were already fetched. A single pass keeps
+ * the count, sum, minimum, maximum, mean and squared deviation of every bucket
+ * in primitive arrays so each Aggregate can be read out afterwards without
+ * fetching again.
+ *
+ * Buckets are aligned in the given timezone: Half and Hour on local half hours
+ * and hours, Day at local midnight, Week at midnight on Monday and Month at
+ * midnight of the first day. Each bucket is reported at its start time and
+ * only buckets with data points are reported. Standarddev is the population
+ * standard deviation.
+ *
+ * <pre>
+ * Rollup rollup = stream.rollup(Interval.Hour, start, end);
+ * DataPointBatch averages = rollup.get(Aggregate.Average);
+ * DataPointBatch maximums = rollup.get(Aggregate.Max);
+ * </pre>
+ */
+public class Rollup {
+    private static final long HALF = TimeUnit.MINUTES.toMillis(30);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final Interval interval;
+    private final TimeZone timezone;
+    private final Calendar calendar;
+    private long[] starts = new long[16];
+    private long[] counts = new long[16];
+    private double[] sums = new double[16];
+    private double[] mins = new double[16];
+    private double[] maxs = new double[16];
+    private double[] means = new double[16];
+    private double[] squares = new double[16];
+    private int size = 0;
+    // bucket the last data point was added to
+    private int current = -1;
+    private long currentStart;
+    private long currentEnd;
+
+    /**
+     * @param interval
+     *            bucket size, not None
+     * @param timezone
+     *            id of the timezone buckets are aligned in, null for UTC
+     */
+    public Rollup(Interval interval, String timezone) {
+        if (interval == null || Interval.None.equals(interval)) {
+            throw new IllegalArgumentException("Rollup needs an interval");
+        }
+        this.interval = interval;
+        this.timezone = TimeZone.getTimeZone(timezone == null ? "UTC" : timezone);
+        this.calendar = Calendar.getInstance(this.timezone);
+        calendar.setFirstDayOfWeek(Calendar.MONDAY);
+    }
+
+    /**
+     * Rollup aligned in the timezone of the service, like the servers rollups
+     * for that service
+     */
+    public static Rollup forService(DataStreamService service, Interval interval) {
+        return new Rollup(interval, service.getTimezone());
+    }
+
+    public Interval getInterval() {
+        return interval;
+    }
+
+    public TimeZone getTimezone() {
+        return timezone;
+    }
+
+    /**
+     * add a value to the bucket of its timestamp
+     */
+    public void add(long timestamp, double value) {
+        if (current < 0 || timestamp < currentStart || timestamp >= currentEnd) {
+            current = bucket(timestamp);
+        }
+        int i = current;
+        long n = ++counts[i];
+        sums[i] += value;
+        if (n == 1) {
+            mins[i] = value;
+            maxs[i] = value;
+        } else {
+            mins[i] = Math.min(mins[i], value);
+            maxs[i] = Math.max(maxs[i], value);
+        }
+        // Welford's update, stable for large counts
+        double delta = value - means[i];
+        means[i] += delta / n;
+        squares[i] += delta * (value - means[i]);
+    }
+
+    /*
+     * Adds count data points from first to last at once, given their sum, min, max,
+     * mean and squared deviation. False, and nothing is added, if first and last are not
+     * in the same bucket.
+     */
+    boolean add(long first, long last, long count, double sum, double min, double max, double mean,
+            double deviation) {
+        long start = start(first);
+        if (last >= end(start)) {
+            return false;
+        }
+        current = bucket(first);
+        int i = current;
+        long n = counts[i];
+        long total = n + count;
+        if (n == 0) {
+            mins[i] = min;
+            maxs[i] = max;
+        } else {
+            mins[i] = Math.min(mins[i], min);
+            maxs[i] = Math.max(maxs[i], max);
+        }
+        sums[i] += sum;
+        // the parallel form of Welford's update
+        double delta = mean - means[i];
+        means[i] += delta * count / total;
+        squares[i] += deviation + delta * delta * n * count / total;
+        counts[i] = total;
+        return true;
+    }
+
+    /**
+     * add every data point of a batch
+     */
+    public void add(DataPointBatch batch) {
+        long[] timestamps = batch.getTimestamps();
+        double[] values = batch.getValues();
+        for (int i = 0; i < batch.size(); i++) {
+            add(timestamps[i], values[i]);
+        }
+    }
+
+    /**
+     * add a numeric data point
+     *
+     * @throws ClassCastException
+     *             if the value is not numeric
+     */
+    public void add(DataPoint<?> point) {
+        add(point.getTimestamp(), point.getDoubleValue());
+    }
+
+    /**
+     * add the data points of a snapshot
+     *
+     * @throws ClassCastException
+     *             if a value is not numeric
+     */
+    public void addAll(Iterable<? extends DataPoint<?>> points) {
+        for (DataPoint<?> point : points) {
+            add(point);
+        }
+    }
+
+    /**
+     * number of buckets with data points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * start of the i'th bucket in ms since epoc, buckets are in timestamp order
+     */
+    public long getTimestamp(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return starts[i];
+    }
+
+    /**
+     * value of an aggregate for the i'th bucket
+     */
+    public double get(Aggregate aggregate, int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        switch (aggregate) {
+        case Sum:
+            return sums[i];
+        case Average:
+            return means[i];
+        case Count:
+            return counts[i];
+        case Max:
+            return maxs[i];
+        case Min:
+            return mins[i];
+        case Standarddev:
+            return Math.sqrt(squares[i] / counts[i]);
+        default:
+            throw new IllegalArgumentException("Not a rollup method: " + aggregate);
+        }
+    }
+
+    /**
+     * an aggregate for every bucket, in timestamp order
+     */
+    public DataPointBatch get(Aggregate aggregate) {
+        return get(aggregate, new DataPointBatch(size));
+    }
+
+    /**
+     * Clears the batch and fills it with an aggregate for every bucket
+     *
+     * @return the batch
+     */
+    public DataPointBatch get(Aggregate aggregate, DataPointBatch batch) {
+        batch.clear();
+        for (int i = 0; i < size; i++) {
+            batch.add(starts[i], get(aggregate, i));
+        }
+        return batch;
+    }
+
+    /**
+     * remove all buckets
+     */
+    public void clear() {
+        size = 0;
+        current = -1;
+    }
+
+    /*
+     * index of the bucket containing the timestamp, inserting it if new
+     */
+    private int bucket(long timestamp) {
+        currentStart = start(timestamp);
+        currentEnd = end(currentStart);
+        int i = Arrays.binarySearch(starts, 0, size, currentStart);
+        if (i >= 0) {
+            return i;
+        }
+        i = -(i + 1);
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            means = Arrays.copyOf(means, capacity);
+            squares = Arrays.copyOf(squares, capacity);
+        }
+        if (i < size) {
+            // out of order data point, make room
+            int move = size - i;
+            System.arraycopy(starts, i, starts, i + 1, move);
+            System.arraycopy(counts, i, counts, i + 1, move);
+            System.arraycopy(sums, i, sums, i + 1, move);
+            System.arraycopy(mins, i, mins, i + 1, move);
+            System.arraycopy(maxs, i, maxs, i + 1, move);
+            System.arraycopy(means, i, means, i + 1, move);
+            System.arraycopy(squares, i, squares, i + 1, move);
+        }
+        starts[i] = currentStart;
+        counts[i] = 0;
+        sums[i] = 0;
+        mins[i] = 0;
+        maxs[i] = 0;
+        means[i] = 0;
+        squares[i] = 0;
+        size++;
+        return i;
+    }
+
+    /*
+     * start of the bucket containing the timestamp
+     */
+    private long start(long timestamp) {
+        switch (interval) {
+        case Half:
+        case Hour:
+            long length = Interval.Half.equals(interval) ? HALF : HOUR;
+            int offset = timezone.getOffset(timestamp);
+            return Math.floorDiv(timestamp + offset, length) * length - offset;
+        default:
+            calendar.setTimeInMillis(timestamp);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            if (Interval.Week.equals(interval)) {
+                calendar.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
+            } else if (Interval.Month.equals(interval)) {
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+            }
+            return calendar.getTimeInMillis();
+        }
+    }
+
+    /*
+     * start of the bucket following the one starting at start
+     */
+    private long end(long start) {
+        switch (interval) {
+        case Half:
+            return start + HALF;
+        case Hour:
+            return start + HOUR;
+        default:
+            calendar.setTimeInMillis(start);
+            if (Interval.Day.equals(interval)) {
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            } else if (Interval.Week.equals(interval)) {
+                calendar.add(Calendar.WEEK_OF_YEAR, 1);
+            } else {
+                calendar.add(Calendar.MONTH, 1);
+            }
+            return calendar.getTimeInMillis();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.digi.data.timeseries;
+
+import java.io.Serializable;
+
+/**
+ * Where a scan over a StreamSnapshot stopped, taken with
+ * StreamSnapshot.checkpoint() or from a ScanFailedException. Continuing from it
+ * with DataStreamService.resume() returns the data points that were not handed
+ * out yet, also from another process since the checkpoint is serializable.
+ *
+ * The position is the pageCursor of the page that was being consumed and how
+ * many of the data points from that cursor on were handed out already, the
+ * cursor is null when that page was the first one.
+ *
+ * <pre>
+ * StreamSnapshot&lt;Float> snapshot = service.resume(checkpoint);
+ * try {
+ *     for (DataPoint&lt;Float> point : snapshot) {
+ *         ...
+ *     }
+ * } catch (ScanFailedException e) {
+ *     save(e.getCheckpoint());
+ * }
+ * </pre>
+ */
+public class ScanCheckpoint implements Serializable {
+    private static final long serialVersionUID = -6301459263720437785L;
+
+    private final String streamName;
+    private final Class<?> valueClass;
+    private final long start;
+    private final long end;
+    private final boolean reversed;
+    private final int size;
+    private final Interval interval;
+    private final Aggregate aggregate;
+    private final String join;
+    private final String cursor;
+    private final long skip;
+    private final long lastTimestamp;
+    private final boolean complete;
+
+    ScanCheckpoint(StreamSnapshot<?> snapshot, String cursor, long skip, long lastTimestamp, boolean complete,
+            int size) {
+        this.streamName = snapshot.getStream().getStreamName();
+        this.valueClass = snapshot.getStream().getValueClass();
+        this.start = snapshot.getStart();
+        this.end = snapshot.getEnd();
+        this.reversed = snapshot.isReversed();
+        this.size = size;
+        this.interval = snapshot.getInterval();
+        this.aggregate = snapshot.getAggregate();
+        this.join = snapshot.getJoin();
+        this.cursor = cursor;
+        this.skip = skip;
+        this.lastTimestamp = lastTimestamp;
+        this.complete = complete;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public Class<?> getValueClass() {
+        return valueClass;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    /**
+     * most data points still to be returned, -1 for all of the range
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public Interval getInterval() {
+        return interval;
+    }
+
+    public Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    public String getJoin() {
+        return join;
+    }
+
+    /**
+     * pageCursor of the page being consumed, null for the first page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * data points from the cursor on that were already handed out
+     */
+    public long getSkip() {
+        return skip;
+    }
+
+    /**
+     * timestamp of the last data point handed out, -1 if there was none
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * true if every data point of the scan was handed out
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanCheckpoint [streamName=" + streamName + ", start=" + start + ", end=" + end + ", cursor="
+                + cursor + ", skip=" + skip + ", lastTimestamp=" + lastTimestamp + ", complete=" + complete + "]";
+    }
+}
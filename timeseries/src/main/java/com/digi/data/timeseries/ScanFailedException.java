@@ -0,0 +1,24 @@
+package com.digi.data.timeseries;
+
+/**
+ * Thrown while iterating a StreamSnapshot or a ParallelScan when a page could
+ * not be read, even after retrying, instead of ending the iteration early. The
+ * checkpoint continues the scan after the last data point that was handed out.
+ */
+public class ScanFailedException extends RuntimeException {
+    private static final long serialVersionUID = 4811632957325014283L;
+    private final ScanCheckpoint checkpoint;
+
+    ScanFailedException(String message, Throwable cause, ScanCheckpoint checkpoint) {
+        super(message, cause);
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * where to resume the scan with DataStreamService.resume(), null if the scan cannot
+     * be resumed, ie a ParallelScan
+     */
+    public ScanCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+}
@@ -0,0 +1,425 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local on disk cache of fetched data point ranges. When set on a
+ * DataStreamService with setSegmentCache() every StreamSnapshot over an
+ * explicit time range is served from the cached segments that cover it and
+ * only the gaps are fetched from the server. Fetched gaps that are old enough
+ * to be closed (see setClosedAfter) are stored as new segments.
+ *
+ * Segments are kept per stream, interval, aggregate and timezone under the
+ * cache directory in the compact SegmentFile format and are read back through
+ * memory mapped buffers. Raw data is cached as [start, end) ranges that can be
+ * combined to answer any query. Rollups are only served for the exact range
+ * they were fetched for, since a different range can cut buckets differently.
+ * Reversed, sized and joined queries always go to the server.
+ *
+ * <pre>
+ * service.setSegmentCache(new SegmentCache(new File("/var/cache/datastreams")));
+ * </pre>
+ */
+public class SegmentCache {
+    private static final Logger log = LoggerFactory.getLogger(SegmentCache.class);
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private volatile long closedAfter = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * @param directory
+     *            where segments are stored, created if missing
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public SegmentCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        this.directory = directory;
+        removeTemporaryFiles(directory);
+    }
+
+    /**
+     * Only data older than this many ms is stored, newer data points may still
+     * arrive. Defaults to one hour.
+     */
+    public void setClosedAfter(long ms) {
+        this.closedAfter = ms;
+    }
+
+    public long getClosedAfter() {
+        return closedAfter;
+    }
+
+    /**
+     * remove all cached segments of a stream
+     */
+    public void invalidate(String streamName) {
+        delete(new File(directory, DigestUtils.shaHex(streamName)));
+    }
+
+    /**
+     * remove every cached segment
+     */
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+    }
+
+    /*
+     * plan the sources for a query, or null if the query cannot be cached
+     */
+    <DataType> Read<DataType> read(StreamSnapshot<DataType> query) {
+        if (query.isReversed() || query.getSize() != -1 || query.getJoin() != null || query.getStart() < 0
+                || query.getEnd() < 0 || query.getEnd() <= query.getStart()) {
+            return null;
+        }
+        File dir = directory(query);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.warn("Cannot create cache directory " + dir + ", not caching");
+            return null;
+        }
+        long start = query.getStart();
+        long end = query.getEnd();
+        long closedBefore = System.currentTimeMillis() - closedAfter;
+        List<Source<DataType>> sources = new ArrayList<Source<DataType>>();
+
+        if (!Interval.None.equals(query.getInterval())) {
+            File exact = new File(dir, start + "_" + end + SUFFIX);
+            if (exact.isFile()) {
+                sources.add(new SegmentSource<DataType>(query, exact, start, end));
+            } else {
+                sources.add(new FetchSource<DataType>(query, start, end, false, end <= closedBefore ? exact : null));
+            }
+            return read(query, sources);
+        }
+
+        long cursor = start;
+        for (long[] segment : segments(dir)) {
+            if (segment[1] <= cursor) {
+                continue;
+            } else if (segment[0] >= end) {
+                break;
+            }
+            if (segment[0] > cursor) {
+                addGap(sources, query, dir, cursor, segment[0], closedBefore);
+            }
+            long to = Math.min(segment[1], end);
+            sources.add(new SegmentSource<DataType>(query, new File(dir, segment[0] + "_" + segment[1] + SUFFIX),
+                    Math.max(cursor, segment[0]), to));
+            cursor = to;
+        }
+        if (cursor < end) {
+            addGap(sources, query, dir, cursor, end, closedBefore);
+        }
+        return read(query, sources);
+    }
+
+    /*
+     * counts the ranges served from segments and the ones fetched as cache hits and misses
+     */
+    private <DataType> Read<DataType> read(StreamSnapshot<DataType> query, List<Source<DataType>> sources) {
+        Metrics metrics = query.getStream().getService().getMetrics();
+        for (Source<DataType> source : sources) {
+            metrics.cache(Metrics.SEGMENT_CACHE, source instanceof SegmentSource);
+        }
+        return new Read<DataType>(sources);
+    }
+
+    /*
+     * fetch a range that is not cached, storing the part of it that is closed
+     */
+    private <DataType> void addGap(List<Source<DataType>> sources, StreamSnapshot<DataType> query, File dir,
+            long from, long to, long closedBefore) {
+        if (from < closedBefore) {
+            long closed = Math.min(to, closedBefore);
+            sources.add(new FetchSource<DataType>(query, from, closed, true, new File(dir, from + "_" + closed
+                    + SUFFIX)));
+            from = closed;
+        }
+        if (from < to) {
+            sources.add(new FetchSource<DataType>(query, from, to, true, null));
+        }
+    }
+
+    /*
+     * directory of the segments for a stream, interval, aggregate and timezone
+     */
+    private File directory(StreamSnapshot<?> query) {
+        String tz = query.getStream().getService().getTimezone();
+        String name = query.getInterval().name() + "_" + query.getAggregate().name() + "_"
+                + (tz == null ? "default" : tz.replaceAll("[^A-Za-z0-9+-]", "_"));
+        return new File(new File(directory, DigestUtils.shaHex(query.getStream().getStreamName())), name);
+    }
+
+    /*
+     * [start, end) of every segment in the directory ordered by start
+     */
+    static List<long[]> segments(File dir) {
+        List<long[]> segments = new ArrayList<long[]>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                int split = name.indexOf('_');
+                try {
+                    segments.add(new long[] { Long.parseLong(name.substring(0, split)),
+                            Long.parseLong(name.substring(split + 1, name.length() - SUFFIX.length())) });
+                } catch (RuntimeException e) {
+                    log.warn("Ignoring unexpected file in cache: " + new File(dir, name));
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        return segments;
+    }
+
+    private static void removeTemporaryFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    removeTemporaryFiles(f);
+                } else if (f.getName().endsWith(".tmp")) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    /*
+     * one part of a query, read from a segment or fetched from the server
+     */
+    private static abstract class Source<DataType> {
+        abstract Iterator<DataPoint<DataType>> open();
+
+        void close() {
+        }
+
+        boolean failed() {
+            return false;
+        }
+
+        Exception failure() {
+            return null;
+        }
+    }
+
+    private static class SegmentSource<DataType> extends Source<DataType> {
+        private final StreamSnapshot<DataType> query;
+        private final File file;
+        private final long from;
+        private final long to;
+
+        SegmentSource(StreamSnapshot<DataType> query, File file, long from, long to) {
+            this.query = query;
+            this.file = file;
+            this.from = from;
+            this.to = to;
+        }
+
+        Iterator<DataPoint<DataType>> open() {
+            Class<? extends DataType> valueClass = query.getStream().getValueClass();
+            try {
+                ByteBuffer buffer = SegmentFile.map(file);
+                return new SegmentFile.Reader<DataType>(buffer, query.getStream().getStreamName(), valueClass,
+                        from, to);
+            } catch (IOException e) {
+                // evicted or corrupt, go to the server instead
+                log.warn("Cannot read cached segment " + file + ": " + e.getMessage());
+                file.delete();
+                FetchSource<DataType> fetch = new FetchSource<DataType>(query, from, to,
+                        Interval.None.equals(query.getInterval()), null);
+                return fetch.open();
+            }
+        }
+    }
+
+    private static class FetchSource<DataType> extends Source<DataType> implements Iterator<DataPoint<DataType>> {
+        private final StreamSnapshot<DataType> snapshot;
+        private final long from;
+        private final long to;
+        private final boolean filter;
+        private final File target;
+        private SegmentFile.Writer writer;
+        private DataPoint<DataType> next;
+
+        FetchSource(StreamSnapshot<DataType> query, long from, long to, boolean filter, File target) {
+            this.snapshot = query.range(from, to);
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+            this.target = target;
+        }
+
+        Iterator<DataPoint<DataType>> open() {
+            if (target != null) {
+                try {
+                    writer = new SegmentFile.Writer(target.getParentFile());
+                } catch (IOException e) {
+                    log.warn("Cannot write cache segment " + target + ": " + e.getMessage());
+                }
+            }
+            return this;
+        }
+
+        public boolean hasNext() {
+            while (next == null && snapshot.hasNext()) {
+                DataPoint<DataType> point = snapshot.next();
+                if (filter && (point.getTimestamp() < from || point.getTimestamp() >= to)) {
+                    continue;
+                }
+                next = point;
+                if (writer != null) {
+                    try {
+                        writer.append(point);
+                    } catch (IOException e) {
+                        log.warn("Cannot write cache segment " + target + ": " + e.getMessage());
+                        writer.abort();
+                        writer = null;
+                    }
+                }
+            }
+            if (next == null && writer != null) {
+                // only store complete ranges
+                try {
+                    if (snapshot.failed()) {
+                        writer.abort();
+                    } else {
+                        writer.commit(target);
+                    }
+                } catch (IOException e) {
+                    log.warn("Cannot write cache segment " + target + ": " + e.getMessage());
+                    writer.abort();
+                }
+                writer = null;
+            }
+            return next != null;
+        }
+
+        public DataPoint<DataType> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            DataPoint<DataType> ret = next;
+            next = null;
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        boolean failed() {
+            return snapshot.failed();
+        }
+
+        Exception failure() {
+            return snapshot.failure();
+        }
+
+        void close() {
+            snapshot.close();
+            if (writer != null) {
+                writer.abort();
+                writer = null;
+            }
+        }
+    }
+
+    /*
+     * iterates the sources of a query in order
+     */
+    static class Read<DataType> implements Iterator<DataPoint<DataType>>, Closeable {
+        private final LinkedList<Source<DataType>> sources;
+        private Source<DataType> source;
+        private Iterator<DataPoint<DataType>> current;
+        private boolean failed = false;
+
+        Read(List<Source<DataType>> sources) {
+            this.sources = new LinkedList<Source<DataType>>(sources);
+        }
+
+        public boolean hasNext() {
+            while (!failed && (current == null || !current.hasNext())) {
+                if (source != null && source.failed()) {
+                    // nothing after a hole is served, the scan ends where it starts
+                    failed = true;
+                } else if (sources.isEmpty()) {
+                    break;
+                } else {
+                    source = sources.removeFirst();
+                    current = source.open();
+                }
+            }
+            return !failed && current != null && current.hasNext();
+        }
+
+        public DataPoint<DataType> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (source != null) {
+                source.close();
+            }
+        }
+
+        /*
+         * true if a fetched range ended early because a page could not be read, nothing
+         * after it was served
+         */
+        boolean failed() {
+            return failed || (source != null && source.failed());
+        }
+
+        /*
+         * why the fetched range ended early, null if it did not
+         */
+        Exception failure() {
+            return source == null ? null : source.failure();
+        }
+    }
+}
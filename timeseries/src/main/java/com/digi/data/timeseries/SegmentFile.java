@@ -0,0 +1,247 @@
+package com.digi.data.timeseries;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Compact binary file of data points, written sequentially and read back
+ * through a memory mapped buffer. After a short header each record is
+ *
+ * <pre>
+ * long   timestamp
+ * long   serverTimestamp
+ * byte   flags (1 = id, 2 = description, 4 = location)
+ * int    quality
+ * string data
+ * [long, long] id
+ * [string] description
+ * [string] location
+ * </pre>
+ *
+ * where a string is an int length followed by that many bytes of UTF-8.
+ */
+final class SegmentFile {
+    private static final int MAGIC = 0x44534547; // DSEG
+    private static final byte VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FLAG_ID = 1;
+    private static final int FLAG_DESCRIPTION = 2;
+    private static final int FLAG_LOCATION = 4;
+
+    private SegmentFile() {
+    }
+
+    /**
+     * Appends data points to a temporary file that replaces the target on
+     * commit, so readers never see a partially written segment
+     */
+    static final class Writer {
+        private final File tmp;
+        private final DataOutputStream out;
+        private int count = 0;
+
+        Writer(File dir) throws IOException {
+            tmp = File.createTempFile("segment", ".tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            writeHeader(out);
+        }
+
+        void append(DataPoint<?> point) throws IOException {
+            write(out, point);
+            count++;
+        }
+
+        /**
+         * number of data points appended
+         */
+        int count() {
+            return count;
+        }
+
+        /**
+         * flush and move the segment to its final name
+         */
+        void commit(File target) throws IOException {
+            out.close();
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * discard the segment
+         */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // discarded anyway
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * write the header that starts every segment file
+     */
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * write one data point record
+     */
+    static void write(DataOutputStream out, DataPoint<?> point) throws IOException {
+        int flags = (point.getId() != null ? FLAG_ID : 0)
+                | (point.getDescription() != null && point.getDescription().length() > 0 ? FLAG_DESCRIPTION : 0)
+                | (point.getLocation() != null ? FLAG_LOCATION : 0);
+        out.writeLong(point.getTimestamp());
+        out.writeLong(point.getServerTimestamp());
+        out.writeByte(flags);
+        out.writeInt(point.getQuality());
+        writeString(out, point.getData());
+        if ((flags & FLAG_ID) != 0) {
+            out.writeLong(point.getId().getMostSignificantBits());
+            out.writeLong(point.getId().getLeastSignificantBits());
+        }
+        if ((flags & FLAG_DESCRIPTION) != 0) {
+            writeString(out, point.getDescription());
+        }
+        if ((flags & FLAG_LOCATION) != 0) {
+            writeString(out, point.getLocation());
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * read the data point record at the buffers position
+     */
+    static <DataType> DataPoint<DataType> read(ByteBuffer buffer, String streamId,
+            Class<? extends DataType> valueClass) {
+        DataPoint<DataType> point = new DataPoint<DataType>();
+        point.setValueClass(valueClass);
+        point.setStreamId(streamId);
+        point.setTimestamp(buffer.getLong());
+        point.setServerTimestamp(buffer.getLong());
+        int flags = buffer.get();
+        point.setQuality(buffer.getInt());
+        point.setData(readString(buffer));
+        if ((flags & FLAG_ID) != 0) {
+            point.setId(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+        if ((flags & FLAG_DESCRIPTION) != 0) {
+            point.setDescription(readString(buffer));
+        }
+        if ((flags & FLAG_LOCATION) != 0) {
+            point.setLocation(readString(buffer));
+        }
+        return point;
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, UTF8);
+        }
+        return s;
+    }
+
+    /**
+     * Map a segment into memory for reading
+     */
+    static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 5 || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+                throw new IOException("Not a segment file: " + file);
+            }
+            return buffer;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Iterates the data points of a mapped segment with timestamps in [start, end),
+     * the stream id is not stored in the segment and is set from streamId
+     */
+    static final class Reader<DataType> implements Iterator<DataPoint<DataType>> {
+        private final ByteBuffer buffer;
+        private final String streamId;
+        private final Class<? extends DataType> valueClass;
+        private final long start;
+        private final long end;
+        private DataPoint<DataType> next;
+
+        Reader(ByteBuffer buffer, String streamId, Class<? extends DataType> valueClass, long start, long end) {
+            this.buffer = buffer;
+            this.streamId = streamId;
+            this.valueClass = valueClass;
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean hasNext() {
+            while (next == null && buffer.hasRemaining()) {
+                DataPoint<DataType> point = read();
+                if (point.getTimestamp() >= end) {
+                    // points are in timestamp order, nothing else can match
+                    buffer.position(buffer.limit());
+                } else if (point.getTimestamp() >= start) {
+                    next = point;
+                }
+            }
+            return next != null;
+        }
+
+        public DataPoint<DataType> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            DataPoint<DataType> ret = next;
+            next = null;
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private DataPoint<DataType> read() {
+            return SegmentFile.read(buffer, streamId, valueClass);
+        }
+    }
+}
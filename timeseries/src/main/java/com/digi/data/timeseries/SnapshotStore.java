@@ -0,0 +1,162 @@
+package com.digi.data.timeseries;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy of the data points of one pass over a StreamSnapshot, kept so later
+ * passes do not go back to the server. Points are encoded in the compact
+ * SegmentFile record format into a heap buffer of at most maxBytes. When that
+ * is exceeded the store is either dropped (EVICT) or continued in a temporary
+ * file that is memory mapped once the pass completes (SPILL). A store that
+ * is not completed has to be discarded to release the file. The snapshot
+ * recording may be closed from another thread, so changes are synchronized.
+ */
+final class SnapshotStore<DataType> {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotStore.class);
+
+    private final String streamId;
+    private final Class<? extends DataType> valueClass;
+    private final long maxBytes;
+    private final StreamSnapshot.Overflow overflow;
+    private Bytes memory = new Bytes();
+    private DataOutputStream out = new DataOutputStream(memory);
+    private File spill = null;
+    private int count = 0;
+    private boolean evicted = false;
+    private volatile ByteBuffer buffer = null;
+
+    SnapshotStore(String streamId, Class<? extends DataType> valueClass, long maxBytes,
+            StreamSnapshot.Overflow overflow) {
+        this.streamId = streamId;
+        this.valueClass = valueClass;
+        this.maxBytes = maxBytes;
+        this.overflow = overflow;
+    }
+
+    /**
+     * record the next data point of the pass, false if the store was evicted
+     */
+    synchronized boolean add(DataPoint<DataType> point) {
+        if (evicted) {
+            return false;
+        }
+        try {
+            SegmentFile.write(out, point);
+            count++;
+            if (memory != null && memory.size() > maxBytes) {
+                if (overflow == StreamSnapshot.Overflow.SPILL) {
+                    spill();
+                } else {
+                    log.debug("Not keeping snapshot of " + streamId + ", more than " + maxBytes + " bytes");
+                    discard();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot keep snapshot of " + streamId + ": " + e.getMessage());
+            discard();
+        }
+        return !evicted;
+    }
+
+    /**
+     * end of the pass, true if the store can serve further passes
+     */
+    synchronized boolean complete() {
+        if (evicted) {
+            return false;
+        }
+        try {
+            out.close();
+            if (spill == null) {
+                buffer = memory.buffer();
+            } else {
+                buffer = SegmentFile.map(spill);
+                // the mapping stays valid once the file is unlinked
+                if (!spill.delete()) {
+                    spill.deleteOnExit();
+                }
+            }
+            memory = null;
+            return true;
+        } catch (IOException e) {
+            log.warn("Cannot keep snapshot of " + streamId + ": " + e.getMessage());
+            discard();
+            return false;
+        }
+    }
+
+    /**
+     * iterate the recorded data points, only valid after complete()
+     */
+    Iterator<DataPoint<DataType>> iterator() {
+        return new SegmentFile.Reader<DataType>(buffer.duplicate(), streamId, valueClass, Long.MIN_VALUE,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * number of data points recorded
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * true if the recorded data points were written to disk
+     */
+    boolean isSpilled() {
+        return spill != null;
+    }
+
+    private void spill() throws IOException {
+        spill = File.createTempFile("snapshot", ".tmp");
+        log.debug("Spilling snapshot of " + streamId + " to " + spill);
+        DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill),
+                64 * 1024));
+        SegmentFile.writeHeader(file);
+        memory.writeTo(file);
+        memory = null;
+        out = file;
+    }
+
+    /**
+     * drops what was recorded of an incomplete pass and deletes its file, if any
+     */
+    synchronized void discard() {
+        if (evicted || buffer != null) {
+            return;
+        }
+        evicted = true;
+        memory = null;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // discarded anyway
+        }
+        if (spill != null) {
+            spill.delete();
+        }
+    }
+
+    /*
+     * growable heap buffer that exposes its contents without copying
+     */
+    private static final class Bytes extends ByteArrayOutputStream {
+        Bytes() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count).slice();
+        }
+    }
+}
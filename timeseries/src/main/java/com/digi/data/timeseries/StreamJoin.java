@@ -0,0 +1,385 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Joins several StreamSnapshots on the client by merging them on their
+ * timestamps, returning one Row per timestamp with a column per snapshot. Each
+ * snapshot keeps only its current page (plus what it prefetches) and one data
+ * point ahead, so joining many streams over a long range needs memory for a
+ * page per stream, never for the range.
+ *
+ * <pre>
+ * List&lt;StreamSnapshot&lt;Float>> snapshots = new ArrayList&lt;StreamSnapshot&lt;Float>>();
+ * for (String name : names) {
+ *     snapshots.add(service.getStream(name, Float.class).get(start, end));
+ * }
+ * for (StreamJoin.Row&lt;Float> row : new StreamJoin&lt;Float>(StreamJoin.Type.OUTER, snapshots)) {
+ *     System.err.println(row.getTimestamp() + " " + row.get(0) + " " + row.get(1));
+ * }
+ * </pre>
+ *
+ * Snapshots have to be in the same order, as-of joins only go forward in time.
+ * Data points with the same timestamp in one snapshot give a row each.
+ */
+public class StreamJoin<DataType> implements Iterator<StreamJoin.Row<DataType>>, Iterable<StreamJoin.Row<DataType>>,
+        Closeable {
+
+    public enum Type {
+        /**
+         * only timestamps every snapshot has a data point at
+         */
+        INNER,
+        /**
+         * every timestamp of any snapshot, columns without a data point at it are null
+         */
+        OUTER,
+        /**
+         * every timestamp of the first snapshot, with the latest data point of each
+         * other snapshot at or before it, null if there is none within the tolerance
+         */
+        AS_OF
+    }
+
+    /**
+     * The data points of each snapshot at a timestamp, in the order the snapshots were
+     * given.
+     */
+    public static class Row<DataType> {
+        private final long timestamp;
+        private final DataPoint<DataType>[] points;
+
+        Row(long timestamp, DataPoint<DataType>[] points) {
+            this.timestamp = timestamp;
+            this.points = points;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * number of columns, one per snapshot
+         */
+        public int size() {
+            return points.length;
+        }
+
+        /**
+         * value of a column, null if it has no data point
+         */
+        public DataType get(int column) {
+            DataPoint<DataType> point = points[column];
+            return point == null ? null : point.getValue();
+        }
+
+        /**
+         * data point of a column, null if there is none. For as-of joins its timestamp can
+         * be before the rows.
+         */
+        public DataPoint<DataType> getPoint(int column) {
+            return points[column];
+        }
+
+        /**
+         * false if any column is null
+         */
+        public boolean isComplete() {
+            for (DataPoint<DataType> point : points) {
+                if (point == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Row [timestamp=" + timestamp + ", points=" + Arrays.toString(points) + "]";
+        }
+    }
+
+    /*
+     * a snapshot and the data point it is at
+     */
+    private static class Cursor<DataType> implements Comparable<Cursor<DataType>> {
+        private final StreamSnapshot<? extends DataType> snapshot;
+        private final int column;
+        private final boolean reversed;
+        private DataPoint<DataType> head;
+
+        Cursor(StreamSnapshot<? extends DataType> snapshot, int column) {
+            this.snapshot = snapshot;
+            this.column = column;
+            this.reversed = snapshot.isReversed();
+        }
+
+        /*
+         * moves to the next data point, false at the end of the snapshot
+         */
+        @SuppressWarnings("unchecked")
+        boolean advance() {
+            head = snapshot.hasNext() ? (DataPoint<DataType>) snapshot.next() : null;
+            return head != null;
+        }
+
+        long key() {
+            return reversed ? -head.getTimestamp() : head.getTimestamp();
+        }
+
+        public int compareTo(Cursor<DataType> o) {
+            long a = key();
+            long b = o.key();
+            return a < b ? -1 : a > b ? 1 : column - o.column;
+        }
+    }
+
+    private final Type type;
+    private final List<Cursor<DataType>> cursors;
+    private final PriorityQueue<Cursor<DataType>> heads;
+    private long tolerance = Long.MAX_VALUE;
+    /* latest data point of each column at or before the current row, for as-of joins */
+    private DataPoint<DataType>[] latest;
+    private boolean started = false;
+    private boolean done = false;
+    private Row<DataType> next;
+
+    public StreamJoin(Type type, List<? extends StreamSnapshot<? extends DataType>> snapshots) {
+        if (type == null) {
+            throw new IllegalArgumentException("A join type is required");
+        }
+        if (snapshots == null || snapshots.isEmpty()) {
+            throw new IllegalArgumentException("At least one snapshot is required");
+        }
+        boolean reversed = snapshots.get(0).isReversed();
+        this.cursors = new ArrayList<Cursor<DataType>>(snapshots.size());
+        for (StreamSnapshot<? extends DataType> snapshot : snapshots) {
+            if (snapshot.isReversed() != reversed) {
+                throw new IllegalArgumentException("Snapshots of a join have to be in the same order");
+            }
+            cursors.add(new Cursor<DataType>(snapshot, cursors.size()));
+        }
+        if (type == Type.AS_OF && reversed) {
+            throw new IllegalArgumentException("As-of joins need snapshots in chronological order");
+        }
+        this.type = type;
+        this.heads = new PriorityQueue<Cursor<DataType>>(snapshots.size());
+    }
+
+    /**
+     * For as-of joins, the oldest a data point may be relative to the row to be used,
+     * older ones give null. No limit by default.
+     *
+     * @param ms
+     *            maximum age in ms
+     */
+    public synchronized StreamJoin<DataType> tolerance(long ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("Tolerance can not be negative");
+        }
+        if (started) {
+            throw new IllegalStateException("Tolerance has to be set before iterating");
+        }
+        this.tolerance = ms;
+        return this;
+    }
+
+    /**
+     * Has every snapshot read the given number of pages ahead, so the pages of all
+     * streams are fetched concurrently rather than one stream after the other. Costs
+     * that many pages of memory per stream.
+     *
+     * @see StreamSnapshot#prefetch(int)
+     */
+    public synchronized StreamJoin<DataType> prefetch(int pages) {
+        if (started) {
+            throw new IllegalStateException("Prefetching has to be set before iterating");
+        }
+        for (Cursor<DataType> cursor : cursors) {
+            cursor.snapshot.prefetch(pages);
+        }
+        return this;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * number of columns of each row
+     */
+    public int getColumns() {
+        return cursors.size();
+    }
+
+    public synchronized boolean hasNext() {
+        if (next == null && !done) {
+            next = join();
+            if (next == null) {
+                done = true;
+            }
+        }
+        return next != null;
+    }
+
+    public synchronized Row<DataType> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Row<DataType> row = next;
+        next = null;
+        return row;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The join itself, it can only be iterated once as the snapshots are consumed.
+     */
+    public Iterator<Row<DataType>> iterator() {
+        return this;
+    }
+
+    /**
+     * closes all snapshots
+     */
+    public synchronized void close() {
+        done = true;
+        next = null;
+        heads.clear();
+        for (Cursor<DataType> cursor : cursors) {
+            cursor.snapshot.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private DataPoint<DataType>[] columns() {
+        return (DataPoint<DataType>[]) new DataPoint<?>[cursors.size()];
+    }
+
+    /*
+     * reads the first data point of every snapshot
+     */
+    private void start() {
+        started = true;
+        latest = columns();
+        for (Cursor<DataType> cursor : cursors) {
+            if (cursor.advance()) {
+                heads.add(cursor);
+            } else if (type == Type.INNER || (type == Type.AS_OF && cursor.column == 0)) {
+                // nothing can be joined to an empty snapshot
+                heads.clear();
+                return;
+            }
+        }
+    }
+
+    /*
+     * the next row, null once there are no more
+     */
+    private Row<DataType> join() {
+        if (!started) {
+            start();
+        }
+        switch (type) {
+        case INNER:
+            return inner();
+        case AS_OF:
+            return asOf();
+        default:
+            return outer();
+        }
+    }
+
+    private Row<DataType> outer() {
+        if (heads.isEmpty()) {
+            return null;
+        }
+        long key = heads.peek().key();
+        long timestamp = heads.peek().head.getTimestamp();
+        DataPoint<DataType>[] points = columns();
+        List<Cursor<DataType>> taken = new ArrayList<Cursor<DataType>>();
+        // a snapshot repeating a timestamp is put back after the row is complete, so
+        // the repeat starts a row of its own
+        while (!heads.isEmpty() && heads.peek().key() == key) {
+            Cursor<DataType> cursor = heads.poll();
+            points[cursor.column] = cursor.head;
+            taken.add(cursor);
+        }
+        for (Cursor<DataType> cursor : taken) {
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        return new Row<DataType>(timestamp, points);
+    }
+
+    /*
+     * moves the snapshot furthest behind forward until all are at the same
+     * timestamp, one snapshot ending ends the join
+     */
+    private Row<DataType> inner() {
+        if (heads.size() < cursors.size()) {
+            return null;
+        }
+        long max = Long.MIN_VALUE;
+        for (Cursor<DataType> cursor : heads) {
+            max = Math.max(max, cursor.key());
+        }
+        while (heads.peek().key() != max) {
+            Cursor<DataType> cursor = heads.poll();
+            if (!cursor.advance()) {
+                heads.clear();
+                return null;
+            }
+            max = Math.max(max, cursor.key());
+            heads.add(cursor);
+        }
+        Row<DataType> row = new Row<DataType>(heads.peek().head.getTimestamp(), columns());
+        for (Cursor<DataType> cursor : cursors) {
+            row.points[cursor.column] = cursor.head;
+        }
+        heads.clear();
+        for (Cursor<DataType> cursor : cursors) {
+            if (!cursor.advance()) {
+                return row;
+            }
+        }
+        heads.addAll(cursors);
+        return row;
+    }
+
+    /*
+     * the first snapshot drives, the others are moved up to its timestamp
+     */
+    private Row<DataType> asOf() {
+        Cursor<DataType> driver = cursors.get(0);
+        if (driver.head == null) {
+            return null;
+        }
+        long timestamp = driver.head.getTimestamp();
+        DataPoint<DataType>[] points = columns();
+        points[0] = driver.head;
+        for (int i = 1; i < cursors.size(); i++) {
+            Cursor<DataType> cursor = cursors.get(i);
+            while (cursor.head != null && cursor.head.getTimestamp() <= timestamp) {
+                latest[i] = cursor.head;
+                cursor.advance();
+            }
+            DataPoint<DataType> point = latest[i];
+            if (point != null && timestamp - point.getTimestamp() <= tolerance) {
+                points[i] = point;
+            }
+        }
+        driver.advance();
+        return new Row<DataType>(timestamp, points);
+    }
+}
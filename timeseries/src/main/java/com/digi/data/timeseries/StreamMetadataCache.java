@@ -0,0 +1,299 @@
+package com.digi.data.timeseries;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metadata (dataType, units, description, ...) of the streams of a
+ * DataStreamService by stream id. Filled by DataStream.refresh() and by the
+ * bulk loads of DataStreamService.loadStreams(), and used when creating a
+ * DataStream or reading its metadata instead of requesting it again.
+ *
+ * The cache holds at most getMaximumSize() streams, evicting the least recently
+ * used. Entries expire getExpireAfter() ms after they were fetched. Entries
+ * read after getRefreshAfter() ms are still returned but fetched again in the
+ * background on the executor of the service, so streams in regular use are
+ * kept fresh without blocking the callers.
+ *
+ * When the server sent an ETag or Last-Modified with the metadata of a path,
+ * fetching the path again is a conditional request. If the server answers 304
+ * Not Modified the streams it listed before are cached as freshly fetched
+ * without transferring them again, unless some of them were evicted since.
+ */
+public class StreamMetadataCache {
+    private static final Logger log = LoggerFactory.getLogger(StreamMetadataCache.class);
+
+    private final DataStreamService service;
+    private volatile int maximumSize = 10000;
+    private volatile long expireAfter = TimeUnit.HOURS.toMillis(1);
+    private volatile long refreshAfter = TimeUnit.MINUTES.toMillis(30);
+    private final LinkedHashMap<String, Entry> streams = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maximumSize;
+        }
+    };
+
+    private final LinkedHashMap<String, Validator> validators = new LinkedHashMap<String, Validator>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Validator> eldest) {
+            return size() > maximumSize;
+        }
+    };
+
+    /**
+     * cache without background refresh
+     */
+    public StreamMetadataCache() {
+        this(null);
+    }
+
+    /*
+     * cache that refreshes entries through the service
+     */
+    StreamMetadataCache(DataStreamService service) {
+        this.service = service;
+    }
+
+    /**
+     * metadata of a stream as element:value, or null if not cached or expired
+     */
+    public Map<String, String> get(String streamId) {
+        Entry entry;
+        synchronized (streams) {
+            entry = streams.get(streamId);
+            if (entry != null && entry.age() > expireAfter) {
+                streams.remove(streamId);
+                entry = null;
+            }
+        }
+        if (service != null) {
+            service.getMetrics().cache(Metrics.METADATA_CACHE, entry != null);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.age() > refreshAfter && service != null && !entry.refreshing) {
+            refresh(streamId, entry);
+        }
+        return entry.values;
+    }
+
+    /**
+     * cache the metadata of a stream
+     */
+    public void put(String streamId, Map<String, String> values) {
+        Entry entry = new Entry(Collections.unmodifiableMap(values));
+        synchronized (streams) {
+            streams.put(streamId, entry);
+        }
+    }
+
+    /**
+     * remove a stream, its metadata is fetched again when next needed
+     */
+    public void invalidate(String streamId) {
+        synchronized (streams) {
+            streams.remove(streamId);
+            validators.remove(streamId);
+        }
+    }
+
+    /**
+     * remove all streams
+     */
+    public void clear() {
+        synchronized (streams) {
+            streams.clear();
+            validators.clear();
+        }
+    }
+
+    /**
+     * number of streams cached, including expired ones not removed yet
+     */
+    public int size() {
+        synchronized (streams) {
+            return streams.size();
+        }
+    }
+
+    /**
+     * Most streams kept, the least recently used are evicted beyond this. Defaults to
+     * 10000.
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        synchronized (streams) {
+            Iterator<String> keys = streams.keySet().iterator();
+            while (streams.size() > maximumSize && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+            keys = validators.keySet().iterator();
+            while (validators.size() > maximumSize && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * ms after being fetched that metadata is no longer used. Defaults to one hour.
+     */
+    public void setExpireAfter(long ms) {
+        this.expireAfter = ms;
+    }
+
+    public long getExpireAfter() {
+        return expireAfter;
+    }
+
+    /**
+     * ms after being fetched that reading metadata fetches it again in the background.
+     * Defaults to 30 minutes, should be less than getExpireAfter().
+     */
+    public void setRefreshAfter(long ms) {
+        this.refreshAfter = ms;
+    }
+
+    public long getRefreshAfter() {
+        return refreshAfter;
+    }
+
+    /*
+     * validators of the last response listing the streams under a path, null if there
+     * was none, it had no ETag or Last-Modified or some of the streams it listed are no
+     * longer cached
+     */
+    Validator validator(String path) {
+        synchronized (streams) {
+            Validator validator = validators.get(path);
+            if (validator != null && !streams.keySet().containsAll(validator.streamIds)) {
+                validators.remove(path);
+                validator = null;
+            }
+            return validator;
+        }
+    }
+
+    /*
+     * remember the validators of a response that listed all the streams under a path
+     */
+    void validated(String path, String etag, String lastModified, List<Map<String, String>> listed) {
+        synchronized (streams) {
+            if (etag == null && lastModified == null) {
+                validators.remove(path);
+            } else {
+                validators.put(path, new Validator(etag, lastModified, listed));
+            }
+        }
+    }
+
+    /*
+     * the server answered 304 for the path, cache the streams it listed before as just
+     * fetched and return them, or null if some of them are no longer cached and the path
+     * has to be listed again
+     */
+    List<Map<String, String>> notModified(String path, Validator validator) {
+        List<Map<String, String>> listed = new ArrayList<Map<String, String>>(validator.streamIds.size());
+        synchronized (streams) {
+            for (String streamId : validator.streamIds) {
+                Entry entry = streams.get(streamId);
+                if (entry == null) {
+                    validators.remove(path);
+                    return null;
+                }
+                listed.add(entry.values);
+            }
+            for (int i = 0; i < listed.size(); i++) {
+                streams.put(validator.streamIds.get(i), new Entry(listed.get(i)));
+            }
+        }
+        log.debug("Metadata of " + path + " not modified");
+        return listed;
+    }
+
+    /*
+     * fetch a stream again in the background, keeping the current metadata until it
+     * expires if that fails
+     */
+    private void refresh(final String streamId, final Entry entry) {
+        synchronized (entry) {
+            if (entry.refreshing) {
+                return;
+            }
+            entry.refreshing = true;
+        }
+        try {
+            service.getExecutor().submit(new Runnable() {
+                public void run() {
+                    try {
+                        // replaces the entry with the fetched metadata
+                        service.fetchStreams(streamId);
+                    } catch (Exception e) {
+                        log.warn("Cannot refresh metadata of " + streamId + ": " + e.getMessage());
+                    } finally {
+                        entry.refreshing = false;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor shut down
+            entry.refreshing = false;
+            log.warn("Cannot refresh metadata of " + streamId + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * validators of a listing and the ids of the streams it listed, their metadata is
+     * only held by the cache entries
+     */
+    static final class Validator {
+        final String etag;
+        final String lastModified;
+        final List<String> streamIds;
+
+        Validator(String etag, String lastModified, List<Map<String, String>> streams) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.streamIds = new ArrayList<String>(streams.size());
+            for (Map<String, String> values : streams) {
+                streamIds.add(values.get("streamId"));
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Map<String, String> values;
+        final long loaded = System.currentTimeMillis();
+        volatile boolean refreshing = false;
+
+        Entry(Map<String, String> values) {
+            this.values = values;
+        }
+
+        long age() {
+            return System.currentTimeMillis() - loaded;
+        }
+    }
+}
@@ -0,0 +1,1100 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+/**
+ * The data points of a query, fetched from the server a page at a time while
+ * being iterated. A snapshot can be drained by several threads at once: pages
+ * are fetched by one thread at a time without holding a lock, and the points
+ * of a fetched page are claimed by the consumers without locking. Concurrent
+ * consumers should use poll(), as another thread may take the point hasNext()
+ * reported before next() is called.
+ *
+ * Pages that fail to be read are retried as set by ConnectionSettings.retries().
+ * If a page still cannot be read, hasNext(), next() and poll() throw a
+ * ScanFailedException rather than ending early. Its checkpoint, or one taken
+ * with checkpoint() at any time, resumes the scan with
+ * DataStreamService.resume().
+ */
+public class StreamSnapshot<DataType> implements Iterator<DataPoint<DataType>>, Iterable<DataPoint<DataType>>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(StreamSnapshot.class);
+    /**
+     * How long a prefetcher waits with a full queue for the consumer before assuming the
+     * iterator was abandoned and giving up
+     */
+    static long ABANDON_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * Data points per page returned by the server unless asked for another size, pages
+     * read from the segment cache are this size as well
+     */
+    static final int PAGE_SIZE = 1000;
+    /**
+     * Memory used by materialize() when no limit is given
+     */
+    public static final long DEFAULT_MATERIALIZE_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * What a materialized snapshot does with a pass that outgrows its memory limit
+     */
+    public enum Overflow {
+        /**
+         * drop the copy, later iterations fetch from the server again
+         */
+        EVICT,
+        /**
+         * continue the copy in a temporary file that is memory mapped for later iterations
+         */
+        SPILL
+    }
+
+    // Skip any fields that aren't defined in DataPoint to protected UnknownFieldException from being raised in
+    // future if any new fields are added to the DataPoint resource. Pages are read with the PageParser, this
+    // is kept for converting single DataPoint documents.
+    static final XStream xstream = new XStream(new StaxDriver()) {
+        @Override
+        protected MapperWrapper wrapMapper(MapperWrapper next) {
+            return new MapperWrapper(next) {
+                @Override
+                @SuppressWarnings("rawtypes")
+                public boolean shouldSerializeMember(Class definedIn, String fieldName) {
+                    if (definedIn == Object.class) {
+                        try {
+                            return this.realClass(fieldName) != null;
+                        } catch (Exception e) {
+                            return false;
+                        }
+                    } else {
+                        return super.shouldSerializeMember(definedIn, fieldName);
+                    }
+                }
+            };
+        }
+    };
+    static {
+        xstream.alias("DataPoint", DataPoint.class);
+    }
+
+    private Interval interval;
+    private Aggregate aggregate;
+    private DataStream<DataType> stream;
+    private DataStreamService service;
+    private long start;
+    private long end; 
+    private boolean reversed = false;
+    private String pageCursor = null;
+    // most data points to return, -1 for all, and how many of them are still to be fetched
+    private int size = -1;
+    private volatile int remaining = -1;
+    private String join = null;
+    private int prefetchPages = 0;
+    private PageSizer pageSizer = null;
+    private volatile Prefetcher prefetcher = null;
+    private volatile HttpGet request = null;
+    private volatile boolean closed = false;
+    private boolean useSegmentCache = true;
+    private volatile SegmentCache.Read<DataType> cached = null;
+    private volatile Exception failure = null;
+    private volatile boolean started = false;
+    private boolean signalFailure = true;
+    private ScanCheckpoint resumed = null;
+    // data points from the cursor on still to be skipped when resuming
+    private long skip = 0;
+    private long cachedOffset = 0;
+    private long lastTimestamp = -1;
+    // the page being consumed, starts with an empty one whose successor is the first page
+    private final AtomicReference<Page> page = new AtomicReference<Page>(
+            new Page(Collections.<DataPoint<DataType>> emptyList(), false, null, 0, -1));
+    private long materializeBytes = 0;
+    private Overflow overflow = Overflow.SPILL;
+    private StreamSnapshot<DataType> owner = this;
+    private volatile SnapshotStore<DataType> recording = null;
+    private volatile SnapshotStore<DataType> materialized = null;
+    
+    public StreamSnapshot(DataStream<DataType> stream, long start, long end, Interval interval, Aggregate aggregate, String join) {
+        this(stream, start, end, false, -1, interval, aggregate, join);
+    }
+    
+    public StreamSnapshot(DataStream<DataType> stream, long start, long end, boolean reversed, int size, Interval interval, Aggregate aggregate, String join) {
+        this.stream = stream;
+        service = stream.getService();
+        this.start = start;
+        this.end = end;
+        this.reversed = reversed;
+        this.join = join;
+        // a size caps the data points returned, pages are sized by the service
+        this.size = size > 0 ? size : -1;
+        this.remaining = this.size;
+        this.pageSizer = service.newPageSizer();
+        this.interval = interval == null ? Interval.None : interval;
+        this.aggregate = aggregate == null ? Aggregate.None : aggregate;
+        boolean noIntervalWithAgg = interval.equals(Interval.None) && !aggregate.equals(Aggregate.None);
+        boolean noAggWithInterval = !interval.equals(Interval.None) && aggregate.equals(Aggregate.None);
+        if (noAggWithInterval || noIntervalWithAgg) {
+            throw new IllegalArgumentException("Aggregate and Interval must both be specified");
+        }
+    }
+
+    /*
+     * the rest of the scan a checkpoint was taken of
+     */
+    StreamSnapshot(DataStream<DataType> stream, ScanCheckpoint checkpoint) {
+        this(stream, checkpoint.getStart(), checkpoint.getEnd(), checkpoint.isReversed(), checkpoint.getSize(),
+                checkpoint.getInterval(), checkpoint.getAggregate(), checkpoint.getJoin());
+        this.resumed = checkpoint;
+        this.pageCursor = checkpoint.getCursor();
+        this.skip = checkpoint.getSkip();
+        this.lastTimestamp = checkpoint.getLastTimestamp();
+        page.set(new Page(Collections.<DataPoint<DataType>> emptyList(), checkpoint.isComplete(), pageCursor, skip,
+                lastTimestamp));
+    }
+
+    /**
+     * issue the request for the page following the current pageCursor, the caller
+     * has to consume the response. Not meant to be mixed with iterating.
+     */
+    public HttpResponse fetchNextChunk()
+            throws IOException {
+        HttpResponse rsp = execute(pageCursor);
+        ConnectionPools.decompress(rsp);
+        return rsp;
+    }
+
+    /*
+     * issue the /ws/DataPoint request for the page starting at cursor
+     */
+    private HttpResponse execute(String cursor) throws IOException {
+        try {
+            HttpGet httpget = request(cursor);
+            request = httpget;
+            try {
+                return service.getHttpClient().execute(httpget);
+            } finally {
+                request = null;
+            }
+        } catch (URISyntaxException syntax) {
+            throw new DataServiceException("Invalid URI created: " + syntax.getMessage(), syntax);
+        }
+    }
+
+    /*
+     * the /ws/DataPoint request for the page starting at cursor
+     */
+    HttpGet request(String cursor) throws URISyntaxException {
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(service.getScheme())
+            .setHost(service.getHost())
+            .setPort(service.getPort())
+            .setPath("/ws/DataPoint/"+stream.getStreamName())
+            .setParameter("startTime", ""+start)
+            .setParameter("endTime", ""+end);
+
+        // are doing a rollup?
+        if (!Interval.None.equals(interval)) {
+            builder.setParameter("rollupInterval", interval.name().toLowerCase());
+            builder.setParameter("rollupMethod", aggregate.name().toLowerCase()); 
+        }
+        
+        // is the timezone set?
+        if (service.getTimezone() != null) {
+            builder.setParameter("timezone", service.getTimezone());
+        }
+        // join other streams?
+        if(join != null) {
+            builder.setParameter("join", join);
+        }
+        if(reversed) {
+            builder.setParameter("order", "desc");
+        }
+        int pageSize = pageSize();
+        if(pageSize != -1) {
+            builder.setParameter("size", ""+pageSize);
+        }
+        // continue from previous call?
+        if(cursor != null) {
+            builder.setParameter("pageCursor", cursor);
+        }
+        
+        URI uri = builder.build();
+        log.debug("query: "+uri.toString());
+        HttpGet httpget = new HttpGet(uri);
+        httpget.setHeader("Content-type", "text/xml; charset=utf-8");
+        httpget.setHeader("Authorization", "Basic " + service.getAuthHeader());
+        if (service.isCompressing()) {
+            httpget.setHeader("Accept-Encoding", ConnectionPools.ACCEPT_ENCODING);
+        }
+        return httpget;
+    }
+
+    /*
+     * fetches the page following the current pageCursor as DataPoints into the list,
+     * returns true if there are more pages after it
+     */
+    boolean readPage(final List<DataPoint<DataType>> into) throws IOException, XMLStreamException {
+        final int mark = into.size();
+        return readPage(new PointCollector<DataType>(into, stream.getValueClass()), new Runnable() {
+            public void run() {
+                into.subList(mark, into.size()).clear();
+            }
+        });
+    }
+
+    /*
+     * fetches the page following the current pageCursor and passes each DataPoint
+     * element to the handler, returns true if there are more pages after it. Failures
+     * are retried as long as the handler was not passed any of the page yet.
+     */
+    boolean readPage(PageParser.Handler handler) throws IOException, XMLStreamException {
+        return readPage(handler, null);
+    }
+
+    /*
+     * like readPage(handler) but rollback removes what the handler was passed of a failed
+     * attempt, so every failure can be retried
+     */
+    boolean readPage(PageParser.Handler handler, Runnable rollback) throws IOException, XMLStreamException {
+        ConnectionSettings settings = service.settings();
+        for (int retry = 0;; retry++) {
+            RecordCounter counter = new RecordCounter(handler);
+            Exception error;
+            try {
+                return readPageOnce(counter);
+            } catch (IOException e) {
+                error = e;
+            } catch (XMLStreamException e) {
+                error = e;
+            }
+            boolean clean = counter.records == 0 || rollback != null;
+            if (closed || !clean || retry >= settings.getRetries() || !retryable(error)
+                    || !backoff(settings, retry, error)) {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                }
+                throw (XMLStreamException) error;
+            }
+            if (rollback != null) {
+                rollback.run();
+            }
+        }
+    }
+
+    /*
+     * true if reading a page again may succeed where it failed with e
+     */
+    static boolean retryable(Exception e) {
+        if (e instanceof StatusException) {
+            int status = ((StatusException) e).getStatus();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        if (e.getCause() instanceof URISyntaxException) {
+            return false;
+        }
+        // connection failures, timeouts and truncated responses
+        return e instanceof IOException || e instanceof XMLStreamException;
+    }
+
+    /*
+     * wait before retrying, false if interrupted
+     */
+    private boolean backoff(ConnectionSettings settings, int retry, Exception e) {
+        long ms = settings.backoff(retry);
+        service.getMetrics().retry(Metrics.DATA_POINT, stream.getStreamName());
+        log.warn("Reading page of " + stream.getStreamName() + " failed, retry " + (retry + 1) + " of "
+                + settings.getRetries() + " in " + ms + "ms: " + e.getMessage());
+        try {
+            Thread.sleep(ms);
+            return !closed;
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean readPageOnce(PageParser.Handler handler) throws IOException, XMLStreamException {
+        int requested = pageSize();
+        Metrics metrics = service.getMetrics();
+        long begin = System.nanoTime();
+        HttpResponse rsp;
+        try {
+            rsp = execute(pageCursor);
+        } catch (IOException e) {
+            metrics.request(Metrics.DATA_POINT, stream.getStreamName(), -1, System.nanoTime() - begin);
+            throw e;
+        }
+        long responded = System.nanoTime();
+        metrics.request(Metrics.DATA_POINT, stream.getStreamName(), rsp.getStatusLine().getStatusCode(),
+                responded - begin);
+        PageParser.Page page = parse(rsp, handler, metrics, stream.getStreamName());
+        pageCursor = page.cursor;
+        paged(requested, page, responded - begin, System.nanoTime() - responded);
+        return more(page);
+    }
+
+    /*
+     * true if there are pages after this one. Pages can be smaller than asked for so only
+     * the cursor tells, an empty page ends the scan in case a server always sends one.
+     */
+    static boolean more(PageParser.Page page) {
+        return page.cursor != null && page.records > 0;
+    }
+
+    /*
+     * data points to ask for in the next page, -1 for the servers default
+     */
+    int pageSize() {
+        PageSizer sizer = pageSizer;
+        int pageSize = sizer == null ? -1 : sizer.size();
+        if (size > 0) {
+            // no more than is still to be returned
+            int left = Math.max(1, remaining);
+            return pageSize == -1 ? Math.min(left, PAGE_SIZE) : Math.min(left, pageSize);
+        }
+        return pageSize;
+    }
+
+    /*
+     * let adaptive paging learn from a page read
+     */
+    void paged(int requested, PageParser.Page page, long latencyNanos, long parseNanos) {
+        PageSizer sizer = pageSizer;
+        if (sizer != null) {
+            sizer.paged(requested, page.records, more(page), latencyNanos, parseNanos);
+        }
+    }
+
+    /*
+     * passes each DataPoint element of a /ws/DataPoint response to the handler
+     */
+    static PageParser.Page parse(HttpResponse rsp, PageParser.Handler handler, Metrics metrics, String name)
+            throws IOException, XMLStreamException {
+        HttpEntity entity = rsp.getEntity();
+        try {
+            int status = rsp.getStatusLine().getStatusCode();
+            if (status == 401) {
+                throw new StatusException(status, "Invalid credentials, HTTP 401");
+            } else if (status != 200) {
+                log.error(entity == null ? "" : EntityUtils.toString(entity));
+                throw new StatusException(status, "Unexpected status code: (" + status + ") " +
+                        rsp.getStatusLine().getReasonPhrase());
+            }
+            // parse the data points straight off of the response, decompressing as they are read
+            return ConnectionPools.parse(entity, "DataPoint", handler, metrics, Metrics.DATA_POINT, name);
+        } finally {
+            // release the connection back to the pool
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * returns true if there is additional datapoints available in this time
+     * period. Blocks while the next page is fetched, without holding a lock.
+     */
+    public boolean hasNext() {
+        return current() != null;
+    }
+
+    /**
+     * fetches the next data point in chronological order
+     */
+    public DataPoint<DataType> next() {
+        DataPoint<DataType> ret = poll();
+        if (ret == null)
+            throw new IndexOutOfBoundsException();
+        return ret;
+    }
+
+    /**
+     * Fetches the next data point in chronological order, or null once the snapshot is
+     * exhausted. Every data point is returned to exactly one caller, so any number of
+     * threads can drain the same snapshot.
+     * 
+     * <pre>
+     * final StreamSnapshot&lt;Float> snapshot = stream.getAll().prefetch(2);
+     * for (int i = 0; i &lt; workers; i++) {
+     *     executor.submit(new Runnable() {
+     *         public void run() {
+     *             DataPoint&lt;Float> point;
+     *             while ((point = snapshot.poll()) != null) {
+     *                 ...
+     *             }
+     *         }
+     *     });
+     * }
+     * </pre>
+     */
+    public DataPoint<DataType> poll() {
+        Page p;
+        while ((p = current()) != null) {
+            int i = p.claimed.getAndIncrement();
+            if (i < p.points.size()) {
+                return p.points.get(i);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * the page with data points left to claim, moving on to the next one when the current
+     * page is exhausted, null at the end of the snapshot
+     */
+    private Page current() {
+        Page p = page.get();
+        while (p.claimed.get() >= p.points.size()) {
+            if (p.last) {
+                if (signalFailure && !closed && failed()) {
+                    Exception cause = failure();
+                    throw new ScanFailedException("Scan of " + stream.getStreamName() + " failed"
+                            + (cause == null ? "" : ": " + cause.getMessage()), cause, checkpoint());
+                }
+                return null;
+            }
+            Page next = p.successor();
+            if (next == null) {
+                return null;
+            }
+            page.compareAndSet(p, next);
+            p = page.get();
+        }
+        return p;
+    }
+
+    /*
+     * Reads the next page from the server, the prefetcher or the segment cache. Only ever
+     * called by one thread at a time, the one that exhausted the previous page first, so
+     * the cursor, the recording and the other iteration state need no locking.
+     */
+    private Page fetch() {
+        if (!started) {
+            started = true;
+            if (materializeBytes > 0 && owner.materialized == null) {
+                recording = new SnapshotStore<DataType>(stream.getStreamName(), stream.getValueClass(),
+                        materializeBytes, overflow);
+            }
+            // serve from the services segment cache if there is one and the query can be cached
+            // a cursor only means something to the server
+            SegmentCache cache = useSegmentCache && pageCursor == null ? service.getSegmentCache() : null;
+            cached = cache == null ? null : cache.read(this);
+        }
+        List<DataPoint<DataType>> points = new ArrayList<DataPoint<DataType>>(PAGE_SIZE);
+        boolean last = true;
+        // where the page starts, for checkpoints
+        String cursor = pageCursor;
+        long base = 0;
+        if (!closed) {
+            try {
+                if (cached != null) {
+                    cursor = null;
+                    base = cachedOffset;
+                    while (points.size() < PAGE_SIZE && !closed && cached.hasNext()) {
+                        points.add(cached.next());
+                    }
+                    cachedOffset += points.size();
+                    last = points.size() < PAGE_SIZE;
+                } else if (prefetchPages > 0) {
+                    // wait for the next page the background fetch has read
+                    if (prefetcher == null) {
+                        prefetcher = new Prefetcher(prefetchPages);
+                    }
+                    Chunk<DataType> taken = prefetcher.take();
+                    if (taken != null) {
+                        cursor = taken.cursor;
+                        if (taken.failure != null) {
+                            throw taken.failure;
+                        }
+                        if (!taken.points.isEmpty()) {
+                            points = taken.points;
+                            last = false;
+                        }
+                    }
+                } else {
+                    // wait for next chunks response
+                    last = !readPage(points);
+                }
+            } catch (Exception e) {
+                failure = e;
+                log.error(e.getMessage(), e);
+            }
+        }
+        if (skip > 0 && !points.isEmpty()) {
+            // resuming, drop what was handed out before the checkpoint
+            int dropped = (int) Math.min(skip, points.size());
+            lastTimestamp = points.get(dropped - 1).getTimestamp();
+            points.subList(0, dropped).clear();
+            skip -= dropped;
+            base += dropped;
+        }
+        if (size > 0) {
+            if (points.size() >= remaining) {
+                points.subList(remaining, points.size()).clear();
+                last = true;
+                Prefetcher p = prefetcher;
+                if (p != null) {
+                    p.cancel();
+                }
+            }
+            remaining -= points.size();
+        }
+        Page fetched = new Page(points, last, cursor, base, lastTimestamp);
+        if (!points.isEmpty()) {
+            lastTimestamp = points.get(points.size() - 1).getTimestamp();
+        }
+        record(points, last);
+        return fetched;
+    }
+
+    /**
+     * Where the scan is, to resume it later with DataStreamService.resume(). Counts the
+     * data points handed out by next() and poll(), with concurrent consumers some may
+     * not have been processed yet.
+     */
+    public ScanCheckpoint checkpoint() {
+        Page p = page.get();
+        int taken = Math.min(p.claimed.get(), p.points.size());
+        long timestamp = taken > 0 ? p.points.get(taken - 1).getTimestamp() : p.before;
+        boolean complete = p.last && taken == p.points.size() && !failed();
+        // a capped scan resumes with what is left of the cap
+        int left = size == -1 ? -1 : remaining + p.points.size() - taken;
+        return new ScanCheckpoint(this, p.cursor, p.base + taken, timestamp, complete, left);
+    }
+
+    /*
+     * keep a copy of the fetched page for materialize()
+     */
+    private void record(List<DataPoint<DataType>> points, boolean last) {
+        SnapshotStore<DataType> store = recording;
+        if (store == null) {
+            return;
+        }
+        for (DataPoint<DataType> point : points) {
+            if (!store.add(point)) {
+                recording = null;
+                store.discard();
+                return;
+            }
+        }
+        if (last) {
+            recording = null;
+            // only keep complete passes
+            if (!closed && !failed() && owner.materialized == null && store.complete()) {
+                owner.materialized = store;
+            } else {
+                store.discard();
+            }
+        }
+    }
+
+    public void remove() {
+        // TODO record last read UUID and send an HTTP DELETE to support
+        throw new RuntimeException("Not implemented");
+    }
+
+    /**
+     * This is created for convience so can be used in for loops, but to meet
+     * the iteratable contract we need to be able to iterate more then once.
+     * Each call creates a new snapshot of the same query that fetches from the
+     * server again, unless the snapshot is materialized and a previous pass was
+     * completed, in which case that copy is iterated instead.
+     */
+    public Iterator<DataPoint<DataType>> iterator() {
+        SnapshotStore<DataType> store = materialized;
+        if (store != null) {
+            return store.iterator();
+        }
+        // a resumed snapshot starts over from its checkpoint
+        StreamSnapshot<DataType> snapshot = resumed != null ? new StreamSnapshot<DataType>(stream, resumed)
+                : new StreamSnapshot<DataType>(stream, start, end, reversed, size, interval, aggregate, join);
+        snapshot.prefetchPages = prefetchPages;
+        snapshot.pageSizer = pageSizer == null ? null : pageSizer.copy();
+        snapshot.materializeBytes = materializeBytes;
+        snapshot.overflow = overflow;
+        snapshot.owner = this;
+        return snapshot;
+    }
+
+    /**
+     * Keep a copy of the first complete pass over this snapshot, either by iterating
+     * it directly or through iterator(), so further calls to iterator() are served
+     * from memory instead of the server. The copy uses the compact on disk encoding
+     * of the SegmentCache and at most maxBytes of heap, a pass that needs more is
+     * dropped or spilled to a temporary file depending on overflow. Must be set
+     * before iterating.
+     * 
+     * <pre>
+     * StreamSnapshot&lt;Float> snapshot = stream.get(start, end).materialize(16 * 1024 * 1024, Overflow.EVICT);
+     * chart(snapshot);
+     * // served from memory
+     * export(snapshot);
+     * </pre>
+     * 
+     * @param maxBytes
+     *            heap used for the copy, 0 to disable
+     * @param overflow
+     *            what to do with a pass that needs more than maxBytes
+     * @return this snapshot
+     */
+    public synchronized StreamSnapshot<DataType> materialize(long maxBytes, Overflow overflow) {
+        if (started) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        this.materializeBytes = Math.max(0, maxBytes);
+        this.overflow = overflow == null ? Overflow.SPILL : overflow;
+        return this;
+    }
+
+    /**
+     * materialize(DEFAULT_MATERIALIZE_BYTES, Overflow.SPILL)
+     */
+    public StreamSnapshot<DataType> materialize() {
+        return materialize(DEFAULT_MATERIALIZE_BYTES, Overflow.SPILL);
+    }
+
+    /**
+     * true once a complete pass has been kept by materialize()
+     */
+    public boolean isMaterialized() {
+        return materialized != null;
+    }
+
+    /**
+     * Fetch up to the given number of pages ahead in the background while the current page
+     * is being iterated over, so the network round trip and parsing overlap with the callers
+     * work. Disabled (0) by default, must be set before iterating. Uses the executor of the
+     * DataStreamService.
+     * 
+     * <pre>
+     * StreamSnapshot&lt;Float> snapshot = stream.getAll().prefetch(2);
+     * try {
+     *     while (snapshot.hasNext()) {
+     *         ...
+     *     }
+     * } finally {
+     *     snapshot.close();
+     * }
+     * </pre>
+     * 
+     * @param pages
+     *            number of pages to read ahead of the consumer
+     * @return this snapshot
+     */
+    public synchronized StreamSnapshot<DataType> prefetch(int pages) {
+        if (started) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        this.prefetchPages = Math.max(0, pages);
+        return this;
+    }
+
+    /**
+     * Ask the server for pages of this many data points instead of its default (1000).
+     * Pages are followed by their cursor so a server returning fewer is fine. Must be set
+     * before iterating.
+     * 
+     * @param size
+     *            data points per page
+     * @return this snapshot
+     */
+    public synchronized StreamSnapshot<DataType> pageSize(int size) {
+        if (started) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        this.pageSizer = new PageSizer(size);
+        return this;
+    }
+
+    /**
+     * Return at most this many data points, ie the first n or, reversed, the latest n,
+     * like the size given when creating the snapshot. Pages ask for no more than are
+     * still to be returned so a limit within a page is a single request. Must be set
+     * before iterating.
+     * 
+     * @param n
+     *            most data points returned
+     * @return this snapshot
+     */
+    public synchronized StreamSnapshot<DataType> limit(int n) {
+        if (started) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        if (n < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + n);
+        }
+        this.size = n;
+        this.remaining = n;
+        return this;
+    }
+
+    /**
+     * Adapt the page size to how the pages are read, starting at 1000 data points. Pages
+     * grow while the round trip of a request is a large share of the time it takes and
+     * shrink when one takes seconds, cutting the requests of big scans over slow links.
+     * Must be set before iterating.
+     * 
+     * @param min
+     *            fewest data points asked for in a page
+     * @param max
+     *            most data points asked for in a page
+     * @return this snapshot
+     */
+    public synchronized StreamSnapshot<DataType> adaptivePaging(int min, int max) {
+        if (started) {
+            throw new IllegalStateException("Iteration has already started");
+        }
+        this.pageSizer = new PageSizer(min, max, PAGE_SIZE);
+        return this;
+    }
+
+    /**
+     * data points asked for in the next page, -1 for the servers default
+     */
+    public int getPageSize() {
+        return pageSize();
+    }
+
+    /**
+     * Stops any background prefetch and aborts an in flight request. Iterating stops once
+     * the already buffered data points are consumed. Only needed when a snapshot is
+     * abandoned before it is exhausted, the copy a materialized pass was recording is
+     * dropped.
+     */
+    public void close() {
+        closed = true;
+        SnapshotStore<DataType> store = recording;
+        if (store != null) {
+            recording = null;
+            store.discard();
+        }
+        Prefetcher p = prefetcher;
+        if (p != null) {
+            p.cancel();
+        }
+        HttpGet r = request;
+        if (r != null) {
+            r.abort();
+        }
+        SegmentCache.Read<DataType> c = cached;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    /*
+     * true if iteration ended early because a page could not be read
+     */
+    boolean failed() {
+        SegmentCache.Read<DataType> c = cached;
+        return failure != null || (c != null && c.failed());
+    }
+
+    /*
+     * why iteration ended early, null if it did not
+     */
+    Exception failure() {
+        SegmentCache.Read<DataType> c = cached;
+        return failure != null || c == null ? failure : c.failure();
+    }
+
+    /*
+     * same query over a different range, always fetched from the server
+     */
+    StreamSnapshot<DataType> range(long start, long end) {
+        StreamSnapshot<DataType> snapshot = new StreamSnapshot<DataType>(stream, start, end, reversed, size,
+                interval, aggregate, join);
+        snapshot.useSegmentCache = false;
+        snapshot.signalFailure = false;
+        snapshot.prefetchPages = prefetchPages;
+        snapshot.pageSizer = pageSizer == null ? null : pageSizer.copy();
+        return snapshot;
+    }
+
+    /*
+     * the stream this snapshot queries
+     */
+    DataStream<DataType> getStream() {
+        return stream;
+    }
+
+    /**
+     * start of the range, ms since epoc or -1
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * end of the range, ms since epoc or -1
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public Interval getInterval() {
+        return interval;
+    }
+
+    public Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    /**
+     * most data points returned, -1 for all of the range
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public String getJoin() {
+        return join;
+    }
+
+    public void setJoin(String join) {
+        this.join = join;
+    }
+
+    /*
+     * Reads pages on the services executor into a bounded queue ahead of the consumer.
+     * The end of the snapshot is marked with an empty page, failures are handed over
+     * to the consumer as the exception.
+     */
+    private class Prefetcher implements Runnable {
+        private final BlockingQueue<Chunk<DataType>> pages;
+        private final Future<?> task;
+        private volatile boolean cancelled = false;
+        private volatile boolean abandoned = false;
+        private volatile long lastTake = System.currentTimeMillis();
+
+        Prefetcher(int ahead) {
+            pages = new ArrayBlockingQueue<Chunk<DataType>>(ahead + 1);
+            task = service.getExecutor().submit(this);
+        }
+
+        public void run() {
+            Exception failed = null;
+            String cursor = pageCursor;
+            try {
+                boolean next = true;
+                while (next && !cancelled) {
+                    cursor = pageCursor;
+                    List<DataPoint<DataType>> page = new ArrayList<DataPoint<DataType>>(PAGE_SIZE);
+                    next = readPage(page);
+                    if (!page.isEmpty()) {
+                        put(new Chunk<DataType>(cursor, page, null));
+                    }
+                }
+                cursor = pageCursor;
+            } catch (Exception e) {
+                failed = e;
+            } finally {
+                put(new Chunk<DataType>(cursor, Collections.<DataPoint<DataType>> emptyList(), failed));
+            }
+        }
+
+        private void put(Chunk<DataType> page) {
+            try {
+                while (!cancelled) {
+                    if (pages.offer(page, 1, TimeUnit.SECONDS)) {
+                        return;
+                    }
+                    if (System.currentTimeMillis() - lastTake > ABANDON_TIMEOUT_MS) {
+                        log.warn("Abandoning prefetch of " + stream.getStreamName() + ", no pages taken in "
+                                + ABANDON_TIMEOUT_MS + "ms");
+                        abandoned = true;
+                        cancelled = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        /*
+         * next page, an empty one with or without a failure at the end of the snapshot, null
+         * if cancelled
+         */
+        Chunk<DataType> take() throws Exception {
+            Chunk<DataType> page = null;
+            while (page == null) {
+                if (abandoned) {
+                    throw new IllegalStateException("Prefetch was abandoned, no pages were taken in "
+                            + ABANDON_TIMEOUT_MS + "ms");
+                } else if (cancelled) {
+                    return null;
+                }
+                page = pages.poll(1, TimeUnit.SECONDS);
+            }
+            lastTake = System.currentTimeMillis();
+            return page;
+        }
+
+        void cancel() {
+            cancelled = true;
+            task.cancel(true);
+            pages.clear();
+        }
+    }
+
+    /*
+     * A page read by the prefetcher with the cursor it was read from, or the failure
+     * that ended the prefetch
+     */
+    private static final class Chunk<DataType> {
+        final String cursor;
+        final List<DataPoint<DataType>> points;
+        final Exception failure;
+
+        Chunk(String cursor, List<DataPoint<DataType>> points, Exception failure) {
+            this.cursor = cursor;
+            this.points = points;
+            this.failure = failure;
+        }
+    }
+
+    /*
+     * counts the records passed on to a handler
+     */
+    private static final class RecordCounter implements PageParser.Handler {
+        private final PageParser.Handler handler;
+        int records = 0;
+
+        RecordCounter(PageParser.Handler handler) {
+            this.handler = handler;
+        }
+
+        public void startRecord() {
+            records++;
+            handler.startRecord();
+        }
+
+        public void field(String name, String value) {
+            handler.field(name, value);
+        }
+
+        public void endRecord() {
+            handler.endRecord();
+        }
+    }
+
+    /*
+     * an error status returned by the server
+     */
+    static class StatusException extends DataServiceException {
+        private static final long serialVersionUID = -1493226785063815452L;
+        private final int status;
+
+        StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    /*
+     * A fetched page handed to the consumers. Points are claimed by index, the first
+     * consumer to find the page exhausted fetches its successor while any others wait
+     * for it, so pages are fetched one at a time and in order.
+     */
+    private final class Page {
+        final List<DataPoint<DataType>> points;
+        final boolean last;
+        // the cursor the page was read from and how many points from it precede the page
+        final String cursor;
+        final long base;
+        // timestamp of the point before the page, -1 if none
+        final long before;
+        final AtomicInteger claimed = new AtomicInteger();
+        private final AtomicBoolean fetching = new AtomicBoolean();
+        private final CountDownLatch fetched = new CountDownLatch(1);
+        private volatile Page next = null;
+
+        Page(List<DataPoint<DataType>> points, boolean last, String cursor, long base, long before) {
+            this.points = points;
+            this.last = last;
+            this.cursor = cursor;
+            this.base = base;
+            this.before = before;
+        }
+
+        /*
+         * the page after this one, null if the waiting thread was interrupted
+         */
+        Page successor() {
+            if (fetching.compareAndSet(false, true)) {
+                try {
+                    next = fetch();
+                } finally {
+                    fetched.countDown();
+                }
+            } else {
+                try {
+                    fetched.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return next;
+        }
+    }
+
+    /*
+     * builds DataPoints from the parsed elements of a page and adds them to a buffer
+     */
+    static class PointCollector<DataType> implements PageParser.Handler {
+        private final List<DataPoint<DataType>> buffer;
+        private final Class<? extends DataType> valueClass;
+        private DataPoint<DataType> current;
+
+        PointCollector(List<DataPoint<DataType>> buffer, Class<? extends DataType> valueClass) {
+            this.buffer = buffer;
+            this.valueClass = valueClass;
+        }
+
+        public void startRecord() {
+            current = new DataPoint<DataType>();
+            current.setValueClass(valueClass);
+        }
+
+        public void field(String name, String value) {
+            current.setField(name, value);
+        }
+
+        public void endRecord() {
+            buffer.add(current);
+            current = null;
+        }
+    }
+
+}
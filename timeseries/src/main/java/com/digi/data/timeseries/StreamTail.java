@@ -0,0 +1,253 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows a stream, polling for data points newer than the last one seen and
+ * passing them to a listener in timestamp order. Each poll asks for the data
+ * points from the timestamp of the last one seen, so points that share that
+ * timestamp are not missed, and drops the ones already delivered by their id.
+ *
+ * Polls run on the executor of the DataStreamService one at a time. The delay
+ * between polls is halved down to the minimum after a poll that found new data
+ * points and doubled up to the maximum after one that did not or failed.
+ *
+ * <pre>
+ * StreamTail&lt;Float> tail = stream.tail(new StreamTail.Listener&lt;Float>() {
+ *     public void dataPoint(DataPoint&lt;Float> point) {
+ *         System.err.println(point.getValue());
+ *     }
+ *
+ *     public void error(Exception e) {
+ *         e.printStackTrace();
+ *     }
+ * });
+ * ...
+ * tail.close();
+ * </pre>
+ */
+public class StreamTail<DataType> implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(StreamTail.class);
+
+    /**
+     * Receives the data points of a tail, called from one thread at a time
+     */
+    public interface Listener<DataType> {
+        /**
+         * a new data point, in timestamp order
+         */
+        void dataPoint(DataPoint<DataType> point);
+
+        /**
+         * a poll failed, polling continues after the next delay
+         */
+        void error(Exception e);
+    }
+
+    private static ScheduledExecutorService scheduler;
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "datastream-tail");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    private final DataStream<DataType> stream;
+    private final Listener<DataType> listener;
+    private volatile long minDelay = TimeUnit.SECONDS.toMillis(1);
+    private volatile long maxDelay = TimeUnit.MINUTES.toMillis(1);
+    private volatile long delay;
+    private volatile long lastTimestamp;
+    // keys of the delivered data points with the last timestamp
+    private Set<Object> boundary = new HashSet<Object>();
+    private volatile boolean closed = false;
+    private volatile Future<?> pending = null;
+    private volatile StreamSnapshot<DataType> polling = null;
+
+    StreamTail(DataStream<DataType> stream, long since, Listener<DataType> listener) {
+        this.stream = stream;
+        this.listener = listener;
+        this.lastTimestamp = since;
+        this.delay = minDelay;
+    }
+
+    StreamTail(DataStream<DataType> stream, long since, BlockingQueue<DataPoint<DataType>> queue) {
+        this.stream = stream;
+        this.listener = new QueueListener(queue);
+        this.lastTimestamp = since;
+        this.delay = minDelay;
+    }
+
+    /*
+     * first poll right away
+     */
+    StreamTail<DataType> start() {
+        schedule(0);
+        return this;
+    }
+
+    /**
+     * Bounds of the delay between polls, defaults to 1 second and 1 minute
+     *
+     * @return this tail
+     */
+    public StreamTail<DataType> setPollInterval(long min, long max, TimeUnit unit) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Invalid poll interval " + min + " to " + max);
+        }
+        minDelay = unit.toMillis(min);
+        maxDelay = unit.toMillis(max);
+        delay = Math.max(minDelay, Math.min(maxDelay, delay));
+        return this;
+    }
+
+    /**
+     * current delay between polls in ms
+     */
+    public long getPollDelay() {
+        return delay;
+    }
+
+    /**
+     * timestamp of the last data point delivered, or the start of the tail
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Stop polling, the listener is not called once an in flight poll is aborted
+     */
+    public void close() {
+        closed = true;
+        Future<?> f = pending;
+        if (f != null) {
+            f.cancel(false);
+        }
+        StreamSnapshot<DataType> p = polling;
+        if (p != null) {
+            p.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void schedule(long ms) {
+        if (closed) {
+            return;
+        }
+        pending = scheduler().schedule(new Runnable() {
+            public void run() {
+                try {
+                    stream.getService().getExecutor().submit(new Runnable() {
+                        public void run() {
+                            poll();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // executor shut down
+                    log.error("Cannot poll " + stream.getStreamName() + ", stopping tail", e);
+                    closed = true;
+                }
+            }
+        }, ms, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        int found = 0;
+        try {
+            StreamSnapshot<DataType> snapshot = new StreamSnapshot<DataType>(stream, lastTimestamp, -1,
+                    Interval.None, Aggregate.None, null);
+            polling = snapshot;
+            boolean more = true;
+            while (more && !closed) {
+                List<DataPoint<DataType>> page = new LinkedList<DataPoint<DataType>>();
+                more = snapshot.readPage(page);
+                for (DataPoint<DataType> point : page) {
+                    if (closed) {
+                        return;
+                    } else if (deliver(point)) {
+                        found++;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (closed) {
+                return;
+            }
+            log.debug("Poll of " + stream.getStreamName() + " failed: " + e.getMessage());
+            listener.error(e);
+        } finally {
+            polling = null;
+        }
+        // tighten while busy, back off while idle
+        delay = found > 0 ? Math.max(minDelay, delay / 2) : Math.min(maxDelay, delay * 2);
+        schedule(delay);
+    }
+
+    /*
+     * pass on a data point unless it was delivered by a previous poll
+     */
+    boolean deliver(DataPoint<DataType> point) {
+        long timestamp = point.getTimestamp();
+        Object key = point.getId() != null ? point.getId() : point.getServerTimestamp() + ":" + point.getData();
+        if (timestamp < lastTimestamp || (timestamp == lastTimestamp && !boundary.add(key))) {
+            return false;
+        }
+        if (timestamp > lastTimestamp) {
+            lastTimestamp = timestamp;
+            boundary = new HashSet<Object>();
+            boundary.add(key);
+        }
+        listener.dataPoint(point);
+        return true;
+    }
+
+    /*
+     * listener that puts the data points on a queue, waiting while it is full
+     * until the tail is closed
+     */
+    private class QueueListener implements Listener<DataType> {
+        private final BlockingQueue<DataPoint<DataType>> queue;
+
+        QueueListener(BlockingQueue<DataPoint<DataType>> queue) {
+            this.queue = queue;
+        }
+
+        public void dataPoint(DataPoint<DataType> point) {
+            try {
+                while (!closed && !queue.offer(point, 1, TimeUnit.SECONDS)) {
+                    // consumer is behind
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void error(Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+}
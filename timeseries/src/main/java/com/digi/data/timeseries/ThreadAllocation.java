@@ -0,0 +1,41 @@
+package com.digi.data.timeseries;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+ * heap allocated by the current thread, where the jvm counts it (HotSpot and
+ * OpenJ9 do)
+ */
+final class ThreadAllocation {
+    private static final com.sun.management.ThreadMXBean threads = threads();
+
+    private ThreadAllocation() {
+    }
+
+    /*
+     * bytes allocated by the current thread so far, -1 if not known
+     */
+    static long current() {
+        if (threads == null) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (Throwable e) {
+            // not a jvm that counts allocations
+        }
+        return null;
+    }
+}
@@ -0,0 +1,428 @@
+package com.digi.data.timeseries;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory store of numeric streams that keeps the data points off the heap,
+ * compressed. Each stream is split into blocks of blockMillis (two hours by
+ * default) whose timestamps are delta of delta and whose values XOR encoded,
+ * see CompressedBlock, so regular samples of slowly changing values take a few
+ * bits each. The heap only holds a small object per block, so weeks of data of
+ * a fleet of streams do not add to garbage collection pauses.
+ *
+ * <pre>
+ * TimeSeriesStore store = new TimeSeriesStore();
+ * for (DataStream&lt;?> stream : service.getStreams("00000000-00000000-00409DFF-FF000000")) {
+ *     store.addAll(stream.get(start, end));
+ * }
+ * DataPointBatch lastDay = store.get("00000000-00000000-00409DFF-FF000000/temp", end - DAY, end);
+ * Rollup hourly = store.rollup("00000000-00000000-00409DFF-FF000000/temp", Interval.Hour, null, start, end);
+ * </pre>
+ *
+ * Data points are added fastest in timestamp order, one added before the last
+ * of its block has the block rewritten. Rollups use the totals kept per block
+ * for blocks within a single bucket and decode only the others. Reads and
+ * writes may happen concurrently, a read sees the data points added before it
+ * started.
+ */
+public class TimeSeriesStore implements Closeable {
+    public static final long DEFAULT_BLOCK_MILLIS = TimeUnit.HOURS.toMillis(2);
+
+    private final long blockMillis;
+    private final ConcurrentHashMap<String, Series> streams = new ConcurrentHashMap<String, Series>();
+
+    /*
+     * the blocks of a stream by the start of their partition
+     */
+    private static final class Series {
+        final TreeMap<Long, CompressedBlock> blocks = new TreeMap<Long, CompressedBlock>();
+        long points = 0;
+    }
+
+    public TimeSeriesStore() {
+        this(DEFAULT_BLOCK_MILLIS);
+    }
+
+    /**
+     * @param blockMillis
+     *            length of the time partitions, longer ones compress better but are
+     *            decoded in full more often by range reads
+     */
+    public TimeSeriesStore(long blockMillis) {
+        if (blockMillis < 1) {
+            throw new IllegalArgumentException("Blocks have to be at least 1ms long");
+        }
+        this.blockMillis = blockMillis;
+    }
+
+    public long getBlockMillis() {
+        return blockMillis;
+    }
+
+    /**
+     * add a data point to a stream
+     */
+    public void add(String stream, long timestamp, double value) {
+        Series series = series(stream);
+        synchronized (series) {
+            append(series, timestamp, value);
+        }
+    }
+
+    /**
+     * add every data point of a batch to a stream, ie read with a ColumnarSnapshot
+     */
+    public void add(String stream, DataPointBatch batch) {
+        long[] timestamps = batch.getTimestamps();
+        double[] values = batch.getValues();
+        Series series = series(stream);
+        synchronized (series) {
+            for (int i = 0; i < batch.size(); i++) {
+                append(series, timestamps[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Add the data points of a snapshot to the stream of the same name, in either order.
+     *
+     * @return number of data points added
+     * @throws ClassCastException
+     *             if a value is not numeric
+     */
+    public long addAll(StreamSnapshot<?> snapshot) {
+        String stream = snapshot.getStream().getStreamName();
+        DataPointBatch partition = new DataPointBatch();
+        long block = Long.MIN_VALUE;
+        long added = 0;
+        for (DataPoint<?> point : snapshot) {
+            long b = partition(point.getTimestamp());
+            if (b != block && partition.size() > 0) {
+                // reversed snapshots are added a partition at a time in order
+                added += flush(stream, partition);
+            }
+            block = b;
+            partition.add(point.getTimestamp(), point.getDoubleValue());
+        }
+        return added + flush(stream, partition);
+    }
+
+    private long flush(String stream, DataPointBatch partition) {
+        int n = partition.size();
+        long[] timestamps = partition.getTimestamps();
+        if (n > 1 && timestamps[0] > timestamps[n - 1]) {
+            reverse(timestamps, partition.getValues(), n);
+        }
+        add(stream, partition);
+        partition.clear();
+        return n;
+    }
+
+    private static void reverse(long[] timestamps, double[] values, int n) {
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            long t = timestamps[i];
+            timestamps[i] = timestamps[j];
+            timestamps[j] = t;
+            double v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+        }
+    }
+
+    /**
+     * the data points of a stream in [start, end), in timestamp order
+     */
+    public DataPointBatch get(String stream, long start, long end) {
+        return get(stream, start, end, new DataPointBatch());
+    }
+
+    /**
+     * Clears the batch and fills it with the data points of a stream in [start, end), in
+     * timestamp order
+     *
+     * @return the batch
+     */
+    public DataPointBatch get(String stream, long start, long end, DataPointBatch batch) {
+        batch.clear();
+        for (Block block : blocks(stream, start, end)) {
+            CompressedBlock.Decoder decoder = block.decoder;
+            while (decoder.next()) {
+                long t = decoder.timestamp();
+                if (t >= end) {
+                    break;
+                } else if (t >= start) {
+                    batch.add(t, decoder.value());
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Roll up the data points of a stream in [start, end) like the server would.
+     *
+     * @param timezone
+     *            id of the timezone buckets are aligned in, null for UTC
+     * @see Rollup
+     */
+    public Rollup rollup(String stream, Interval interval, String timezone, long start, long end) {
+        return rollup(stream, new Rollup(interval, timezone), start, end);
+    }
+
+    /**
+     * Adds the data points of a stream in [start, end) to a rollup, ie to roll up a fleet
+     * of streams together.
+     *
+     * @return the rollup
+     */
+    public Rollup rollup(String stream, Rollup rollup, long start, long end) {
+        for (Block block : blocks(stream, start, end)) {
+            if (block.first >= start && block.last < end
+                    && rollup.add(block.first, block.last, block.count, block.sum, block.min, block.max,
+                            block.mean, block.squares)) {
+                continue;
+            }
+            CompressedBlock.Decoder decoder = block.decoder;
+            while (decoder.next()) {
+                long t = decoder.timestamp();
+                if (t >= end) {
+                    break;
+                } else if (t >= start) {
+                    rollup.add(t, decoder.value());
+                }
+            }
+        }
+        return rollup;
+    }
+
+    /**
+     * names of the streams with data points, sorted
+     */
+    public Set<String> getStreams() {
+        return new TreeSet<String>(streams.keySet());
+    }
+
+    /**
+     * number of data points of a stream
+     */
+    public long size(String stream) {
+        Series series = streams.get(stream);
+        if (series == null) {
+            return 0;
+        }
+        synchronized (series) {
+            return series.points;
+        }
+    }
+
+    /**
+     * number of data points of all streams
+     */
+    public long size() {
+        long size = 0;
+        for (String stream : streams.keySet()) {
+            size += size(stream);
+        }
+        return size;
+    }
+
+    /**
+     * timestamps of the first and last data points of a stream, null if it has none
+     */
+    public long[] getRange(String stream) {
+        Series series = streams.get(stream);
+        if (series == null) {
+            return null;
+        }
+        synchronized (series) {
+            if (series.blocks.isEmpty()) {
+                return null;
+            }
+            return new long[] { series.blocks.firstEntry().getValue().first(),
+                    series.blocks.lastEntry().getValue().last() };
+        }
+    }
+
+    /**
+     * bytes of memory off the heap used by the data points
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Series series : streams.values()) {
+            synchronized (series) {
+                for (CompressedBlock block : series.blocks.values()) {
+                    bytes += block.bytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the blocks of every stream that end at or before the timestamp, ie to keep
+     * a sliding window of data. Data points of a block that starts before and ends after
+     * are kept.
+     */
+    public void evictBefore(long timestamp) {
+        for (Map.Entry<String, Series> entry : streams.entrySet()) {
+            Series series = entry.getValue();
+            synchronized (series) {
+                Map<Long, CompressedBlock> old = series.blocks.headMap(timestamp - blockMillis, true);
+                for (CompressedBlock block : old.values()) {
+                    series.points -= block.count();
+                }
+                old.clear();
+            }
+        }
+    }
+
+    /**
+     * remove all data points of a stream
+     */
+    public void remove(String stream) {
+        streams.remove(stream);
+    }
+
+    /**
+     * remove all data points, the memory off the heap is freed once their blocks were
+     * garbage collected
+     */
+    public void clear() {
+        streams.clear();
+    }
+
+    /**
+     * same as clear()
+     */
+    public void close() {
+        clear();
+    }
+
+    private Series series(String stream) {
+        Series series = streams.get(stream);
+        if (series == null) {
+            streams.putIfAbsent(stream, new Series());
+            series = streams.get(stream);
+        }
+        return series;
+    }
+
+    /*
+     * start of the partition of a timestamp
+     */
+    private long partition(long timestamp) {
+        return Math.floorDiv(timestamp, blockMillis) * blockMillis;
+    }
+
+    /*
+     * appends to the block of the timestamp, rewriting it if the data point is out of
+     * order. Called holding the lock of the series.
+     */
+    private void append(Series series, long timestamp, double value) {
+        long start = partition(timestamp);
+        CompressedBlock block = series.blocks.get(start);
+        if (block == null) {
+            Map.Entry<Long, CompressedBlock> previous = series.blocks.lowerEntry(start);
+            if (previous != null && series.blocks.higherEntry(start) == null) {
+                // later data points will go to the new block
+                previous.getValue().trim();
+            }
+            block = new CompressedBlock(start);
+            series.blocks.put(start, block);
+        } else if (timestamp < block.last()) {
+            block = rewrite(block, timestamp, value);
+            series.blocks.put(start, block);
+            series.points++;
+            return;
+        }
+        block.append(timestamp, value);
+        series.points++;
+    }
+
+    /*
+     * a copy of the block with a data point inserted in order
+     */
+    private static CompressedBlock rewrite(CompressedBlock block, long timestamp, double value) {
+        int n = block.count();
+        long[] timestamps = new long[n + 1];
+        double[] values = new double[n + 1];
+        CompressedBlock.Decoder decoder = block.view();
+        int i = 0;
+        while (decoder.next()) {
+            timestamps[i] = decoder.timestamp();
+            values[i] = decoder.value();
+            i++;
+        }
+        int at = Arrays.binarySearch(timestamps, 0, n, timestamp);
+        // after any data points with the same timestamp
+        at = at < 0 ? -(at + 1) : at + 1;
+        while (at < n && timestamps[at] == timestamp) {
+            at++;
+        }
+        System.arraycopy(timestamps, at, timestamps, at + 1, n - at);
+        System.arraycopy(values, at, values, at + 1, n - at);
+        timestamps[at] = timestamp;
+        values[at] = value;
+        CompressedBlock rewritten = new CompressedBlock(block.start);
+        for (int j = 0; j <= n; j++) {
+            rewritten.append(timestamps[j], values[j]);
+        }
+        return rewritten;
+    }
+
+    /*
+     * decoders and totals of the blocks of a stream overlapping [start, end), taken
+     * holding the lock so appends after do not change them
+     */
+    private List<Block> blocks(String stream, long start, long end) {
+        List<Block> blocks = new ArrayList<Block>();
+        Series series = streams.get(stream);
+        if (series == null || end <= start) {
+            return blocks;
+        }
+        synchronized (series) {
+            for (CompressedBlock block : series.blocks.subMap(partition(start), true, end, false).values()) {
+                if (block.count() > 0 && block.last() >= start) {
+                    blocks.add(new Block(block));
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /*
+     * what a read needs of a block, consistent with the data points it decodes
+     */
+    private static final class Block {
+        final CompressedBlock.Decoder decoder;
+        final long first;
+        final long last;
+        final long count;
+        final double sum;
+        final double min;
+        final double max;
+        final double mean;
+        final double squares;
+
+        Block(CompressedBlock block) {
+            decoder = block.view();
+            first = block.first();
+            last = block.last();
+            count = block.count();
+            sum = block.sum();
+            min = block.min();
+            max = block.max();
+            mean = block.mean();
+            squares = block.squares();
+        }
+    }
+}
@@ -0,0 +1,777 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store and forward upload of data points through a write ahead log on local
+ * disk. write() appends to the log and returns without touching the network, a
+ * background drainer uploads the log to /ws/DataPoint in the order it was
+ * written and deletes what the server accepted. While the server can not be
+ * reached data points pile up in the log, up to maxBytes, and are sent once it
+ * is back, also after a restart of the process.
+ *
+ * <pre>
+ * UploadLog uploads = service.getUploadLog(new File("/var/spool/datapoints")).open();
+ * uploads.write("device1/temp", System.currentTimeMillis(), 21.5f);
+ * ...
+ * uploads.close();
+ * </pre>
+ *
+ * The log is a sequence of segment files of segmentBytes each, appended to
+ * through a memory mapped buffer. Every record is
+ *
+ * <pre>
+ * int    length
+ * int    crc32 of the payload
+ * string streamId
+ * ...    the data point as in a SegmentFile
+ * </pre>
+ *
+ * and a length of 0 ends a segment. Appends are forced to disk together every
+ * syncInterval, or when sync() is called, so a crash loses at most that much.
+ * Recovery only scans the last segment for the end of the log, it takes the
+ * same time however large the backlog is. Data points are uploaded at least
+ * once, a crash between an upload and recording it sends the batch again.
+ *
+ * Only a batch the server refuses as invalid (400, 413 or 422) is dropped from
+ * the log. Any other failure, including invalid credentials, an unknown host or
+ * path and a broken configuration, keeps the log and tries again after backing
+ * off, so fixing the cause uploads what piled up.
+ */
+public class UploadLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(UploadLog.class);
+    private static final int MAGIC = 0x4457414c; // DWAL
+    private static final byte VERSION = 1;
+    private static final int HEADER = 5;
+    private static final int RECORD_HEADER = 8;
+    private static final String SUFFIX = ".wal";
+    private static final String ACK = "ack";
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 50;
+
+    /**
+     * What write() does when the log has grown to maxBytes
+     */
+    public enum Overflow {
+        /**
+         * delete the oldest segment that was not uploaded yet, losing its data points
+         */
+        DROP_OLDEST,
+        /**
+         * fail the write
+         */
+        REJECT
+    }
+
+    /*
+     * a mapped segment file, records are appended up to end
+     */
+    private static final class Segment {
+        final long number;
+        final File file;
+        final MappedByteBuffer buffer;
+        /* where the next record goes, the capacity for sealed segments whose end is found by reading */
+        int end;
+        boolean sealed;
+
+        Segment(long number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    private final DataStreamService service;
+    private final File directory;
+    private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    private int batchSize = DataPointWriter.DEFAULT_BATCH_SIZE;
+    private Overflow overflow = Overflow.DROP_OLDEST;
+    private ExecutorService executor;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    /* first record not acknowledged by the server */
+    private Segment ackSegment;
+    private int ackOffset;
+    /* bytes appended and bytes forced to disk since opening, for group commit */
+    private long appendedBytes = 0;
+    private long syncedBytes = 0;
+    private final Object syncLock = new Object();
+    private boolean opened = false;
+    private volatile boolean closed = false;
+    private CountDownLatch stopped;
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /*
+     * package only constructor called from DataStreamService
+     */
+    UploadLog(DataStreamService service, File directory) {
+        this.service = service;
+        this.directory = directory;
+    }
+
+    /**
+     * Size of each segment file, 16MB by default. A data point has to fit into one.
+     *
+     * @return this log
+     */
+    public synchronized UploadLog segmentBytes(int bytes) {
+        checkNotOpened();
+        if (bytes < 1024) {
+            throw new IllegalArgumentException("Segments need at least 1KB");
+        }
+        this.segmentBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Most disk the log may use, 1GB by default, at least two segments. What happens
+     * beyond is up to the overflow.
+     *
+     * @return this log
+     */
+    public synchronized UploadLog maxBytes(long bytes, Overflow overflow) {
+        checkNotOpened();
+        this.maxBytes = bytes;
+        this.overflow = overflow;
+        return this;
+    }
+
+    /**
+     * How often appends are forced to disk, 50ms by default. The most a crash of the
+     * machine can lose, unless writers call sync().
+     *
+     * @return this log
+     */
+    public synchronized UploadLog syncInterval(long duration, TimeUnit unit) {
+        checkNotOpened();
+        this.syncInterval = Math.max(1, unit.toMillis(duration));
+        return this;
+    }
+
+    /**
+     * Most data points uploaded in one request, 500 by default.
+     *
+     * @return this log
+     */
+    public synchronized UploadLog batchSize(int points) {
+        checkNotOpened();
+        if (points < 1) {
+            throw new IllegalArgumentException("Batches need at least one data point");
+        }
+        this.batchSize = points;
+        return this;
+    }
+
+    /**
+     * Executor to drain and sync on, defaults to the services executor. Uses two of its
+     * threads until the log is closed.
+     *
+     * @return this log
+     */
+    public synchronized UploadLog executor(ExecutorService executor) {
+        checkNotOpened();
+        this.executor = executor;
+        return this;
+    }
+
+    private void checkNotOpened() {
+        if (opened) {
+            throw new IllegalStateException("Log is already open");
+        }
+    }
+
+    /**
+     * Recovers the log left in the directory, if any, and starts uploading it.
+     *
+     * @return this log
+     * @throws IOException
+     *             if the directory can not be created or read
+     */
+    public synchronized UploadLog open() throws IOException {
+        checkNotOpened();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        recover();
+        opened = true;
+        stopped = new CountDownLatch(2);
+        ExecutorService e = executor == null ? service.getExecutor() : executor;
+        e.submit(new Runnable() {
+            public void run() {
+                try {
+                    drain();
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        e.submit(new Runnable() {
+            public void run() {
+                try {
+                    syncPeriodically();
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Appends a data point to the log.
+     *
+     * @param stream
+     *            name of the stream
+     * @param timestamp
+     *            ms since epoc, 0 or less for the time the server receives it
+     * @param value
+     *            stored as its toString()
+     */
+    public void write(String stream, long timestamp, Object value) throws IOException {
+        DataPoint<Object> point = new DataPoint<Object>();
+        point.setStreamId(stream);
+        point.setTimestamp(timestamp);
+        point.setData(value == null ? "" : value.toString());
+        write(point);
+    }
+
+    /**
+     * Appends a data point to the log, never waiting for the server. It is on disk after
+     * the next sync, at the latest after the sync interval.
+     *
+     * @throws DataServiceException
+     *             if the log is full and rejects writes, or closed
+     * @throws IllegalArgumentException
+     *             if the data point does not fit into a segment
+     */
+    public void write(DataPoint<?> point) throws IOException {
+        if (point.getStreamId() == null) {
+            throw new IllegalArgumentException("Data point has no stream id");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        SegmentFile.writeString(out, point.getStreamId());
+        SegmentFile.write(out, point);
+        out.close();
+        byte[] payload = bytes.toByteArray();
+        if (RECORD_HEADER + payload.length > segmentBytes - HEADER) {
+            throw new IllegalArgumentException("Data point of " + payload.length + " bytes does not fit into a "
+                    + segmentBytes + " byte segment");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        synchronized (this) {
+            if (!opened || closed) {
+                throw new DataServiceException("Log is not open");
+            }
+            Segment active = segments.getLast();
+            if (active.end + RECORD_HEADER + payload.length > active.capacity()) {
+                active = rotate();
+            }
+            // the length goes last, a torn record reads as the end of the log
+            ByteBuffer b = active.buffer.duplicate();
+            b.position(active.end + 4);
+            b.putInt((int) crc.getValue());
+            b.put(payload);
+            active.buffer.putInt(active.end, payload.length);
+            active.end += RECORD_HEADER + payload.length;
+            appendedBytes += RECORD_HEADER + payload.length;
+            appended.incrementAndGet();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Forces what was written so far to disk. Concurrent calls are served by one force
+     * of the log.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appendedBytes;
+        }
+        synchronized (syncLock) {
+            if (syncedBytes >= target) {
+                // forced by the call before
+                return;
+            }
+            Segment active;
+            long upto;
+            synchronized (this) {
+                active = segments.getLast();
+                upto = appendedBytes;
+            }
+            // older segments were forced when they were rotated
+            active.buffer.force();
+            syncedBytes = upto;
+        }
+    }
+
+    /**
+     * Waits until everything written was uploaded.
+     *
+     * @return false if there is still data to upload after the timeout
+     */
+    public synchronized boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!drained()) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private boolean drained() {
+        return ackSegment == segments.getLast() && ackOffset >= ackSegment.end;
+    }
+
+    /**
+     * Forces the log to disk and stops uploading, after the batch being uploaded. What was
+     * not uploaded is sent once the log is opened again.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!opened || closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        sync();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * data points written since opening
+     */
+    public long getAppended() {
+        return appended.get();
+    }
+
+    /**
+     * data points the server accepted since opening
+     */
+    public long getUploaded() {
+        return uploaded.get();
+    }
+
+    /**
+     * data points the server refused and that were dropped from the log
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * segments deleted before they were uploaded, as the log was full
+     */
+    public long getDroppedSegments() {
+        return dropped.get();
+    }
+
+    /**
+     * bytes of segment files on disk
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (Segment s : segments) {
+            bytes += s.capacity();
+        }
+        return bytes;
+    }
+
+    /*
+     * finds the segments and the acknowledged position left by the last run, the end of
+     * the log is found by validating the records of the last segment
+     */
+    private void recover() throws IOException {
+        long ackNumber = -1;
+        int offset = HEADER;
+        File ack = new File(directory, ACK);
+        if (ack.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(ack, "r");
+            try {
+                ackNumber = raf.readLong();
+                offset = raf.readInt();
+            } catch (IOException e) {
+                log.warn("Unreadable " + ack + ", uploading the whole log again: " + e.getMessage());
+                ackNumber = -1;
+                offset = HEADER;
+            } finally {
+                raf.close();
+            }
+        }
+
+        List<Long> numbers = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not ours
+                    }
+                } else if (name.endsWith(".tmp")) {
+                    new File(directory, name).delete();
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (long number : numbers) {
+            File file = segmentFile(number);
+            if (number < ackNumber) {
+                // uploaded before the last run ended
+                file.delete();
+                continue;
+            }
+            MappedByteBuffer buffer = map(file, -1);
+            if (buffer == null) {
+                log.error("Not a log segment, moving it aside: " + file);
+                file.renameTo(new File(directory, file.getName() + ".bad"));
+                continue;
+            }
+            Segment segment = new Segment(number, file, buffer);
+            segment.end = segment.capacity();
+            segment.sealed = true;
+            segments.add(segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(create(Math.max(0, ackNumber)));
+        } else {
+            Segment last = segments.getLast();
+            last.sealed = false;
+            last.end = scan(last, last.number == ackNumber ? offset : HEADER);
+        }
+        Segment first = segments.getFirst();
+        ackSegment = first;
+        ackOffset = first.number == ackNumber ? Math.min(offset, first.end) : HEADER;
+        if (segments.size() > 1 || ackOffset < first.end) {
+            log.info("Recovered " + segments.size() + " log segments in " + directory + " to upload");
+        }
+    }
+
+    /*
+     * end of the valid records of a segment from offset on
+     */
+    private static int scan(Segment segment, int offset) {
+        int end = Math.max(HEADER, offset);
+        while (read(segment.buffer, end, segment.capacity()) != null) {
+            end += RECORD_HEADER + segment.buffer.getInt(end);
+        }
+        return end;
+    }
+
+    /*
+     * the payload of the record at offset, null at the end of the segment or where a
+     * record was torn
+     */
+    private static ByteBuffer read(MappedByteBuffer buffer, int offset, int limit) {
+        if (offset + RECORD_HEADER > limit) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER + length > limit) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset + RECORD_HEADER);
+        b.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            return null;
+        }
+        return ByteBuffer.wrap(payload);
+    }
+
+    /*
+     * seals the active segment and starts the next, dropping or rejecting when the log
+     * is full
+     */
+    private Segment rotate() throws IOException {
+        Segment active = segments.getLast();
+        long limit = Math.max(2, maxBytes / segmentBytes);
+        while (segments.size() >= limit) {
+            if (overflow == Overflow.REJECT) {
+                throw new DataServiceException("Upload log " + directory + " is full");
+            }
+            Segment oldest = segments.removeFirst();
+            log.warn("Upload log " + directory + " is full, dropping " + oldest.file);
+            oldest.file.delete();
+            dropped.incrementAndGet();
+            if (ackSegment == oldest) {
+                ackSegment = segments.getFirst();
+                ackOffset = HEADER;
+            }
+        }
+        active.buffer.force();
+        active.sealed = true;
+        Segment next = create(active.number + 1);
+        segments.add(next);
+        return next;
+    }
+
+    /*
+     * creates an empty segment file of segmentBytes
+     */
+    private Segment create(long number) throws IOException {
+        File file = segmentFile(number);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentBytes);
+        } finally {
+            raf.close();
+        }
+        MappedByteBuffer buffer = map(file, segmentBytes);
+        buffer.putInt(0, MAGIC);
+        buffer.put(4, VERSION);
+        Segment segment = new Segment(number, file, buffer);
+        segment.end = HEADER;
+        return segment;
+    }
+
+    /*
+     * maps a segment for appending, null if it is not one. A size of -1 checks the
+     * header of an existing segment.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    size == -1 ? channel.size() : size);
+            if (size == -1 && (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION)) {
+                return null;
+            }
+            return buffer;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%020d", number) + SUFFIX);
+    }
+
+    /*
+     * forces appends to disk every sync interval until closed
+     */
+    private void syncPeriodically() {
+        while (!closed) {
+            try {
+                if (pause(syncInterval)) {
+                    sync();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                log.error("Syncing upload log " + directory + " failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /*
+     * uploads the log in order, a batch at a time, until closed. A batch that failed is
+     * read and sent again after backing off, one the server refuses as invalid is dropped.
+     */
+    private void drain() {
+        DataPointWriter poster = new DataPointWriter(service, null);
+        ConnectionSettings settings = service.settings();
+        long sequence = 0;
+        int failures = 0;
+        while (!closed) {
+            try {
+                DataPointWriter.Batch batch = new DataPointWriter.Batch(sequence, service.isCompressing());
+                Object[] next = read(batch);
+                if (next == null) {
+                    synchronized (this) {
+                        if (!closed && drained()) {
+                            wait(syncInterval);
+                        }
+                    }
+                    continue;
+                }
+                batch.seal();
+                sequence++;
+                // backs off between attempts itself so close() can cut it short
+                Exception error = poster.post(batch, 0);
+                if (error == null) {
+                    uploaded.addAndGet(batch.size());
+                    acknowledge((Segment) next[0], (Integer) next[1]);
+                    failures = 0;
+                } else if (refused(error)) {
+                    log.error("Server refused " + batch + ", dropping it from the log: " + error.getMessage());
+                    rejected.addAndGet(batch.size());
+                    acknowledge((Segment) next[0], (Integer) next[1]);
+                } else {
+                    long ms = Math.max(settings.backoff(Math.min(failures++, 30)), batch.retryAfter());
+                    if (StreamSnapshot.retryable(error)) {
+                        log.warn("Uploading the log failed, trying again in " + ms + "ms: " + error.getMessage());
+                    } else {
+                        // credentials, host or configuration, the data points are fine
+                        log.error("Cannot upload the log, keeping it and trying again in " + ms + "ms: "
+                                + error.getMessage());
+                    }
+                    pause(ms);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Draining upload log " + directory + " failed: " + e.getMessage(), e);
+                try {
+                    pause(settings.getMaxBackoff());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * true if the server refused the data points of a batch themselves, sending them
+     * again can not succeed
+     */
+    static boolean refused(Exception e) {
+        if (e instanceof StreamSnapshot.StatusException) {
+            int status = ((StreamSnapshot.StatusException) e).getStatus();
+            return status == 400 || status == 413 || status == 422;
+        }
+        return false;
+    }
+
+    /*
+     * waits ms on the monitor of the log so close() cuts the wait short, returns false
+     * once closed
+     */
+    private synchronized boolean pause(long ms) throws InterruptedException {
+        long until = System.currentTimeMillis() + ms;
+        long left = ms;
+        while (!closed && left > 0) {
+            wait(left);
+            left = until - System.currentTimeMillis();
+        }
+        return !closed;
+    }
+
+    /*
+     * reads up to batchSize records from the acknowledged position into the batch,
+     * returns the segment and offset after them or null if there are none
+     */
+    private Object[] read(DataPointWriter.Batch batch) throws Exception {
+        List<Segment> from;
+        int offset;
+        int activeEnd;
+        synchronized (this) {
+            from = new ArrayList<Segment>(segments.subList(segments.indexOf(ackSegment), segments.size()));
+            offset = ackOffset;
+            activeEnd = segments.getLast().end;
+        }
+        for (int i = 0; i < from.size(); i++) {
+            Segment segment = from.get(i);
+            boolean last = i == from.size() - 1;
+            int limit = last ? activeEnd : segment.capacity();
+            ByteBuffer record;
+            while (batch.size() < batchSize && batch.encoded() < DataPointWriter.DEFAULT_BATCH_BYTES
+                    && (record = read(segment.buffer, offset, limit)) != null) {
+                String streamId = SegmentFile.readString(record);
+                batch.add(SegmentFile.<String> read(record, streamId, String.class));
+                offset += RECORD_HEADER + record.capacity();
+            }
+            if (batch.size() >= batchSize || batch.encoded() >= DataPointWriter.DEFAULT_BATCH_BYTES || last) {
+                return batch.size() == 0 ? null : new Object[] { segment, offset };
+            }
+            // the rest of a sealed segment is empty or torn, continue with the next one
+            if (batch.size() == 0) {
+                synchronized (this) {
+                    if (ackSegment == segment) {
+                        acknowledge(from.get(i + 1), HEADER);
+                    }
+                }
+            }
+            offset = HEADER;
+        }
+        return null;
+    }
+
+    /*
+     * moves the acknowledged position, deleting the segments before it and
+     * recording it for the next run
+     */
+    private synchronized void acknowledge(Segment segment, int offset) throws IOException {
+        if (!segments.contains(segment)) {
+            // dropped while it was uploaded
+            return;
+        }
+        while (segments.getFirst() != segment) {
+            Segment done = segments.removeFirst();
+            if (!done.file.delete()) {
+                log.warn("Cannot delete uploaded log segment " + done.file);
+            }
+        }
+        ackSegment = segment;
+        ackOffset = offset;
+        File tmp = new File(directory, ACK + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeLong(segment.number);
+            out.writeInt(offset);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(directory, ACK).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        notifyAll();
+    }
+}
@@ -0,0 +1,173 @@
+package com.digi.data.timeseries;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Converts the data of a DataPoint into the value class of its stream. Decoders
+ * are looked up once per class from a shared registry, Integer, Long, Float,
+ * Double, Short, Byte, Boolean and String have dedicated parsers and any other
+ * class is created with its String constructor through a cached MethodHandle.
+ *
+ * To use a custom conversion register a decoder before reading data points, ie
+ *
+ * <pre>
+ * ValueDecoder.register(Date.class, new ValueDecoder&lt;Date>() {
+ *     public Date decode(String data) {
+ *         return new Date(Long.parseLong(data));
+ *     }
+ * });
+ * </pre>
+ *
+ * @param <Type>
+ *            class the data is converted to
+ */
+public abstract class ValueDecoder<Type> {
+    private static final ConcurrentMap<Class<?>, ValueDecoder<?>> decoders = new ConcurrentHashMap<Class<?>, ValueDecoder<?>>();
+    static {
+        register(String.class, new ValueDecoder<String>() {
+            public String decode(String data) {
+                return data;
+            }
+        });
+        register(Integer.class, new ValueDecoder<Integer>() {
+            public Integer decode(String data) {
+                return Integer.valueOf(data.trim());
+            }
+
+            public long decodeLong(String data) {
+                return Integer.parseInt(data.trim());
+            }
+        });
+        register(Long.class, new ValueDecoder<Long>() {
+            public Long decode(String data) {
+                return Long.valueOf(data.trim());
+            }
+
+            public long decodeLong(String data) {
+                return Long.parseLong(data.trim());
+            }
+        });
+        register(Float.class, new ValueDecoder<Float>() {
+            public Float decode(String data) {
+                return Float.valueOf(data);
+            }
+
+            public double decodeDouble(String data) {
+                return Float.parseFloat(data);
+            }
+        });
+        register(Double.class, new ValueDecoder<Double>() {
+            public Double decode(String data) {
+                return Double.valueOf(data);
+            }
+        });
+        register(Short.class, new ValueDecoder<Short>() {
+            public Short decode(String data) {
+                return Short.valueOf(data.trim());
+            }
+        });
+        register(Byte.class, new ValueDecoder<Byte>() {
+            public Byte decode(String data) {
+                return Byte.valueOf(data.trim());
+            }
+        });
+        register(Boolean.class, new ValueDecoder<Boolean>() {
+            public Boolean decode(String data) {
+                return Boolean.valueOf(data.trim());
+            }
+        });
+    }
+
+    /**
+     * convert the data into the value class
+     *
+     * @throws RuntimeException
+     *             if the data cannot be converted
+     */
+    public abstract Type decode(String data);
+
+    /**
+     * convert the data to a double without boxing, by default parses it as a
+     * double
+     */
+    public double decodeDouble(String data) {
+        return Double.parseDouble(data);
+    }
+
+    /**
+     * convert the data to a long without boxing, by default parses it as a long
+     * and falls back to truncating a decimal value
+     */
+    public long decodeLong(String data) {
+        try {
+            return Long.parseLong(data.trim());
+        } catch (NumberFormatException e) {
+            return (long) Double.parseDouble(data);
+        }
+    }
+
+    /**
+     * Register the decoder to use for a value class, replacing any existing one
+     *
+     * @param type
+     * @param decoder
+     */
+    public static <Type> void register(Class<Type> type, ValueDecoder<? extends Type> decoder) {
+        decoders.put(type, decoder);
+    }
+
+    /**
+     * Get the decoder for a value class, a decoder using its String
+     * constructor is created and registered the first time an unknown class is
+     * seen
+     *
+     * @param type
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <Type> ValueDecoder<Type> forClass(Class<Type> type) {
+        ValueDecoder<?> decoder = decoders.get(type);
+        if (decoder == null) {
+            decoder = constructorDecoder(type);
+            ValueDecoder<?> existing = decoders.putIfAbsent(type, decoder);
+            if (existing != null) {
+                decoder = existing;
+            }
+        }
+        return (ValueDecoder<Type>) decoder;
+    }
+
+    /*
+     * decoder calling the types String constructor, or one that always fails
+     * if it has none
+     */
+    private static <Type> ValueDecoder<Type> constructorDecoder(final Class<Type> type) {
+        final MethodHandle constructor;
+        try {
+            constructor = MethodHandles.publicLookup()
+                    .findConstructor(type, MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+        } catch (Exception e) {
+            return new ValueDecoder<Type>() {
+                public Type decode(String data) {
+                    throw new IllegalArgumentException(type.getName() + " does not have a public String constructor");
+                }
+            };
+        }
+        return new ValueDecoder<Type>() {
+            public Type decode(String data) {
+                try {
+                    return type.cast(constructor.invokeExact(data));
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        };
+    }
+}
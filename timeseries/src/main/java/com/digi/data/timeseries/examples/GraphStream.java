@@ -4,6 +4,7 @@ import java.awt.Color;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
@@ -12,7 +13,7 @@ import org.jfree.chart.axis.DateAxis;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYItemRenderer;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
-import org.jfree.data.time.Hour;
+import org.jfree.data.time.Millisecond;
 import org.jfree.data.time.TimeSeries;
 import org.jfree.data.time.TimeSeriesCollection;
 import org.jfree.ui.ApplicationFrame;
@@ -21,30 +22,36 @@ import org.jfree.ui.RefineryUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.digi.data.timeseries.DataPoint;
+import com.digi.data.timeseries.DataPointBatch;
 import com.digi.data.timeseries.DataServiceException;
 import com.digi.data.timeseries.DataStream;
 import com.digi.data.timeseries.DataStreamService;
-import com.digi.data.timeseries.Interval;
+import com.digi.data.timeseries.Downsampler;
 
 @SuppressWarnings({ "serial", "deprecation" })
 public class GraphStream extends ApplicationFrame {
     private static final Logger log = LoggerFactory.getLogger(GraphStream.class);
+    private static final int WIDTH = 500;
 
     private DataStreamService service; 
     private DataStream<Double> stream;
 
-    public GraphStream(final String title, String host, String username, String password, String streamId) throws DataServiceException {
+    public GraphStream(final String title, String host, String username, String password, String streamId, int days) throws DataServiceException {
         super(title);
         service = DataStreamService.getServiceForHost(host, username, password);
         stream = service.getStream(streamId, Double.class);
         
-        TimeSeries s1 = new TimeSeries(stream.getStreamName(), Hour.class);
+        // the raw data points reduced to about one per pixel, however long the range
+        TimeSeries s1 = new TimeSeries(stream.getStreamName(), Millisecond.class);
+        long end = System.currentTimeMillis();
+        long start = end - TimeUnit.DAYS.toMillis(days);
         try {
-            for (DataPoint<Double> point : stream.getAverages(Interval.Hour, -1, -1)) {
-                s1.add(new Hour(new Date(point.getTimestamp())), point.getValue());
+            DataPointBatch line = stream.downsample(Downsampler.Method.LTTB, WIDTH, start, end);
+            for (int i = 0; i < line.size(); i++) {
+                s1.addOrUpdate(new Millisecond(new Date(line.getTimestamp(i))), line.getValue(i));
             }
         } catch (Throwable e) {
+            log.warn("Could not read " + stream.getStreamName(), e);
         }
         TimeSeriesCollection dataset = new TimeSeriesCollection();
         dataset.addSeries(s1);
@@ -75,7 +82,7 @@ public class GraphStream extends ApplicationFrame {
         axis.setDateFormatOverride(new SimpleDateFormat("MMM-yyyy"));
 
         final ChartPanel chartPanel = new ChartPanel(chart);
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+        chartPanel.setPreferredSize(new java.awt.Dimension(WIDTH, 270));
         setContentPane(chartPanel);
     }
 
@@ -90,8 +97,10 @@ public class GraphStream extends ApplicationFrame {
         String password = in.nextLine();
         System.out.print("Enter Stream Id: ");
         String id = in.nextLine(); 
+        System.out.print("Enter number of days to graph: ");
+        int days = Integer.parseInt(in.nextLine().trim());
 
-        final GraphStream demo = new GraphStream("Dia Example graph", host, username, password, id);
+        final GraphStream demo = new GraphStream("Dia Example graph", host, username, password, id, days);
         demo.pack();
         RefineryUtilities.centerFrameOnScreen(demo);
         demo.setVisible(true);
@@ -0,0 +1,74 @@
+package com.digi.data.timeseries;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class AsyncSnapshotTest {
+
+	@Test
+	public void testToList() throws Exception {
+		StubServer server = new StubServer(2500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			List<DataPoint<Integer>> points = stream.getAsync(-1, -1).toList().get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(2500, points.size());
+			for (int i = 0; i < points.size(); i++) {
+				Assert.assertEquals(i * StubServer.STEP, points.get(i).getTimestamp());
+				Assert.assertEquals(Integer.valueOf(i), points.get(i).getValue());
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testPublisherDemand() throws Exception {
+		StubServer server = new StubServer(2500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			final AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+			final AtomicInteger received = new AtomicInteger();
+			final CountDownLatch firstBatch = new CountDownLatch(10);
+			final CountDownLatch complete = new CountDownLatch(1);
+			stream.getAsync(-1, -1).subscribe(new Subscriber<DataPoint<Integer>>() {
+				public void onSubscribe(Subscription s) {
+					subscription.set(s);
+					s.request(10);
+				}
+
+				public void onNext(DataPoint<Integer> dp) {
+					Assert.assertEquals(received.getAndIncrement(), dp.getValue().intValue());
+					firstBatch.countDown();
+				}
+
+				public void onError(Throwable t) {
+					Assert.fail(t.getMessage());
+				}
+
+				public void onComplete() {
+					complete.countDown();
+				}
+			});
+			Assert.assertTrue(firstBatch.await(10, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			// only the demanded points were delivered and only the first page was read
+			Assert.assertEquals(10, received.get());
+			Assert.assertEquals(1, server.requests.get());
+
+			subscription.get().request(Long.MAX_VALUE);
+			Assert.assertTrue(complete.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(2500, received.get());
+			Assert.assertEquals(3, server.requests.get());
+		} finally {
+			server.stop();
+		}
+	}
+}
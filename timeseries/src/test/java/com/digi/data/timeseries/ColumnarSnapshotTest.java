@@ -0,0 +1,32 @@
+package com.digi.data.timeseries;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnarSnapshotTest {
+
+	@Test
+	public void testReadBatches() throws Exception {
+		StubServer server = new StubServer(2500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			ColumnarSnapshot columns = stream.getColumns(-1, -1);
+			DataPointBatch batch = new DataPointBatch(10);
+			int expected = 0;
+			int batches = 0;
+			while (columns.next(batch)) {
+				batches++;
+				for (int i = 0; i < batch.size(); i++) {
+					Assert.assertEquals(expected * StubServer.STEP, batch.getTimestamp(i));
+					Assert.assertEquals(expected, batch.getValue(i), 0);
+					expected++;
+				}
+			}
+			Assert.assertEquals(2500, expected);
+			Assert.assertEquals(3, batches);
+			Assert.assertEquals(0, batch.size());
+		} finally {
+			server.stop();
+		}
+	}
+}
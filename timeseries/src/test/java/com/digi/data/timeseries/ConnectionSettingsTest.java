@@ -0,0 +1,116 @@
+package com.digi.data.timeseries;
+
+import java.lang.ref.WeakReference;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionSettingsTest {
+
+	@Test
+	public void testConnectionSettings() throws Exception {
+		StubServer server = new StubServer(3000);
+		try {
+			DataStreamService service = DataStreamService.getServiceForHost("localhost", "settings", "password");
+			service.setSecureScheme(false);
+			service.setPort(server.service().getPort());
+			service.configure(new ConnectionSettings().maxConnections(4, 3).keepAlive(0, TimeUnit.SECONDS));
+			Assert.assertEquals(3, service.getMaxConnectionsPerRoute());
+			Assert.assertEquals(0, service.getConnectionSettings().getKeepAlive());
+
+			DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+			ParallelScan<Integer> scan = stream.getParallel(0, 3000 * StubServer.STEP, 8);
+			Assert.assertEquals(3, scan.getParallelism());
+			int count = 0;
+			for (DataPoint<Integer> dp : scan) {
+				Assert.assertEquals(count++, dp.getValue().intValue());
+			}
+			Assert.assertEquals(3000, count);
+
+			// a closed service opens a new pool when used again
+			service.close();
+			count = 0;
+			for (DataPoint<Integer> dp : stream.getAll()) {
+				count++;
+			}
+			Assert.assertEquals(3000, count);
+			service.close();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testCompression() throws Exception {
+		StubServer server = new StubServer(2500);
+		try {
+			DataStreamService service = DataStreamService.getServiceForHost("localhost", "compression", "password");
+			service.setSecureScheme(false);
+			service.setPort(server.service().getPort());
+			service.configure(new ConnectionSettings());
+			DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+			int count = 0;
+			for (DataPoint<Integer> dp : stream.getAll()) {
+				Assert.assertEquals(count++, dp.getValue().intValue());
+			}
+			Assert.assertEquals(2500, count);
+			Assert.assertEquals(3, server.compressed.get());
+
+			// the non blocking client decompresses too
+			List<DataPoint<Integer>> points = stream.getAsync(-1, -1).toList().get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(2500, points.size());
+			Assert.assertEquals(Integer.valueOf(2499), points.get(2499).getValue());
+			Assert.assertEquals(6, server.compressed.get());
+
+			service.configure(new ConnectionSettings().compression(false));
+			count = 0;
+			for (DataPoint<Integer> dp : stream.getAll()) {
+				count++;
+			}
+			Assert.assertEquals(2500, count);
+			Assert.assertEquals(6, server.compressed.get());
+			service.close();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testUnclosedServiceCollected() throws Exception {
+		DataStreamService service = DataStreamService.getService("unclosed", "password");
+		Assert.assertNotNull(service.getHttpClient());
+		WeakReference<DataStreamService> reference = new WeakReference<DataStreamService>(service);
+		service = null;
+		// the eviction task of its pool does not keep the service alive
+		for (int i = 0; i < 50 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		Assert.assertNull(reference.get());
+	}
+
+	@Test(timeout = 10000)
+	public void testSocketTimeout() throws Exception {
+		// accepts connections but never answers
+		ServerSocket silent = new ServerSocket(0);
+		try {
+			DataStreamService service = DataStreamService.getServiceForHost("localhost", "timeout", "password");
+			service.setSecureScheme(false);
+			service.setPort(silent.getLocalPort());
+			service.configure(new ConnectionSettings().timeouts(1000, 200, TimeUnit.MILLISECONDS));
+			ColumnarSnapshot columns = service.getStream("device1/temp", Integer.class).getColumns(0, 1000);
+			try {
+				columns.next(new DataPointBatch());
+				Assert.fail();
+			} catch (DataServiceException e) {
+				// timed out
+			}
+			service.close();
+		} finally {
+			silent.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.digi.data.timeseries;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DataPointTest {
+	private static final Logger log = LoggerFactory.getLogger(DataPointTest.class);
+	
+	@Test
+	public void testGetValue() {
+		Assert.assertEquals("test", new DataPoint<String>(String.class, "test").getValue());
+		Assert.assertEquals(Integer.valueOf(1), new DataPoint<Integer>(Integer.class, "1").getValue());
+		Assert.assertEquals(Float.valueOf(1.0f), new DataPoint<Float>(Float.class, "1.0").getValue());
+		Assert.assertEquals(new java.math.BigDecimal("1.50"), 
+				new DataPoint<java.math.BigDecimal>(java.math.BigDecimal.class, "1.50").getValue());
+	}
+	
+	@Test
+	public void testValueIsCached() {
+		DataPoint<Long> dp = new DataPoint<Long>(Long.class, "12");
+		Assert.assertSame(dp.getValue(), dp.getValue());
+		dp.setData("13");
+		Assert.assertEquals(Long.valueOf(13), dp.getValue());
+	}
+	
+	@Test
+	public void testPrimitiveValues() {
+		Assert.assertEquals(1.5, new DataPoint<Double>(Double.class, "1.5").getDoubleValue(), 0);
+		Assert.assertEquals(1.5, new DataPoint<String>(String.class, "1.5").getDoubleValue(), 0);
+		Assert.assertEquals(42L, new DataPoint<Integer>(Integer.class, "42").getLongValue());
+		Assert.assertEquals(1L, new DataPoint<Float>(Float.class, "1.9").getLongValue());
+	}
+	
+	@Test(expected = ClassCastException.class)
+	public void testInvalidValue() {
+		new DataPoint<Integer>(Integer.class, "abc").getValue();
+	}
+	
+	@Test(expected = ClassCastException.class)
+	public void testNoStringConstructor() {
+		new DataPoint<Object>(Object.class, "abc").getValue();
+	}
+}
@@ -0,0 +1,154 @@
+package com.digi.data.timeseries;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataPointWriterTest {
+	private StubServer server;
+	private DataStreamService service;
+	private final List<DataPointWriter.Batch> uploaded = new CopyOnWriteArrayList<DataPointWriter.Batch>();
+	private final List<DataPointWriter.Batch> failed = new CopyOnWriteArrayList<DataPointWriter.Batch>();
+	private final DataPointWriter.Listener listener = new DataPointWriter.Listener() {
+		public void uploaded(DataPointWriter.Batch batch) {
+			uploaded.add(batch);
+		}
+
+		public void failed(DataPointWriter.Batch batch, Exception e) {
+			failed.add(batch);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer(0);
+		service = DataStreamService.getServiceForHost("localhost", "writer", "password");
+		service.setSecureScheme(false);
+		service.setPort(server.service().getPort());
+		service.configure(new ConnectionSettings().retries(3, 1, 5, TimeUnit.MILLISECONDS));
+	}
+
+	@After
+	public void tearDown() {
+		service.close();
+		server.stop();
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		DataPointWriter writer = service.getStream("device1/temp", Integer.class).getWriter().batchSize(100)
+				.listener(listener);
+		for (int i = 0; i < 1050; i++) {
+			writer.write(i * StubServer.STEP, i);
+		}
+		writer.close();
+		Assert.assertEquals(1050, writer.getWritten());
+		Assert.assertEquals(1050, writer.getUploaded());
+		Assert.assertEquals(1050, server.uploaded.get());
+		Assert.assertEquals(11, server.uploads.get());
+		Assert.assertEquals(11, uploaded.size());
+		Assert.assertTrue(failed.isEmpty());
+		for (DataPointWriter.Batch batch : uploaded) {
+			Assert.assertEquals(201, batch.getStatus());
+			Assert.assertEquals(1, batch.getAttempts());
+			Assert.assertEquals(batch.getSequence() == 10 ? 50 : 100, batch.size());
+		}
+		Assert.assertTrue(server.lastUpload.contains("<streamId>device1/temp</streamId>"));
+
+		try {
+			writer.write(0, 1);
+			Assert.fail();
+		} catch (DataServiceException e) {
+		}
+		try {
+			writer.batchSize(10);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testLinger() throws Exception {
+		DataPointWriter writer = service.getWriter().linger(20, TimeUnit.MILLISECONDS);
+		writer.write("device1/temp", 0, 1);
+		writer.write("device2/temp", StubServer.STEP, "a <b> & c");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.uploaded.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(2, server.uploaded.get());
+		Assert.assertTrue(server.lastUpload.contains("<data>a &lt;b&gt; &amp; c</data>"));
+		// server time when there is no timestamp
+		Assert.assertFalse(server.lastUpload.contains("<timestamp>0</timestamp>"));
+		writer.close();
+		Assert.assertEquals(1, server.uploads.get());
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		server.holdUploads();
+		final DataPointWriter writer = service.getWriter().batchSize(10).inFlight(2);
+		Thread writing = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 200; i++) {
+						writer.write("device1/temp", i * StubServer.STEP, i);
+					}
+				} catch (DataServiceException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		writing.start();
+		// 2 batches sending, 2 waiting and the writer blocked handing over the 5th
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((server.uploading.get() < 2 || writing.getState() != Thread.State.WAITING)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(Thread.State.WAITING, writing.getState());
+		Assert.assertEquals(50, writer.getWritten());
+		Assert.assertEquals(2, server.uploading.get());
+		Assert.assertEquals(0, server.uploads.get());
+
+		server.releaseUploads();
+		writing.join(10000);
+		writer.close();
+		Assert.assertEquals(200, server.uploaded.get());
+		Assert.assertEquals(2, server.maxUploading.get());
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		server.fail(2, 2, 503);
+		DataPointWriter writer = service.getWriter().batchSize(100).inFlight(1).listener(listener);
+		for (int i = 0; i < 300; i++) {
+			writer.write("device1/temp", i * StubServer.STEP, i);
+		}
+		writer.flush();
+		Assert.assertEquals(300, server.uploaded.get());
+		Assert.assertEquals(3, uploaded.size());
+		int attempts = 0;
+		for (DataPointWriter.Batch batch : uploaded) {
+			attempts += batch.getAttempts();
+		}
+		Assert.assertEquals(5, attempts);
+		Assert.assertEquals(5, server.requests.get());
+
+		// not retried
+		server.requests.set(0);
+		server.fail(1, 1, 400);
+		writer.write("device1/temp", 0, 1);
+		writer.close();
+		Assert.assertEquals(1, failed.size());
+		Assert.assertEquals(400, failed.get(0).getStatus());
+		Assert.assertEquals(1, failed.get(0).getAttempts());
+		Assert.assertEquals(1, writer.getFailed());
+		Assert.assertEquals(300, writer.getUploaded());
+	}
+}
@@ -0,0 +1,117 @@
+package com.digi.data.timeseries;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DownsamplerTest {
+	private static final long SECOND = 1000L;
+
+	@Test
+	public void testTriangles() {
+		int n = 100000;
+		Downsampler line = new Downsampler(Downsampler.Method.LTTB, 500, 0, n * SECOND);
+		for (int i = 0; i < n; i++) {
+			// a slow wave with a single spike
+			line.add(i * SECOND, i == 31415 ? 100 : Math.sin(i / 5000.0));
+		}
+		DataPointBatch points = line.get();
+		Assert.assertEquals(n, line.getCount());
+		Assert.assertTrue(points.size() + " points", points.size() <= 500 && points.size() > 450);
+		Assert.assertEquals(0, points.getTimestamp(0));
+		Assert.assertEquals((n - 1) * SECOND, points.getTimestamp(points.size() - 1));
+		boolean spike = false;
+		for (int i = 0; i < points.size(); i++) {
+			if (i > 0) {
+				Assert.assertTrue(points.getTimestamp(i) > points.getTimestamp(i - 1));
+			}
+			spike |= points.getValue(i) == 100;
+		}
+		Assert.assertTrue(spike);
+
+		try {
+			line.add(n * SECOND, 1);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testFewPoints() {
+		Downsampler line = new Downsampler(Downsampler.Method.LTTB, 100, 0, 1000 * SECOND);
+		line.add(-SECOND, 1);
+		line.add(5 * SECOND, 2);
+		line.add(500 * SECOND, 3);
+		line.add(501 * SECOND, 4);
+		line.add(1000 * SECOND, 5);
+		DataPointBatch points = line.get();
+		Assert.assertEquals(3, points.size());
+		Assert.assertEquals(2, points.getValue(0), 0);
+		Assert.assertEquals(3, points.getValue(1), 0);
+		Assert.assertEquals(4, points.getValue(2), 0);
+
+		Assert.assertEquals(0, new Downsampler(Downsampler.Method.LTTB, 3, 0, 1).get().size());
+	}
+
+	@Test
+	public void testExtremes() {
+		Random random = new Random(3);
+		int n = 50000;
+		double[] values = new double[n];
+		Downsampler columns = new Downsampler(Downsampler.Method.MIN_MAX, 200, 0, n);
+		for (int i = 0; i < n; i++) {
+			values[i] = random.nextGaussian();
+			columns.add(i, values[i]);
+		}
+		DataPointBatch points = columns.get();
+		Assert.assertEquals(200, points.size());
+		// a column of 500 data points is reduced to its minimum and maximum
+		for (int c = 0; c < 100; c++) {
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (int i = c * 500; i < (c + 1) * 500; i++) {
+				min = Math.min(min, values[i]);
+				max = Math.max(max, values[i]);
+			}
+			double first = points.getValue(2 * c);
+			double second = points.getValue(2 * c + 1);
+			Assert.assertEquals(min, Math.min(first, second), 0);
+			Assert.assertEquals(max, Math.max(first, second), 0);
+			Assert.assertTrue(points.getTimestamp(2 * c) < points.getTimestamp(2 * c + 1));
+			Assert.assertEquals(first, values[(int) points.getTimestamp(2 * c)], 0);
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		Downsampler columns = new Downsampler(Downsampler.Method.MIN_MAX, 10, 0, 100);
+		columns.add(50, 1);
+		try {
+			columns.add(49, 1);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new Downsampler(Downsampler.Method.LTTB, 2, 0, 100);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		StubServer server = new StubServer(5000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			DataPointBatch points = stream.downsample(Downsampler.Method.MIN_MAX, 100, 0, 5000 * StubServer.STEP);
+			Assert.assertEquals(100, points.size());
+			Assert.assertEquals(0, points.getValue(0), 0);
+			Assert.assertEquals(99, points.getValue(1), 0);
+			Assert.assertEquals(4999, points.getValue(99), 0);
+			Assert.assertEquals(5, server.requests.get());
+		} finally {
+			server.stop();
+		}
+	}
+}
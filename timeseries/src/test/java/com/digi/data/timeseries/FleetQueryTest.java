@@ -0,0 +1,86 @@
+package com.digi.data.timeseries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FleetQueryTest {
+
+	@Test
+	public void testFleet() throws Exception {
+		StubServer server = new StubServer(1500);
+		try {
+			DataStreamService service = server.service();
+			service.setFleetConcurrency(3);
+			List<String> names = new ArrayList<String>();
+			for (int i = 0; i < 20; i++) {
+				names.add("device" + i + "/temp");
+			}
+			final Map<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+			final AtomicInteger active = new AtomicInteger();
+			final AtomicInteger peak = new AtomicInteger();
+			int queried = service.getFleet(names, Integer.class, Aggregate.None, Interval.None, -1, -1).run(
+					new FleetQuery.Handler<Integer>() {
+						public void stream(DataStream<Integer> stream, StreamSnapshot<Integer> snapshot) {
+							int now = active.incrementAndGet();
+							synchronized (peak) {
+								peak.set(Math.max(peak.get(), now));
+							}
+							int count = 0;
+							for (DataPoint<Integer> dp : snapshot) {
+								Assert.assertEquals(stream.getStreamName(), dp.getStreamId());
+								count++;
+							}
+							counts.put(stream.getStreamName(), count);
+							active.decrementAndGet();
+						}
+					});
+			Assert.assertEquals(20, queried);
+			Assert.assertEquals(20, counts.size());
+			for (Integer count : counts.values()) {
+				Assert.assertEquals(Integer.valueOf(1500), count);
+			}
+			Assert.assertTrue(peak.get() <= 3);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testFailuresAggregated() throws Exception {
+		StubServer server = new StubServer(10);
+		try {
+			List<String> names = new ArrayList<String>();
+			for (int i = 0; i < 5; i++) {
+				names.add("device" + i + "/temp");
+			}
+			final AtomicInteger handled = new AtomicInteger();
+			try {
+				server.service().getFleet(names, Integer.class, Aggregate.None, Interval.None, -1, -1).run(
+						new FleetQuery.Handler<Integer>() {
+							public void stream(DataStream<Integer> stream, StreamSnapshot<Integer> snapshot) {
+								handled.incrementAndGet();
+								if (stream.getStreamName().startsWith("device1/")
+										|| stream.getStreamName().startsWith("device3/")) {
+									throw new IllegalStateException("bad " + stream.getStreamName());
+								}
+							}
+						});
+				Assert.fail();
+			} catch (FleetQuery.FleetException e) {
+				Assert.assertEquals(2, e.getFailures().size());
+				Assert.assertEquals("bad device1/temp", e.getFailures().get("device1/temp").getMessage());
+				Assert.assertEquals(2, e.getSuppressed().length);
+			}
+			// the other streams were still queried
+			Assert.assertEquals(5, handled.get());
+		} finally {
+			server.stop();
+		}
+	}
+}
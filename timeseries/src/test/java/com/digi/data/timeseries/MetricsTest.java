@@ -0,0 +1,103 @@
+package com.digi.data.timeseries;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		Assert.assertEquals(0, histogram.getPercentile(0.5));
+		for (int i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+		Assert.assertEquals(100000, histogram.getCount());
+		Assert.assertEquals(1, histogram.getMin());
+		Assert.assertEquals(100000, histogram.getMax());
+		Assert.assertEquals(50000.5, histogram.getMean(), 0.001);
+		Assert.assertEquals(50000, histogram.getPercentile(0.5), 50000 * 0.07);
+		Assert.assertEquals(99000, histogram.getPercentile(0.99), 99000 * 0.07);
+		Assert.assertEquals(100000, histogram.getPercentile(1));
+
+		// exact below 32, every bucket holds the values up to its upper bound
+		for (long v = 0; v < 1000000; v++) {
+			int i = Histogram.index(v);
+			Assert.assertTrue(v <= Histogram.upper(i));
+			Assert.assertTrue(i == 0 || v > Histogram.upper(i - 1));
+		}
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+	}
+
+	@Test
+	public void testServiceMetrics() throws Exception {
+		StubServer server = new StubServer(2500);
+		server.setStreams(10);
+		try {
+			DataStreamService service = DataStreamService.getServiceForHost("localhost", "metrics", "password");
+			service.setSecureScheme(false);
+			service.setPort(server.service().getPort());
+			service.configure(new ConnectionSettings().retries(1, 1, 1, TimeUnit.MILLISECONDS));
+			InMemoryMetrics metrics = new InMemoryMetrics();
+			service.setMetrics(metrics);
+
+			DataStream<?> stream = service.getStream("device1/temp");
+			Assert.assertEquals(Integer.class, stream.getValueClass());
+			InMemoryMetrics.Stats streams = metrics.getStats(Metrics.DATA_STREAM, "device1/temp");
+			Assert.assertEquals(1, streams.getRequests());
+			Assert.assertEquals(1, streams.getPoints());
+			Assert.assertEquals(1, metrics.getMisses(Metrics.METADATA_CACHE));
+			stream.getUnits();
+			Assert.assertTrue(metrics.getHits(Metrics.METADATA_CACHE) > 0);
+
+			server.fail(3, 1, 503);
+			int count = 0;
+			for (Object dp : stream.getAll()) {
+				count++;
+			}
+			Assert.assertEquals(2500, count);
+			InMemoryMetrics.Stats points = metrics.getStats(Metrics.DATA_POINT, "device1/temp");
+			Assert.assertEquals(4, points.getRequests());
+			Assert.assertEquals(1, points.getErrors());
+			Assert.assertEquals(1, points.getRetries());
+			Assert.assertEquals(3, points.getPages());
+			Assert.assertEquals(2500, points.getPoints());
+			Assert.assertTrue(points.getBytes() > 0);
+			Assert.assertTrue(points.getLatency().getMax() > 0);
+			Assert.assertTrue(points.getPointsPerSecond() > 0);
+			Assert.assertEquals(5, metrics.getPoolWait().getCount());
+
+			// compressed on the wire
+			long compressed = points.getBytes();
+			service.configure(new ConnectionSettings().compression(false));
+			metrics.reset();
+			for (Object dp : stream.getAll()) {
+				count++;
+			}
+			Assert.assertTrue(metrics.getStats(Metrics.DATA_POINT, "device1/temp").getBytes() > compressed * 3);
+			Assert.assertEquals(1, metrics.getSlowest(5).size());
+
+			service.getStream("device2/temp", Integer.class).getAsync(-1, -1).toList().get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(3, metrics.getStats(Metrics.DATA_POINT, "device2/temp").getPages());
+			service.close();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testMaxStreams() {
+		InMemoryMetrics metrics = new InMemoryMetrics(2);
+		metrics.request(Metrics.DATA_POINT, "a", 200, 10);
+		metrics.request(Metrics.DATA_POINT, "b", 200, 10);
+		metrics.request(Metrics.DATA_POINT, "c", 200, 10);
+		metrics.request(Metrics.DATA_POINT, "d", 500, 10);
+		Assert.assertNull(metrics.getStats(Metrics.DATA_POINT, "c"));
+		Assert.assertEquals(2, metrics.getStats(Metrics.DATA_POINT, InMemoryMetrics.OTHER).getRequests());
+		Assert.assertEquals(1, metrics.getStats(Metrics.DATA_POINT, InMemoryMetrics.OTHER).getErrors());
+		Assert.assertTrue(Double.isNaN(metrics.getHitRatio(Metrics.SEGMENT_CACHE)));
+	}
+}
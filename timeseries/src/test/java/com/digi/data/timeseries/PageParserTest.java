@@ -0,0 +1,71 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PageParserTest {
+
+	private static String PAGE = 
+			"<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" +
+			"<result resultSize=\"2\" requestedSize=\"1000\">" +
+			"<DataPoint><id>2f1e3a70-c5a2-11e1-9b21-0800200c9a66</id><cstId>2</cstId>" +
+			"<streamId>device1/temp</streamId><timestamp>1341460800000</timestamp>" +
+			"<serverTimestamp>1341460801000</serverTimestamp><data>1.0</data>" +
+			"<description/><quality>3</quality></DataPoint>" +
+			"<DataPoint><cstId>2</cstId><streamId>device1/temp</streamId>" +
+			"<newExcitingField><nested>so exciting</nested></newExcitingField>" +
+			"<timestamp>1341460860000</timestamp><data><![CDATA[2.5]]></data></DataPoint>" +
+			"<pageCursor>a3c2a070-1</pageCursor>" +
+			"</result>";
+	
+	@Test
+	public void testParsePage() throws Exception {
+		final List<DataPoint<Float>> points = new ArrayList<DataPoint<Float>>();
+		PageParser.Page page = PageParser.parse(new ByteArrayInputStream(PAGE.getBytes("ISO-8859-1")), "DataPoint", 
+				new PageParser.Handler() {
+					DataPoint<Float> current;
+					public void startRecord() {
+						current = new DataPoint<Float>();
+						current.setValueClass(Float.class);
+					}
+					public void field(String name, String value) {
+						current.setField(name, value);
+					}
+					public void endRecord() {
+						points.add(current);
+					}
+				});
+		Assert.assertEquals("a3c2a070-1", page.cursor);
+		Assert.assertEquals(2, page.records);
+		Assert.assertEquals(2, points.size());
+		
+		DataPoint<Float> dp = points.get(0);
+		Assert.assertEquals(UUID.fromString("2f1e3a70-c5a2-11e1-9b21-0800200c9a66"), dp.getId());
+		Assert.assertEquals(1341460800000L, dp.getTimestamp());
+		Assert.assertEquals(1341460801000L, dp.getServerTimestamp());
+		Assert.assertEquals("device1/temp", dp.getStreamId());
+		Assert.assertEquals("", dp.getDescription());
+		Assert.assertEquals(3, dp.getQuality());
+		Assert.assertTrue(1.0f == dp.getValue());
+		
+		dp = points.get(1);
+		Assert.assertEquals(1341460860000L, dp.getTimestamp());
+		Assert.assertTrue(2.5f == dp.getValue());
+	}
+	
+	@Test
+	public void testCursorAttribute() throws Exception {
+		String page = "<result resultSize=\"0\" pageCursor=\"abc\"></result>";
+		PageParser.Page parsed = PageParser.parse(new ByteArrayInputStream(page.getBytes("UTF-8")), "DataPoint", null);
+		Assert.assertEquals("abc", parsed.cursor);
+		Assert.assertEquals(0, parsed.records);
+		
+		page = "<result resultSize=\"0\"></result>";
+		Assert.assertNull(PageParser.parse(new ByteArrayInputStream(page.getBytes("UTF-8")), "DataPoint", null).cursor);
+	}
+}
@@ -0,0 +1,124 @@
+package com.digi.data.timeseries;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelScanTest {
+
+	@Test
+	public void testSplit() {
+		Assert.assertArrayEquals(new long[] { 0, 25, 50, 75, 100 }, ParallelScan.split(0, 100, 4, 0, 0));
+		Assert.assertArrayEquals(new long[] { 0, 1, 2 }, ParallelScan.split(0, 2, 4, 0, 0));
+		// aligned to whole hours even though the range is not
+		long hour = 60 * 60 * 1000L;
+		Assert.assertArrayEquals(new long[] { 10, 2 * hour, 4 * hour, 5 * hour },
+				ParallelScan.split(10, 5 * hour, 2, hour, 0));
+		// aligned to local hours of a +05:30 timezone
+		long offset = 330 * 60 * 1000L;
+		Assert.assertArrayEquals(new long[] { 0, hour + hour / 2, 3 * hour + hour / 2, 5 * hour },
+				ParallelScan.split(0, 5 * hour, 2, hour, offset));
+	}
+
+	@Test
+	public void testOrdered() throws Exception {
+		StubServer server = new StubServer(5000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			ParallelScan<Integer> scan = stream.getParallel(0, 5000 * StubServer.STEP, 4);
+			Assert.assertTrue(scan.getParallelism() <= stream.getService().getMaxConnectionsPerRoute());
+			int expected = 0;
+			for (DataPoint<Integer> dp : scan) {
+				Assert.assertEquals(expected * StubServer.STEP, dp.getTimestamp());
+				expected++;
+			}
+			Assert.assertEquals(5000, expected);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testReadAhead() throws Exception {
+		StubServer server = new StubServer(8000);
+		try {
+			server.setMaxPageSize(100);
+			server.setPageDelay(20);
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			// 8 sub ranges of 10 pages each
+			ParallelScan<Integer> scan = stream.getParallel(0, 8000 * StubServer.STEP, 2);
+			Assert.assertEquals(2, scan.getParallelism());
+			Assert.assertEquals(0, scan.next().getTimestamp());
+
+			// the sub ranges after the first are read while it is still being consumed
+			long deadline = System.currentTimeMillis() + 10000;
+			while (server.requests.get() < 80 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(80, server.requests.get());
+			Assert.assertEquals(2, server.maxQuerying.get());
+			int expected = 1;
+			while (scan.hasNext()) {
+				Assert.assertEquals(expected * StubServer.STEP, scan.next().getTimestamp());
+				expected++;
+			}
+			Assert.assertEquals(8000, expected);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		StubServer server = new StubServer(5000);
+		try {
+			server.fail(3, 1, 400);
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			ParallelScan<Integer> scan = stream.getParallel(0, 5000 * StubServer.STEP, 2);
+			int read = 0;
+			try {
+				while (scan.hasNext()) {
+					scan.next();
+					read++;
+				}
+				Assert.fail("Scan ended after " + read + " data points");
+			} catch (ScanFailedException e) {
+				Assert.assertTrue(read < 5000);
+				Assert.assertTrue(e.getCause() instanceof StreamSnapshot.StatusException);
+				Assert.assertEquals(400, ((StreamSnapshot.StatusException) e.getCause()).getStatus());
+			}
+			try {
+				scan.hasNext();
+				Assert.fail();
+			} catch (ScanFailedException e) {
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testUnordered() throws Exception {
+		StubServer server = new StubServer(5000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			Set<Long> seen = new HashSet<Long>();
+			for (DataPoint<Integer> dp : stream.getParallel(Aggregate.None, Interval.None,
+					0, 5000 * StubServer.STEP, 2, false)) {
+				Assert.assertTrue(seen.add(dp.getTimestamp()));
+			}
+			Assert.assertEquals(5000, seen.size());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testVariableIntervalRejected() throws Exception {
+		DataStream<Integer> stream = DataStreamService.getServiceForHost("localhost", "user", "password")
+				.getStream("device1/temp", Integer.class);
+		stream.getParallel(Aggregate.Sum, Interval.Month, 0, 1000, 2, true);
+	}
+}
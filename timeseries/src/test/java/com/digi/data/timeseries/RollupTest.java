@@ -0,0 +1,96 @@
+package com.digi.data.timeseries;
+
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RollupTest {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	@Test
+	public void testAggregates() {
+		Rollup rollup = new Rollup(Interval.Hour, null);
+		double[] values = { 2, 4, 4, 4, 5, 5, 7, 9 };
+		for (int i = 0; i < values.length; i++) {
+			rollup.add(HOUR + i * MINUTE, values[i]);
+		}
+		rollup.add(3 * HOUR, 1);
+		Assert.assertEquals(2, rollup.size());
+		Assert.assertEquals(HOUR, rollup.getTimestamp(0));
+		Assert.assertEquals(3 * HOUR, rollup.getTimestamp(1));
+		Assert.assertEquals(40, rollup.get(Aggregate.Sum, 0), 0);
+		Assert.assertEquals(5, rollup.get(Aggregate.Average, 0), 1e-9);
+		Assert.assertEquals(8, rollup.get(Aggregate.Count, 0), 0);
+		Assert.assertEquals(2, rollup.get(Aggregate.Min, 0), 0);
+		Assert.assertEquals(9, rollup.get(Aggregate.Max, 0), 0);
+		Assert.assertEquals(2, rollup.get(Aggregate.Standarddev, 0), 1e-9);
+		Assert.assertEquals(0, rollup.get(Aggregate.Standarddev, 1), 0);
+
+		DataPointBatch counts = rollup.get(Aggregate.Count);
+		Assert.assertEquals(2, counts.size());
+		Assert.assertEquals(1, counts.getValue(1), 0);
+	}
+
+	@Test
+	public void testOutOfOrder() {
+		Rollup rollup = new Rollup(Interval.Half, null);
+		rollup.add(2 * HOUR, 1);
+		rollup.add(0, 2);
+		rollup.add(HOUR + 31 * MINUTE, 3);
+		rollup.add(10 * MINUTE, 4);
+		Assert.assertEquals(3, rollup.size());
+		Assert.assertEquals(0, rollup.getTimestamp(0));
+		Assert.assertEquals(6, rollup.get(Aggregate.Sum, 0), 0);
+		Assert.assertEquals(HOUR + 30 * MINUTE, rollup.getTimestamp(1));
+		Assert.assertEquals(2 * HOUR, rollup.getTimestamp(2));
+	}
+
+	@Test
+	public void testTimezoneAlignment() {
+		// +05:30 hours start half past the UTC hour
+		Rollup hours = new Rollup(Interval.Hour, "Asia/Kolkata");
+		hours.add(HOUR + 20 * MINUTE, 1);
+		hours.add(HOUR + 40 * MINUTE, 1);
+		Assert.assertEquals(2, hours.size());
+		Assert.assertEquals(30 * MINUTE, hours.getTimestamp(0));
+		Assert.assertEquals(HOUR + 30 * MINUTE, hours.getTimestamp(1));
+
+		// days start at local midnight
+		Rollup days = new Rollup(Interval.Day, "America/New_York");
+		long offset = -TimeZone.getTimeZone("America/New_York").getOffset(10 * DAY);
+		days.add(10 * DAY + offset - 1, 1);
+		days.add(10 * DAY + offset, 1);
+		Assert.assertEquals(9 * DAY + offset, days.getTimestamp(0));
+		Assert.assertEquals(10 * DAY + offset, days.getTimestamp(1));
+	}
+
+	@Test
+	public void testWeekAndMonth() {
+		// 1970-01-05 was a Monday
+		Rollup weeks = new Rollup(Interval.Week, null);
+		weeks.add(4 * DAY, 1);
+		weeks.add(4 * DAY + 6 * DAY + 23 * HOUR, 1);
+		weeks.add(11 * DAY, 1);
+		Assert.assertEquals(2, weeks.size());
+		Assert.assertEquals(4 * DAY, weeks.getTimestamp(0));
+		Assert.assertEquals(2, weeks.get(Aggregate.Count, 0), 0);
+		Assert.assertEquals(11 * DAY, weeks.getTimestamp(1));
+
+		Rollup months = new Rollup(Interval.Month, null);
+		months.add(30 * DAY, 1);
+		months.add(31 * DAY, 1);
+		months.add(59 * DAY, 1);
+		Assert.assertEquals(3, months.size());
+		Assert.assertEquals(0, months.getTimestamp(0));
+		Assert.assertEquals(31 * DAY, months.getTimestamp(1));
+		Assert.assertEquals(59 * DAY, months.getTimestamp(2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoInterval() {
+		new Rollup(Interval.None, null);
+	}
+}
@@ -0,0 +1,124 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScanCheckpointTest {
+	private StubServer server;
+	private DataStreamService service;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer(2500);
+		service = DataStreamService.getServiceForHost("localhost", "checkpoint", "password");
+		service.setSecureScheme(false);
+		service.setPort(server.service().getPort());
+		service.configure(new ConnectionSettings().retries(3, 1, 5, TimeUnit.MILLISECONDS));
+	}
+
+	@After
+	public void tearDown() {
+		service.close();
+		server.stop();
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		server.fail(2, 2, 503);
+		int expected = 0;
+		for (DataPoint<Integer> dp : service.getStream("device1/temp", Integer.class).getAll()) {
+			Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+		}
+		Assert.assertEquals(2500, expected);
+		Assert.assertEquals(5, server.requests.get());
+
+		// prefetched pages are retried too
+		server.requests.set(0);
+		server.fail(3, 1, 500);
+		expected = 0;
+		for (DataPoint<Integer> dp : service.getStream("device1/temp", Integer.class).getAll().prefetch(2)) {
+			Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+		}
+		Assert.assertEquals(2500, expected);
+		Assert.assertEquals(4, server.requests.get());
+	}
+
+	@Test
+	public void testFailureResumed() throws Exception {
+		// not retried
+		server.fail(2, 1, 404);
+		StreamSnapshot<Integer> snapshot = service.getStream("device1/temp", Integer.class).getAll();
+		int read = 0;
+		ScanCheckpoint checkpoint = null;
+		try {
+			while (snapshot.hasNext()) {
+				snapshot.next();
+				read++;
+			}
+			Assert.fail();
+		} catch (ScanFailedException e) {
+			checkpoint = e.getCheckpoint();
+		}
+		Assert.assertEquals(1000, read);
+		Assert.assertEquals(2, server.requests.get());
+		Assert.assertEquals("1000", checkpoint.getCursor());
+		Assert.assertEquals(0, checkpoint.getSkip());
+		Assert.assertEquals(999 * StubServer.STEP, checkpoint.getLastTimestamp());
+		Assert.assertFalse(checkpoint.isComplete());
+
+		// as if resumed by another process
+		checkpoint = copy(checkpoint);
+		int expected = 1000;
+		for (DataPoint<Integer> dp : service.<Integer> resume(checkpoint)) {
+			Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+		}
+		Assert.assertEquals(2500, expected);
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		StreamSnapshot<Integer> snapshot = service.getStream("device1/temp", Integer.class).getAll().prefetch(1);
+		for (int i = 0; i < 1500; i++) {
+			snapshot.next();
+		}
+		ScanCheckpoint checkpoint = snapshot.checkpoint();
+		snapshot.close();
+		Assert.assertEquals("1000", checkpoint.getCursor());
+		Assert.assertEquals(500, checkpoint.getSkip());
+		Assert.assertEquals(1499 * StubServer.STEP, checkpoint.getLastTimestamp());
+
+		StreamSnapshot<Integer> resumed = service.resume(copy(checkpoint));
+		for (int i = 0; i < 700; i++) {
+			Assert.assertEquals(Integer.valueOf(1500 + i), resumed.next().getValue());
+		}
+		// checkpoints of resumed scans resume them again
+		checkpoint = resumed.checkpoint();
+		resumed.close();
+		Assert.assertEquals("2000", checkpoint.getCursor());
+		Assert.assertEquals(200, checkpoint.getSkip());
+		int expected = 2200;
+		resumed = service.resume(checkpoint);
+		while (resumed.hasNext()) {
+			Assert.assertEquals(Integer.valueOf(expected++), resumed.next().getValue());
+		}
+		Assert.assertEquals(2500, expected);
+		Assert.assertTrue(resumed.checkpoint().isComplete());
+		Assert.assertFalse(service.resume(resumed.checkpoint()).hasNext());
+	}
+
+	private static ScanCheckpoint copy(ScanCheckpoint checkpoint) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(checkpoint);
+		out.close();
+		return (ScanCheckpoint) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+}
@@ -0,0 +1,103 @@
+package com.digi.data.timeseries;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StubServer server;
+	private DataStreamService service;
+	private SegmentCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer(3000);
+		service = server.service();
+		cache = new SegmentCache(folder.newFolder("cache"));
+		service.setSegmentCache(cache);
+	}
+
+	@After
+	public void tearDown() {
+		service.setSegmentCache(null);
+		server.stop();
+	}
+
+	@Test
+	public void testServedFromCache() throws Exception {
+		DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+		assertRange(stream.get(0, 1500 * StubServer.STEP), 0, 1500);
+		Assert.assertEquals(2, server.requests.get());
+
+		assertRange(stream.get(0, 1500 * StubServer.STEP), 0, 1500);
+		Assert.assertEquals(2, server.requests.get());
+
+		// only the part after the cached range is fetched
+		assertRange(stream.get(1000 * StubServer.STEP, 2200 * StubServer.STEP), 1000, 2200);
+		Assert.assertEquals(3, server.requests.get());
+
+		assertRange(stream.get(500 * StubServer.STEP, 2000 * StubServer.STEP), 500, 2000);
+		Assert.assertEquals(3, server.requests.get());
+	}
+
+	@Test
+	public void testOpenRangesNotCached() throws Exception {
+		cache.setClosedAfter(Long.MAX_VALUE / 2);
+		DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+		assertRange(stream.get(0, 500 * StubServer.STEP), 0, 500);
+		assertRange(stream.get(0, 500 * StubServer.STEP), 0, 500);
+		Assert.assertEquals(2, server.requests.get());
+	}
+
+	@Test
+	public void testRollupsExactRange() throws Exception {
+		DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+		assertRange(stream.get(Aggregate.Sum, Interval.Hour, 0, 500 * StubServer.STEP), 0, 500);
+		assertRange(stream.get(Aggregate.Sum, Interval.Hour, 0, 500 * StubServer.STEP), 0, 500);
+		Assert.assertEquals(1, server.requests.get());
+		assertRange(stream.get(Aggregate.Sum, Interval.Hour, 0, 400 * StubServer.STEP), 0, 400);
+		Assert.assertEquals(2, server.requests.get());
+	}
+
+	@Test
+	public void testFailedGap() throws Exception {
+		DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+		assertRange(stream.get(0, 500 * StubServer.STEP), 0, 500);
+		assertRange(stream.get(1000 * StubServer.STEP, 1500 * StubServer.STEP), 1000, 1500);
+		Assert.assertEquals(2, server.requests.get());
+
+		// the gap between the cached ranges can not be fetched
+		server.fail(3, 1, 400);
+		StreamSnapshot<Integer> snapshot = stream.get(0, 1500 * StubServer.STEP);
+		int expected = 0;
+		try {
+			while (snapshot.hasNext()) {
+				Assert.assertEquals(Integer.valueOf(expected++), snapshot.next().getValue());
+			}
+			Assert.fail();
+		} catch (ScanFailedException e) {
+			Assert.assertTrue(e.getCause() instanceof StreamSnapshot.StatusException);
+			Assert.assertFalse(e.getCheckpoint().isComplete());
+		}
+		// nothing after the hole is served
+		Assert.assertEquals(500, expected);
+		Assert.assertEquals(3, server.requests.get());
+	}
+
+	private void assertRange(StreamSnapshot<Integer> snapshot, int from, int to) {
+		int expected = from;
+		for (DataPoint<Integer> dp : snapshot) {
+			Assert.assertEquals(expected * StubServer.STEP, dp.getTimestamp());
+			Assert.assertEquals(Integer.valueOf(expected), dp.getValue());
+			Assert.assertEquals("device1/temp", dp.getStreamId());
+			expected++;
+		}
+		Assert.assertEquals(to, expected);
+	}
+}
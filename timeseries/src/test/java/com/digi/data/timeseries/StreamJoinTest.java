@@ -0,0 +1,113 @@
+package com.digi.data.timeseries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamJoinTest {
+	private StubServer server;
+	private DataStreamService service;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer(2500);
+		service = DataStreamService.getServiceForHost("localhost", "join", "password");
+		service.setSecureScheme(false);
+		service.setPort(server.service().getPort());
+	}
+
+	@After
+	public void tearDown() {
+		service.close();
+		server.stop();
+	}
+
+	@Test
+	public void testInner() throws Exception {
+		int expected = 1000;
+		for (StreamJoin.Row<Integer> row : join(StreamJoin.Type.INNER)) {
+			Assert.assertEquals(expected * StubServer.STEP, row.getTimestamp());
+			Assert.assertEquals(Integer.valueOf(expected), row.get(0));
+			Assert.assertEquals(Integer.valueOf(expected), row.get(1));
+			Assert.assertTrue(row.isComplete());
+			expected++;
+		}
+		Assert.assertEquals(2000, expected);
+	}
+
+	@Test
+	public void testOuter() throws Exception {
+		int expected = 0;
+		int complete = 0;
+		for (StreamJoin.Row<Integer> row : join(StreamJoin.Type.OUTER)) {
+			Assert.assertEquals(expected * StubServer.STEP, row.getTimestamp());
+			Assert.assertEquals(Integer.valueOf(expected), row.get(0));
+			if (expected >= 1000 && expected < 2000) {
+				Assert.assertEquals(Integer.valueOf(expected), row.get(1));
+				complete++;
+			} else {
+				Assert.assertNull(row.get(1));
+			}
+			expected++;
+		}
+		Assert.assertEquals(2500, expected);
+		Assert.assertEquals(1000, complete);
+	}
+
+	@Test
+	public void testAsOf() throws Exception {
+		int expected = 0;
+		for (StreamJoin.Row<Integer> row : join(StreamJoin.Type.AS_OF).tolerance(5 * StubServer.STEP)) {
+			Assert.assertEquals(Integer.valueOf(expected), row.get(0));
+			if (expected < 1000 || expected > 2004) {
+				Assert.assertNull(row.get(1));
+			} else {
+				// nearest prior data point after the second stream ended
+				Assert.assertEquals(Integer.valueOf(Math.min(expected, 1999)), row.get(1));
+				Assert.assertEquals(Math.min(expected, 1999) * StubServer.STEP, row.getPoint(1).getTimestamp());
+			}
+			expected++;
+		}
+		Assert.assertEquals(2500, expected);
+
+		StreamJoin<Integer> join = join(StreamJoin.Type.AS_OF);
+		StreamJoin.Row<Integer> row = null;
+		while (join.hasNext()) {
+			row = join.next();
+		}
+		Assert.assertEquals(Integer.valueOf(1999), row.get(1));
+		join.close();
+	}
+
+	@Test
+	public void testWide() throws Exception {
+		List<StreamSnapshot<Integer>> snapshots = new ArrayList<StreamSnapshot<Integer>>();
+		for (int i = 0; i < 20; i++) {
+			snapshots.add(service.getStream("device" + i + "/temp", Integer.class).get(0, 500 * StubServer.STEP)
+					.pageSize(100));
+		}
+		StreamJoin<Integer> join = new StreamJoin<Integer>(StreamJoin.Type.INNER, snapshots).prefetch(1);
+		Assert.assertEquals(20, join.getColumns());
+		int rows = 0;
+		for (StreamJoin.Row<Integer> row : join) {
+			Assert.assertEquals(20, row.size());
+			Assert.assertEquals(Integer.valueOf(rows), row.get(19));
+			rows++;
+		}
+		Assert.assertEquals(500, rows);
+		Assert.assertEquals(20 * 5, server.requests.get());
+		join.close();
+	}
+
+	private StreamJoin<Integer> join(StreamJoin.Type type) {
+		List<StreamSnapshot<Integer>> snapshots = new ArrayList<StreamSnapshot<Integer>>();
+		snapshots.add(service.getStream("device1/temp", Integer.class).getAll());
+		snapshots.add(service.getStream("device2/temp", Integer.class).get(1000 * StubServer.STEP,
+				2000 * StubServer.STEP));
+		return new StreamJoin<Integer>(type, snapshots);
+	}
+}
@@ -0,0 +1,212 @@
+package com.digi.data.timeseries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamMetadataTest {
+	private StubServer server;
+	private DataStreamService service;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer(0);
+		server.setStreams(2500);
+		service = server.service();
+		service.getMetadataCache().clear();
+	}
+
+	@After
+	public void tearDown() {
+		service.getMetadataCache().clear();
+		server.stop();
+	}
+
+	@Test
+	public void testLoadStreams() throws Exception {
+		Assert.assertEquals(2500, service.loadStreams(""));
+		// paged 1000 at a time
+		Assert.assertEquals(3, server.requests.get());
+		Assert.assertEquals(2500, service.getMetadataCache().size());
+
+		DataStream<?> stream = service.getStream("device1234/temp");
+		Assert.assertEquals(Integer.class, stream.getValueClass());
+		Assert.assertEquals("C", stream.getUnits());
+		Assert.assertEquals("device 1234", stream.getDescription());
+		Assert.assertEquals(3, server.requests.get());
+	}
+
+	@Test
+	public void testGetStreams() throws Exception {
+		List<DataStream<?>> streams = service.getStreams(Arrays.asList("device7/temp", "device8/temp", "missing/temp"));
+		Assert.assertEquals(3, streams.size());
+		Assert.assertEquals("device7/temp", streams.get(0).getStreamName());
+		Assert.assertEquals(Integer.class, streams.get(0).getValueClass());
+		Assert.assertEquals(Integer.class, streams.get(1).getValueClass());
+		Assert.assertEquals(String.class, streams.get(2).getValueClass());
+		Assert.assertEquals(3, server.requests.get());
+		// a listing per device instead of every stream of the account
+		Assert.assertEquals(Arrays.asList("device7/temp", "device8/temp", "missing/temp"), server.streamPaths);
+
+		// cached now
+		service.getStreams(Arrays.asList("device7/temp", "device8/temp"));
+		Assert.assertEquals(3, server.requests.get());
+
+		Assert.assertEquals(1, service.getStreams("device9").size());
+		Assert.assertEquals(4, server.requests.get());
+	}
+
+	@Test
+	public void testLoadStreamsOfManyDevices() throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			names.add("device" + (i * 50) + "/temp");
+		}
+		// picked out of one paged listing instead of a request per device
+		Assert.assertEquals(50, service.loadStreams(names));
+		Assert.assertEquals(3, server.requests.get());
+		Assert.assertEquals(Arrays.asList("", "", ""), server.streamPaths);
+		Assert.assertEquals(50, service.getMetadataCache().size());
+
+		List<DataStream<?>> streams = service.getStreams(names);
+		Assert.assertEquals(Integer.class, streams.get(49).getValueClass());
+		Assert.assertEquals(3, server.requests.get());
+	}
+
+	@Test
+	public void testGetStreamsEvicted() throws Exception {
+		StreamMetadataCache cache = service.getMetadataCache();
+		cache.setMaximumSize(1);
+		try {
+			// the metadata of the first is evicted by the second before they are created
+			List<DataStream<?>> streams = service.getStreams(Arrays.asList("device1/temp", "device2/temp"));
+			Assert.assertEquals(Integer.class, streams.get(0).getValueClass());
+			Assert.assertEquals(Integer.class, streams.get(1).getValueClass());
+			Assert.assertEquals(1, cache.size());
+		} finally {
+			cache.setMaximumSize(10000);
+		}
+	}
+
+	@Test
+	public void testLoadStreamsByDevice() throws Exception {
+		Assert.assertEquals(0, service.loadStreams(Arrays.<String> asList()));
+		Assert.assertEquals(2, service.loadStreams(Arrays.asList("device1/temp", "device1/humidity", "device2/temp")));
+		Assert.assertEquals(Arrays.asList("device1", "device2/temp"), server.streamPaths);
+		Assert.assertNotNull(service.getMetadataCache().get("device1/temp"));
+		Assert.assertNotNull(service.getMetadataCache().get("device2/temp"));
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		DataStream<?> stream = service.getStream("device3/temp");
+		Assert.assertEquals(Integer.class, stream.getValueClass());
+		Assert.assertEquals(1, server.requests.get());
+		Assert.assertNotNull(service.getMetadataCache().get("device3/temp"));
+		Assert.assertNull(service.getMetadataCache().get("device3/temp").get("currentValue"));
+	}
+
+	@Test
+	public void testNotModified() throws Exception {
+		DataStream<?> stream = service.getStream("device3/temp");
+		Assert.assertEquals(1, server.requests.get());
+
+		// unchanged metadata is revalidated without being sent again
+		service.getMetadataCache().invalidate("device4/temp");
+		stream.refresh();
+		Assert.assertEquals(2, server.requests.get());
+		Assert.assertEquals(1, server.notModified.get());
+		Assert.assertEquals("device 3", stream.getDescription());
+		Assert.assertNotNull(service.getMetadataCache().get("device3/temp"));
+
+		// changed metadata is fetched again
+		server.setStreams(2600);
+		stream.refresh();
+		Assert.assertEquals(3, server.requests.get());
+		Assert.assertEquals(1, server.notModified.get());
+
+		// invalidating forgets the validators
+		service.getMetadataCache().invalidate("device3/temp");
+		stream.refresh();
+		Assert.assertEquals(4, server.requests.get());
+		Assert.assertEquals(1, server.notModified.get());
+	}
+
+	@Test
+	public void testNotModifiedEvicted() throws Exception {
+		StreamMetadataCache cache = service.getMetadataCache();
+		DataStream<?> stream = service.getStream("device3/temp");
+		Assert.assertEquals(1, server.requests.get());
+		try {
+			cache.setExpireAfter(0);
+			Thread.sleep(5);
+			Assert.assertNull(cache.get("device3/temp"));
+		} finally {
+			cache.setExpireAfter(60 * 60 * 1000L);
+		}
+
+		// what was listed is gone so it is not revalidated but listed again
+		stream.refresh();
+		Assert.assertEquals(2, server.requests.get());
+		Assert.assertEquals(0, server.notModified.get());
+		Assert.assertEquals("device 3", cache.get("device3/temp").get("description"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() throws Exception {
+		StreamMetadataCache cache = service.getMetadataCache();
+		cache.setMaximumSize(2);
+		try {
+			service.loadStreams("device1/temp");
+			service.loadStreams("device2/temp");
+			Assert.assertNotNull(cache.get("device1/temp"));
+			service.loadStreams("device3/temp");
+			Assert.assertEquals(2, cache.size());
+			Assert.assertNotNull(cache.get("device1/temp"));
+			Assert.assertNull(cache.get("device2/temp"));
+		} finally {
+			cache.setMaximumSize(10000);
+		}
+	}
+
+	@Test
+	public void testExpireAndRefresh() throws Exception {
+		StreamMetadataCache cache = service.getMetadataCache();
+		try {
+			cache.setRefreshAfter(0);
+			service.loadStreams("device1/temp");
+			Thread.sleep(5);
+			// stale entries are served while fetched again in the background
+			DataStream<?> stream = service.getStream("device1/temp");
+			Assert.assertEquals(Integer.class, stream.getValueClass());
+			long timeout = System.currentTimeMillis() + 10000;
+			while (server.requests.get() < 2 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals(2, server.requests.get());
+
+			cache.setExpireAfter(0);
+			cache.setRefreshAfter(1000);
+			Thread.sleep(5);
+			Assert.assertNull(cache.get("device1/temp"));
+			Assert.assertEquals("C", stream.getUnits());
+			Assert.assertEquals(3, server.requests.get());
+		} finally {
+			cache.setExpireAfter(60 * 60 * 1000L);
+			cache.setRefreshAfter(30 * 60 * 1000L);
+		}
+	}
+
+	@Test
+	public void testCommonPath() {
+		Assert.assertEquals("device1", DataStreamService.commonPath(Arrays.asList("device1/temp", "device1/humidity")));
+		Assert.assertEquals("a/b", DataStreamService.commonPath(Arrays.asList("a/b/c", "a/b/d/e", "a/b")));
+		Assert.assertEquals("", DataStreamService.commonPath(Arrays.asList("device1/temp", "device2/temp")));
+		Assert.assertEquals("device1/temp", DataStreamService.commonPath(Arrays.asList("device1/temp")));
+	}
+}
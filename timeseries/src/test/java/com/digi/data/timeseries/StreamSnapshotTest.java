@@ -0,0 +1,379 @@
+package com.digi.data.timeseries;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamSnapshotTest {
+
+	private static String DATA_POINT = 
+			"<DataPoint><cstId>2</cstId><streamId>device1/temp</streamId>"+
+			"<timestamp>1341460800000</timestamp><data>1.0</data></DataPoint>";
+	
+	@Test
+	public void testXstreamConvert() {
+		DataPoint<Float> dp = (DataPoint<Float>) StreamSnapshot.xstream.fromXML(DATA_POINT);
+		Assert.assertEquals(1341460800000L, dp.getTimestamp());
+		Assert.assertEquals("device1/temp", dp.getStreamId());
+		dp.setValueClass(Float.class);
+		Assert.assertTrue(1.0f == dp.getValue());
+	}
+	
+	/**
+	 * Ensure that if an unexpected field is encountered when parsing a 
+	 * DataPoint that an exception is not raised.
+	 */
+	@Test
+	public void testXstreamConversionUnknownElement() {
+		String unknownElement = "<DataPoint>" +
+			"<cstId>2</cstId>" +
+			"<streamId>device1</streamId>" +
+			"<newExcitingField>so exciting</newExcitingField>" +
+			"<timestamp>1341460800000</timestamp>" +
+			"<data>1.0</data>" +
+			"</DataPoint>";
+		StreamSnapshot.xstream.fromXML(unknownElement);
+	}
+	
+	@Test
+	public void testFetchNext() throws Exception {
+		// todo
+	}
+	
+	@Test
+	public void testPrefetch() throws Exception {
+		StubServer server = new StubServer(2500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			int expected = 0;
+			for (DataPoint<Integer> dp : stream.getAll().prefetch(2)) {
+				Assert.assertEquals(expected * StubServer.STEP, dp.getTimestamp());
+				Assert.assertEquals(Integer.valueOf(expected), dp.getValue());
+				expected++;
+			}
+			Assert.assertEquals(2500, expected);
+		} finally {
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void testServerPageSize() throws Exception {
+		StubServer server = new StubServer(2500);
+		server.setMaxPageSize(300);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			int expected = 0;
+			for (DataPoint<Integer> dp : stream.getAll()) {
+				Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+			}
+			// smaller pages than asked for are followed by their cursor
+			Assert.assertEquals(2500, expected);
+			Assert.assertEquals(9, server.requests.get());
+
+			server.requests.set(0);
+			expected = 0;
+			for (DataPoint<Integer> dp : stream.getAll().pageSize(100)) {
+				Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+			}
+			Assert.assertEquals(2500, expected);
+			Assert.assertEquals(25, server.requests.get());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testAdaptivePaging() throws Exception {
+		StubServer server = new StubServer(20000);
+		server.setMaxPageSize(3000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			StreamSnapshot<Integer> snapshot = stream.getAll().adaptivePaging(500, 8000);
+			Assert.assertEquals(1000, snapshot.getPageSize());
+			int expected = 0;
+			while (snapshot.hasNext()) {
+				Assert.assertEquals(Integer.valueOf(expected++), snapshot.next().getValue());
+			}
+			Assert.assertEquals(20000, expected);
+			// grows past the default, and never asks for more than the server returns once
+			// a page asked for more was cut short
+			boolean grown = false;
+			boolean capped = false;
+			for (int size : server.requestedSizes) {
+				Assert.assertTrue(server.requestedSizes.toString(), !capped || size <= 3000);
+				grown |= size > 1000;
+				capped |= size > 3000;
+			}
+			Assert.assertTrue(server.requestedSizes.toString(), grown);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testLimit() throws Exception {
+		StubServer server = new StubServer(5000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			StreamSnapshot<Integer> latest = stream.latest(1);
+			Assert.assertTrue(latest.hasNext());
+			latest.next();
+			Assert.assertFalse(latest.hasNext());
+			Assert.assertEquals(1, server.requests.get());
+			Assert.assertEquals(Integer.valueOf(1), server.requestedSizes.get(0));
+
+			// pages ask for no more than is left
+			StreamSnapshot<Integer> snapshot = stream.getAll().pageSize(1000).limit(2500);
+			int expected = 0;
+			for (DataPoint<Integer> dp : snapshot) {
+				Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+			}
+			Assert.assertEquals(2500, expected);
+			Assert.assertEquals("[1, 1000, 1000, 500]", server.requestedSizes.toString());
+			try {
+				snapshot.limit(0);
+				Assert.fail();
+			} catch (IllegalArgumentException e) {
+			}
+
+			// the size of a query caps it as it always did, paged by the service
+			server.requestedSizes.clear();
+			StreamSnapshot<Integer> sized = stream.get(Aggregate.None, Interval.None, -1, -1, false, 1, null);
+			Assert.assertEquals(Integer.valueOf(0), sized.next().getValue());
+			Assert.assertFalse(sized.hasNext());
+			Assert.assertEquals("[1]", server.requestedSizes.toString());
+
+			// a capped scan resumes with what is left of the cap
+			sized = stream.get(Aggregate.None, Interval.None, -1, -1, false, 2500, null);
+			for (int i = 0; i < 1200; i++) {
+				sized.next();
+			}
+			ScanCheckpoint checkpoint = sized.checkpoint();
+			Assert.assertEquals(1300, checkpoint.getSize());
+			expected = 1200;
+			for (DataPoint<Integer> dp : server.service().<Integer> resume(checkpoint)) {
+				Assert.assertEquals(Integer.valueOf(expected++), dp.getValue());
+			}
+			Assert.assertEquals(2500, expected);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testPageSizer() {
+		long ms = 1000 * 1000L;
+		PageSizer sizer = new PageSizer(100, 4000, 1000);
+		// round trip dominates, grow
+		sizer.paged(1000, 1000, true, 50 * ms, 10 * ms);
+		Assert.assertEquals(2000, sizer.size());
+		sizer.paged(2000, 2000, true, 50 * ms, 20 * ms);
+		Assert.assertEquals(4000, sizer.size());
+		sizer.paged(4000, 4000, true, 50 * ms, 40 * ms);
+		Assert.assertEquals(4000, sizer.size());
+		// slow pages shrink
+		sizer.paged(4000, 4000, true, 50 * ms, 3000 * ms);
+		Assert.assertEquals(2000, sizer.size());
+		// parsing dominates, keep
+		sizer.paged(2000, 2000, true, 5 * ms, 100 * ms);
+		Assert.assertEquals(2000, sizer.size());
+		// the last page says nothing
+		sizer.paged(2000, 10, false, 50 * ms, 1 * ms);
+		Assert.assertEquals(2000, sizer.size());
+		// the server pages at 1500
+		sizer.paged(2000, 1500, true, 50 * ms, 1 * ms);
+		Assert.assertEquals(1500, sizer.size());
+		sizer.paged(1500, 1500, true, 50 * ms, 1 * ms);
+		Assert.assertEquals(1500, sizer.size());
+
+		PageSizer fixed = new PageSizer(250);
+		fixed.paged(250, 250, true, 50 * ms, 1 * ms);
+		Assert.assertEquals(250, fixed.size());
+	}
+
+	@Test
+	public void testPrefetchClose() throws Exception {
+		StubServer server = new StubServer(10000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			StreamSnapshot<Integer> snapshot = stream.getAll().prefetch(1);
+			Assert.assertTrue(snapshot.hasNext());
+			snapshot.close();
+			int read = 0;
+			while (snapshot.hasNext()) {
+				snapshot.next();
+				read++;
+			}
+			Assert.assertEquals(1000, read);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testConcurrentConsumers() throws Exception {
+		StubServer server = new StubServer(5500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			for (int prefetch = 0; prefetch <= 2; prefetch += 2) {
+				final StreamSnapshot<Integer> snapshot = stream.getAll().prefetch(prefetch);
+				final AtomicIntegerArray seen = new AtomicIntegerArray(5500);
+				List<Thread> consumers = new ArrayList<Thread>();
+				for (int i = 0; i < 4; i++) {
+					Thread consumer = new Thread() {
+						public void run() {
+							DataPoint<Integer> dp;
+							while ((dp = snapshot.poll()) != null) {
+								seen.incrementAndGet(dp.getValue());
+							}
+						}
+					};
+					consumer.start();
+					consumers.add(consumer);
+				}
+				for (Thread consumer : consumers) {
+					consumer.join();
+				}
+				// every point was handed to exactly one consumer
+				for (int i = 0; i < 5500; i++) {
+					Assert.assertEquals(1, seen.get(i));
+				}
+				Assert.assertFalse(snapshot.hasNext());
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testMaterialize() throws Exception {
+		StubServer server = new StubServer(1500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			StreamSnapshot<Integer> snapshot = stream.getAll().materialize();
+			for (int pass = 0; pass < 3; pass++) {
+				int expected = 0;
+				for (DataPoint<Integer> dp : snapshot) {
+					Assert.assertEquals(expected * StubServer.STEP, dp.getTimestamp());
+					Assert.assertEquals(Integer.valueOf(expected), dp.getValue());
+					Assert.assertEquals("device1/temp", dp.getStreamId());
+					expected++;
+				}
+				Assert.assertEquals(1500, expected);
+				Assert.assertTrue(snapshot.isMaterialized());
+			}
+			// only the first pass was fetched
+			Assert.assertEquals(2, server.requests.get());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testMaterializeOverflow() throws Exception {
+		StubServer server = new StubServer(1500);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			StreamSnapshot<Integer> evicted = stream.getAll().materialize(1024, StreamSnapshot.Overflow.EVICT);
+			Assert.assertEquals(1500, count(evicted));
+			Assert.assertFalse(evicted.isMaterialized());
+			Assert.assertEquals(1500, count(evicted));
+			Assert.assertEquals(4, server.requests.get());
+
+			StreamSnapshot<Integer> spilled = stream.getAll().materialize(1024, StreamSnapshot.Overflow.SPILL);
+			Assert.assertEquals(1500, count(spilled));
+			Assert.assertTrue(spilled.isMaterialized());
+			Assert.assertEquals(1500, count(spilled));
+			Assert.assertEquals(6, server.requests.get());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testMaterializeAbandoned() throws Exception {
+		StubServer server = new StubServer(3000);
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			StreamSnapshot<Integer> snapshot = stream.getAll().materialize(1024, StreamSnapshot.Overflow.SPILL);
+			Set<String> before = spills();
+			StreamSnapshot<Integer> pass = (StreamSnapshot<Integer>) snapshot.iterator();
+			for (int i = 0; i < 1500; i++) {
+				pass.next();
+			}
+			Assert.assertEquals(1, spills().size() - before.size());
+			// the spilled copy of a pass that is given up on is deleted
+			pass.close();
+			Assert.assertEquals(before, spills());
+			Assert.assertFalse(snapshot.isMaterialized());
+
+			// as is one of a pass that failed
+			server.fail(server.requests.get() + 2, 1, 400);
+			pass = (StreamSnapshot<Integer>) snapshot.iterator();
+			try {
+				while (pass.hasNext()) {
+					pass.next();
+				}
+				Assert.fail();
+			} catch (ScanFailedException e) {
+			}
+			Assert.assertEquals(before, spills());
+			Assert.assertFalse(snapshot.isMaterialized());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testInvalidUri() throws Exception {
+		DataStreamService service = DataStreamService.getServiceForHost("invalid host", "uri", "password");
+		service.configure(new ConnectionSettings().retries(1, 1, 1, TimeUnit.MILLISECONDS));
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		service.setMetrics(metrics);
+		DataStream<Integer> stream = service.getStream("device1/temp", Integer.class);
+		try {
+			stream.getAll().fetchNextChunk();
+			Assert.fail();
+		} catch (DataServiceException e) {
+			Assert.assertTrue(e.getCause() instanceof URISyntaxException);
+		}
+		StreamSnapshot<Integer> snapshot = stream.getAll();
+		try {
+			snapshot.hasNext();
+			Assert.fail();
+		} catch (ScanFailedException e) {
+			Assert.assertTrue(e.getCause() instanceof DataServiceException);
+			Assert.assertTrue(e.getCause().getCause() instanceof URISyntaxException);
+		}
+		// not retried
+		Assert.assertEquals(0, metrics.getStats(Metrics.DATA_POINT, "device1/temp").getRetries());
+	}
+
+	private static Set<String> spills() {
+		Set<String> spills = new HashSet<String>();
+		for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+			if (name.startsWith("snapshot") && name.endsWith(".tmp")) {
+				spills.add(name);
+			}
+		}
+		return spills;
+	}
+
+	private static int count(StreamSnapshot<Integer> snapshot) {
+		int count = 0;
+		for (DataPoint<Integer> dp : snapshot) {
+			Assert.assertEquals(Integer.valueOf(count), dp.getValue());
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,81 @@
+package com.digi.data.timeseries;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamTailTest {
+
+	@Test
+	public void testTail() throws Exception {
+		StubServer server = new StubServer(1500);
+		StreamTail<Integer> tail = null;
+		try {
+			DataStream<Integer> stream = server.service().getStream("device1/temp", Integer.class);
+			BlockingQueue<DataPoint<Integer>> queue = new LinkedBlockingQueue<DataPoint<Integer>>();
+			tail = stream.tail(0, queue).setPollInterval(10, 50, TimeUnit.MILLISECONDS);
+			assertNext(queue, 0, 1500);
+
+			server.setPoints(2300);
+			assertNext(queue, 1500, 2300);
+			Assert.assertEquals(2299 * StubServer.STEP, tail.getLastTimestamp());
+
+			// the last data point is fetched again by every poll but not delivered again
+			int polls = server.requests.get();
+			while (server.requests.get() < polls + 3) {
+				Thread.sleep(10);
+			}
+			Assert.assertNull(queue.poll(100, TimeUnit.MILLISECONDS));
+			Assert.assertEquals(50, tail.getPollDelay());
+		} finally {
+			if (tail != null) {
+				tail.close();
+			}
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testDedupeAtBoundary() throws Exception {
+		final Set<Long> delivered = new HashSet<Long>();
+		StreamTail<Integer> tail = new StreamTail<Integer>(null, 5, new StreamTail.Listener<Integer>() {
+			public void dataPoint(DataPoint<Integer> point) {
+				Assert.assertTrue(delivered.add(point.getId().getLeastSignificantBits()));
+			}
+
+			public void error(Exception e) {
+				Assert.fail(e.getMessage());
+			}
+		});
+		Assert.assertTrue(tail.deliver(point(5, 1)));
+		Assert.assertTrue(tail.deliver(point(5, 2)));
+		Assert.assertFalse(tail.deliver(point(5, 1)));
+		Assert.assertFalse(tail.deliver(point(4, 3)));
+		Assert.assertTrue(tail.deliver(point(6, 4)));
+		Assert.assertFalse(tail.deliver(point(6, 4)));
+		Assert.assertFalse(tail.deliver(point(5, 5)));
+		Assert.assertEquals(3, delivered.size());
+	}
+
+	private static DataPoint<Integer> point(long timestamp, long id) {
+		DataPoint<Integer> point = new DataPoint<Integer>();
+		point.setTimestamp(timestamp);
+		point.setId(new UUID(0, id));
+		return point;
+	}
+
+	private static void assertNext(BlockingQueue<DataPoint<Integer>> queue, int from, int to)
+			throws InterruptedException {
+		for (int i = from; i < to; i++) {
+			DataPoint<Integer> dp = queue.poll(10, TimeUnit.SECONDS);
+			Assert.assertNotNull(dp);
+			Assert.assertEquals(Integer.valueOf(i), dp.getValue());
+		}
+	}
+}
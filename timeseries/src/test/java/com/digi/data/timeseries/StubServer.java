@@ -0,0 +1,319 @@
+package com.digi.data.timeseries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local http server that pages through generated data points like /ws/DataPoint
+ * does, one point per minute starting at 0 with the value being its index.
+ * /ws/DataStream lists the integer streams device0/temp ... device[streams-1]/temp.
+ * Responses are gzipped when the client accepts it, stream listings have an ETag
+ * and are answered with 304 when it matches If-None-Match. Uploads posted to
+ * /ws/DataPoint are counted and dropped.
+ */
+public class StubServer implements HttpHandler {
+	public static final long STEP = 60 * 1000L;
+
+	private final HttpServer server;
+	private volatile int points;
+	private volatile int streams = 0;
+	private volatile int maxPageSize = Integer.MAX_VALUE;
+	private volatile int failFrom = 0;
+	private volatile int failTo = 0;
+	private volatile int failStatus = 0;
+	private volatile CountDownLatch uploadGate = null;
+	private volatile long pageDelay = 0;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	final AtomicInteger requests = new AtomicInteger();
+	final AtomicInteger compressed = new AtomicInteger();
+	final AtomicInteger notModified = new AtomicInteger();
+	final AtomicInteger uploads = new AtomicInteger();
+	final AtomicInteger uploaded = new AtomicInteger();
+	final AtomicInteger uploading = new AtomicInteger();
+	final AtomicInteger maxUploading = new AtomicInteger();
+	final AtomicInteger querying = new AtomicInteger();
+	final AtomicInteger maxQuerying = new AtomicInteger();
+	volatile String lastUpload;
+	/**
+	 * data of the uploaded data points in the order they arrived
+	 */
+	final List<String> uploadedData = new CopyOnWriteArrayList<String>();
+	/**
+	 * page size asked for by each data point query, -1 if none was
+	 */
+	final List<Integer> requestedSizes = new CopyOnWriteArrayList<Integer>();
+	/**
+	 * path under /ws/DataStream of each stream listing, empty for all streams
+	 */
+	final List<String> streamPaths = new CopyOnWriteArrayList<String>();
+
+	public StubServer(int points) throws IOException {
+		this.points = points;
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/ws/DataPoint", this);
+		server.createContext("/ws/DataStream", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleStreams(exchange);
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public DataStreamService service() {
+		DataStreamService service = DataStreamService.getServiceForHost("localhost", "user", "password");
+		service.setSecureScheme(false);
+		service.setPort(server.getAddress().getPort());
+		return service;
+	}
+
+	/**
+	 * change the number of data points, to simulate new ones arriving
+	 */
+	public void setPoints(int points) {
+		this.points = points;
+	}
+
+	/**
+	 * change the number of streams listed by /ws/DataStream
+	 */
+	public void setStreams(int streams) {
+		this.streams = streams;
+	}
+
+	/**
+	 * return at most this many data points per page whatever size was asked for
+	 */
+	public void setMaxPageSize(int maxPageSize) {
+		this.maxPageSize = maxPageSize;
+	}
+
+	/**
+	 * answer data point requests from..from+count-1, counting from 1, with the status
+	 */
+	public void fail(int from, int count, int status) {
+		this.failFrom = from;
+		this.failTo = from + count;
+		this.failStatus = status;
+	}
+
+	/**
+	 * hold uploads until releaseUploads(), to simulate a slow server
+	 */
+	public void holdUploads() {
+		this.uploadGate = new CountDownLatch(1);
+	}
+
+	/**
+	 * answer the held uploads and the ones after
+	 */
+	public void releaseUploads() {
+		CountDownLatch gate = uploadGate;
+		uploadGate = null;
+		if (gate != null) {
+			gate.countDown();
+		}
+	}
+
+	/**
+	 * take this long to answer each data point query, to simulate a slow server
+	 */
+	public void setPageDelay(long ms) {
+		this.pageDelay = ms;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		int request = requests.incrementAndGet();
+		if (request >= failFrom && request < failTo) {
+			// read what was posted so the connection can be used again
+			InputStream in = exchange.getRequestBody();
+			while (in.read() != -1) {
+			}
+			exchange.sendResponseHeaders(failStatus, -1);
+			exchange.close();
+			return;
+		}
+		if ("POST".equals(exchange.getRequestMethod())) {
+			handleUpload(exchange);
+			return;
+		}
+		int now = querying.incrementAndGet();
+		try {
+			int max;
+			while (now > (max = maxQuerying.get()) && !maxQuerying.compareAndSet(max, now)) {
+			}
+			if (pageDelay > 0) {
+				Thread.sleep(pageDelay);
+			}
+			handleQuery(exchange);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			querying.decrementAndGet();
+		}
+	}
+
+	private void handleQuery(HttpExchange exchange) throws IOException {
+		Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+		String streamId = exchange.getRequestURI().getPath().substring("/ws/DataPoint/".length());
+		long startTime = Long.parseLong(params.get("startTime"));
+		long endTime = Long.parseLong(params.get("endTime"));
+		requestedSizes.add(params.containsKey("size") ? Integer.parseInt(params.get("size")) : -1);
+		int size = Math.min(maxPageSize, params.containsKey("size") ? Integer.parseInt(params.get("size")) : 1000);
+		int from = params.containsKey("pageCursor") ? Integer.parseInt(params.get("pageCursor"))
+				: (int) Math.max(0, (startTime + STEP - 1) / STEP);
+		int last = endTime < 0 ? points : (int) Math.min(points, (endTime + STEP - 1) / STEP);
+		int to = Math.min(last, from + size);
+
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		sb.append("<result resultSize=\"").append(Math.max(0, to - from)).append("\" requestedSize=\"")
+				.append(size).append("\">");
+		for (int i = from; i < to; i++) {
+			sb.append("<DataPoint><id>00000000-0000-0000-0000-").append(String.format("%012d", i))
+					.append("</id><cstId>2</cstId><streamId>").append(streamId).append("</streamId><timestamp>")
+					.append(i * STEP).append("</timestamp><serverTimestamp>").append(i * STEP)
+					.append("</serverTimestamp><data>").append(i).append("</data><description/><quality>0</quality>")
+					.append("</DataPoint>");
+		}
+		if (to < last) {
+			sb.append("<pageCursor>").append(to).append("</pageCursor>");
+		}
+		sb.append("</result>");
+		send(exchange, sb.toString());
+	}
+
+	private void handleStreams(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+		String path = exchange.getRequestURI().getPath().substring("/ws/DataStream".length());
+		String prefix = path.startsWith("/") ? path.substring(1) : path;
+		streamPaths.add(prefix);
+		int size = params.containsKey("size") ? Integer.parseInt(params.get("size")) : 1000;
+		int from = params.containsKey("pageCursor") ? Integer.parseInt(params.get("pageCursor")) : 0;
+		String etag = "\"" + streams + "-" + from + "-" + size + "\"";
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			notModified.incrementAndGet();
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		exchange.getResponseHeaders().set("ETag", etag);
+
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><result>");
+		int matched = 0;
+		int i = from;
+		for (; i < streams && matched < size; i++) {
+			String streamId = "device" + i + "/temp";
+			if (prefix.length() > 0 && !streamId.equals(prefix) && !streamId.startsWith(prefix + "/")) {
+				continue;
+			}
+			matched++;
+			sb.append("<DataStream><cstId>2</cstId><streamId>").append(streamId)
+					.append("</streamId><dataType>INTEGER</dataType><units>C</units><description>device ")
+					.append(i).append("</description><currentValue><id>1</id><data>0</data></currentValue>")
+					.append("</DataStream>");
+		}
+		if (i < streams) {
+			sb.append("<pageCursor>").append(i).append("</pageCursor>");
+		}
+		sb.append("</result>");
+		send(exchange, sb.toString());
+	}
+
+	private void handleUpload(HttpExchange exchange) throws IOException {
+		int now = uploading.incrementAndGet();
+		try {
+			int max;
+			while (now > (max = maxUploading.get()) && !maxUploading.compareAndSet(max, now)) {
+			}
+			InputStream raw = exchange.getRequestBody();
+			InputStream in = raw;
+			if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				in = new GZIPInputStream(in);
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			// gzip stops at its trailer, read to the end so the connection can be used again
+			while (raw.read(buffer) != -1) {
+			}
+			String xml = body.toString("UTF-8");
+			CountDownLatch gate = uploadGate;
+			if (gate != null) {
+				gate.await();
+			}
+			int points = 0;
+			for (int i = xml.indexOf("<DataPoint>"); i >= 0; i = xml.indexOf("<DataPoint>", i + 1)) {
+				points++;
+				int data = xml.indexOf("<data>", i) + "<data>".length();
+				uploadedData.add(xml.substring(data, xml.indexOf("</data>", data)));
+			}
+			lastUpload = xml;
+			uploads.incrementAndGet();
+			uploaded.addAndGet(points);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			// done before answering, the client may send the next one right away
+			uploading.decrementAndGet();
+		}
+		exchange.sendResponseHeaders(201, -1);
+		exchange.close();
+	}
+
+	private void send(HttpExchange exchange, String xml) throws IOException {
+		byte[] body = xml.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept != null && accept.contains("gzip")) {
+			compressed.incrementAndGet();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+			out.write(body);
+			out.close();
+		} else {
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+	private static Map<String, String> params(String query) {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				int eq = param.indexOf('=');
+				params.put(param.substring(0, eq), param.substring(eq + 1));
+			}
+		}
+		return params;
+	}
+}
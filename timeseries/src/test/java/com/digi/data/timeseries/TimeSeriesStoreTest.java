@@ -0,0 +1,169 @@
+package com.digi.data.timeseries;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeSeriesStoreTest {
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+	private static final long WEEK = TimeUnit.DAYS.toMillis(7);
+
+	@Test
+	public void testEncoding() {
+		Random random = new Random(42);
+		int n = 5000;
+		long[] timestamps = new long[n];
+		double[] values = new double[n];
+		long t = -1000;
+		for (int i = 0; i < n; i++) {
+			// every size of delta of delta, repeats and jumps
+			switch (i % 7) {
+			case 0:
+				t += 1000;
+				break;
+			case 1:
+				t += random.nextInt(100);
+				break;
+			case 2:
+				t += random.nextInt(5000);
+				break;
+			case 3:
+				t += (long) random.nextInt(Integer.MAX_VALUE) * 4;
+				break;
+			default:
+				t += MINUTE;
+			}
+			timestamps[i] = t;
+			switch (i % 5) {
+			case 0:
+				values[i] = random.nextGaussian() * 1e6;
+				break;
+			case 1:
+				values[i] = values[i - 1];
+				break;
+			case 2:
+				values[i] = i % 10 == 2 ? Double.NaN : -random.nextInt(100);
+				break;
+			default:
+				values[i] = values[i - 1] + 0.5;
+			}
+		}
+		CompressedBlock block = new CompressedBlock(0);
+		for (int i = 0; i < n; i++) {
+			block.append(timestamps[i], values[i]);
+		}
+		CompressedBlock.Decoder decoder = block.view();
+		for (int i = 0; i < n; i++) {
+			Assert.assertTrue(decoder.next());
+			Assert.assertEquals(timestamps[i], decoder.timestamp());
+			Assert.assertEquals(Double.doubleToLongBits(values[i]), Double.doubleToLongBits(decoder.value()));
+		}
+		Assert.assertFalse(decoder.next());
+	}
+
+	@Test
+	public void testCompression() {
+		TimeSeriesStore store = new TimeSeriesStore();
+		long points = 0;
+		for (long t = 0; t < 4 * WEEK; t += MINUTE) {
+			// a reading that changes every few minutes
+			store.add("device1/temp", t, 20 + (t / (7 * MINUTE)) % 10 * 0.5);
+			points++;
+		}
+		Assert.assertEquals(points, store.size());
+		// a few bits per data point instead of 16 bytes
+		Assert.assertTrue(store.getBytes() + " bytes", store.getBytes() < points);
+		DataPointBatch week = store.get("device1/temp", WEEK, 2 * WEEK);
+		Assert.assertEquals(WEEK / MINUTE, week.size());
+		Assert.assertEquals(WEEK, week.getTimestamp(0));
+		Assert.assertEquals(20 + (WEEK / (7 * MINUTE)) % 10 * 0.5, week.getValue(0), 0);
+	}
+
+	@Test
+	public void testRangeAndRollup() {
+		Random random = new Random(7);
+		TimeSeriesStore store = new TimeSeriesStore(TimeUnit.MINUTES.toMillis(20));
+		DataPointBatch all = new DataPointBatch();
+		long t = 0;
+		for (int i = 0; i < 20000; i++) {
+			t += 1 + random.nextInt(30000);
+			double value = random.nextGaussian() * 10;
+			store.add("a", t, value);
+			all.add(t, value);
+		}
+		long start = 3 * TimeUnit.HOURS.toMillis(1) + 12345;
+		long end = t - TimeUnit.HOURS.toMillis(5);
+		DataPointBatch range = store.get("a", start, end);
+		int j = 0;
+		for (int i = 0; i < all.size(); i++) {
+			if (all.getTimestamp(i) >= start && all.getTimestamp(i) < end) {
+				Assert.assertEquals(all.getTimestamp(i), range.getTimestamp(j));
+				Assert.assertEquals(all.getValue(i), range.getValue(j), 0);
+				j++;
+			}
+		}
+		Assert.assertEquals(j, range.size());
+
+		for (Interval interval : new Interval[] { Interval.Half, Interval.Hour, Interval.Day }) {
+			Rollup expected = new Rollup(interval, "America/Chicago");
+			expected.add(range);
+			Rollup actual = store.rollup("a", interval, "America/Chicago", start, end);
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+				for (Aggregate aggregate : new Aggregate[] { Aggregate.Count, Aggregate.Sum, Aggregate.Min,
+						Aggregate.Max, Aggregate.Average, Aggregate.Standarddev }) {
+					double e = expected.get(aggregate, i);
+					Assert.assertEquals(interval + " " + aggregate, e, actual.get(aggregate, i),
+							Math.abs(e) * 1e-9 + 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testOutOfOrder() {
+		TimeSeriesStore store = new TimeSeriesStore();
+		for (int i = 999; i >= 0; i--) {
+			store.add("a", i * MINUTE, i);
+		}
+		store.add("a", 500 * MINUTE, -1);
+		DataPointBatch batch = store.get("a", 0, Long.MAX_VALUE);
+		Assert.assertEquals(1001, batch.size());
+		for (int i = 0; i < 1001; i++) {
+			int expected = i <= 500 ? i : i - 1;
+			Assert.assertEquals(expected * MINUTE, batch.getTimestamp(i));
+		}
+		Assert.assertEquals(500, batch.getValue(500), 0);
+		Assert.assertEquals(-1, batch.getValue(501), 0);
+		Assert.assertArrayEquals(new long[] { 0, 999 * MINUTE }, store.getRange("a"));
+
+		store.evictBefore(TimeUnit.HOURS.toMillis(4));
+		batch = store.get("a", 0, Long.MAX_VALUE);
+		Assert.assertEquals(TimeUnit.HOURS.toMillis(4), batch.getTimestamp(0));
+		Assert.assertEquals(batch.size(), store.size("a"));
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		StubServer server = new StubServer(2500);
+		try {
+			DataStreamService service = server.service();
+			TimeSeriesStore store = new TimeSeriesStore();
+			Assert.assertEquals(2500, store.addAll(service.getStream("device1/temp", Integer.class).getAll()));
+			Assert.assertEquals(2500, store.size("device1/temp"));
+			DataPointBatch batch = store.get("device1/temp", 1000 * StubServer.STEP, 1100 * StubServer.STEP);
+			Assert.assertEquals(100, batch.size());
+			for (int i = 0; i < 100; i++) {
+				Assert.assertEquals(1000 + i, batch.getValue(i), 0);
+			}
+			Assert.assertEquals("[device1/temp]", store.getStreams().toString());
+			store.close();
+			Assert.assertEquals(0, store.size());
+		} finally {
+			server.stop();
+		}
+	}
+}
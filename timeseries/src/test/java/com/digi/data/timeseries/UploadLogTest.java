@@ -0,0 +1,253 @@
+package com.digi.data.timeseries;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadLogTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StubServer server;
+	private DataStreamService service;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer(0);
+		service = DataStreamService.getServiceForHost("localhost", "uploadlog", "password");
+		service.setSecureScheme(false);
+		service.setPort(server.service().getPort());
+		service.configure(new ConnectionSettings().retries(1, 1, 5, TimeUnit.MILLISECONDS));
+	}
+
+	@After
+	public void tearDown() {
+		service.close();
+		server.stop();
+	}
+
+	@Test
+	public void testDrain() throws Exception {
+		File dir = folder.newFolder("log");
+		UploadLog log = service.getUploadLog(dir).batchSize(100).open();
+		try {
+			for (int i = 0; i < 1200; i++) {
+				log.write("device1/temp", i * StubServer.STEP, i);
+			}
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			assertUploaded(0, 1200);
+			Assert.assertEquals(1200, log.getAppended());
+			Assert.assertEquals(1200, log.getUploaded());
+			Assert.assertEquals(1, segments(dir));
+		} finally {
+			log.close();
+		}
+
+		try {
+			log.write("device1/temp", 0, 1);
+			Assert.fail();
+		} catch (DataServiceException e) {
+		}
+	}
+
+	@Test
+	public void testStoreAndForward() throws Exception {
+		// link down
+		server.fail(1, 1000000, 503);
+		UploadLog log = service.getUploadLog(folder.newFolder("log")).open();
+		try {
+			long begin = System.nanoTime();
+			for (int i = 0; i < 300; i++) {
+				log.write("device1/temp", i * StubServer.STEP, i);
+			}
+			Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 1000);
+			Assert.assertFalse(log.awaitDrained(200, TimeUnit.MILLISECONDS));
+			Assert.assertTrue(server.requests.get() > 0);
+			Assert.assertTrue(server.uploadedData.isEmpty());
+
+			// and back up
+			server.fail(0, 0, 0);
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			assertUploaded(0, 300);
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void testUnauthorizedKept() throws Exception {
+		// expired credentials do not make the backlog invalid
+		server.fail(1, 1000000, 401);
+		UploadLog log = service.getUploadLog(folder.newFolder("log")).batchSize(10).open();
+		try {
+			for (int i = 0; i < 50; i++) {
+				log.write("device1/temp", i * StubServer.STEP, i);
+			}
+			long timeout = System.currentTimeMillis() + 10000;
+			while (server.requests.get() < 10 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(5);
+			}
+			Assert.assertFalse(log.awaitDrained(0, TimeUnit.MILLISECONDS));
+			Assert.assertEquals(0, log.getRejected());
+			Assert.assertTrue(server.uploadedData.isEmpty());
+
+			server.fail(0, 0, 0);
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			assertUploaded(0, 50);
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void testInvalidDropped() throws Exception {
+		server.fail(1, 1, 400);
+		UploadLog log = service.getUploadLog(folder.newFolder("log")).batchSize(10).open();
+		try {
+			for (int i = 0; i < 10; i++) {
+				log.write("device1/temp", i * StubServer.STEP, i);
+			}
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			// the first batch, however much of the log it covered
+			Assert.assertTrue(log.getRejected() > 0);
+			Assert.assertEquals(10, log.getRejected() + server.uploadedData.size());
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void testCloseWhileBackingOff() throws Exception {
+		// retrying is the drainers backoff, not the sleep of each upload
+		service.configure(new ConnectionSettings().retries(3, 1, 1, TimeUnit.HOURS));
+		server.fail(1, 1000000, 503);
+		UploadLog log = service.getUploadLog(folder.newFolder("log")).open();
+		try {
+			log.write("device1/temp", 0, 0);
+			long timeout = System.currentTimeMillis() + 10000;
+			while (server.requests.get() == 0 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals(1, server.requests.get());
+		} finally {
+			// wakes the drainer instead of waiting out the hour
+			long begin = System.nanoTime();
+			log.close();
+			Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 5000);
+		}
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		server.fail(1, 1000000, 503);
+		File dir = folder.newFolder("log");
+		UploadLog log = service.getUploadLog(dir).segmentBytes(1024).open();
+		try {
+			for (int i = 0; i < 200; i++) {
+				log.write("device1/temp", i * StubServer.STEP, i);
+			}
+		} finally {
+			log.close();
+		}
+		int segments = segments(dir);
+		Assert.assertTrue(segments > 5);
+
+		// a record torn by a crash ends the log
+		File last = new File(dir, String.format("%020d", segments - 1) + ".wal");
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		int end = 5;
+		raf.seek(end);
+		int length;
+		while ((length = raf.readInt()) != 0) {
+			end += 8 + length;
+			raf.seek(end);
+		}
+		raf.seek(end);
+		raf.writeInt(30);
+		raf.writeInt(12345);
+		raf.write(new byte[] { 1, 2, 3 });
+		raf.close();
+
+		server.fail(0, 0, 0);
+		log = service.getUploadLog(dir).segmentBytes(1024).open();
+		try {
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			assertUploaded(0, 200);
+			log.write("device1/temp", 200 * StubServer.STEP, 200);
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			assertUploaded(0, 201);
+			Assert.assertEquals(1, segments(dir));
+		} finally {
+			log.close();
+		}
+
+		// nothing is uploaded twice after a clean restart
+		log = service.getUploadLog(dir).segmentBytes(1024).open();
+		try {
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			Assert.assertEquals(201, server.uploadedData.size());
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void testOverflow() throws Exception {
+		server.fail(1, 1000000, 503);
+		UploadLog log = service.getUploadLog(folder.newFolder("reject")).segmentBytes(1024)
+				.maxBytes(2048, UploadLog.Overflow.REJECT).open();
+		int written = 0;
+		try {
+			try {
+				for (; written < 200; written++) {
+					log.write("device1/temp", written * StubServer.STEP, written);
+				}
+				Assert.fail();
+			} catch (DataServiceException e) {
+			}
+			Assert.assertTrue(written > 10 && written < 100);
+			Assert.assertEquals(2048, log.getBytes());
+		} finally {
+			log.close();
+		}
+
+		log = service.getUploadLog(folder.newFolder("drop")).segmentBytes(1024)
+				.maxBytes(2048, UploadLog.Overflow.DROP_OLDEST).open();
+		try {
+			for (int i = 0; i < 200; i++) {
+				log.write("device1/temp", i * StubServer.STEP, i);
+			}
+			Assert.assertTrue(log.getDroppedSegments() > 0);
+			server.fail(0, 0, 0);
+			Assert.assertTrue(log.awaitDrained(10, TimeUnit.SECONDS));
+			Assert.assertTrue(server.uploadedData.size() < 200);
+			Assert.assertEquals("199", server.uploadedData.get(server.uploadedData.size() - 1));
+		} finally {
+			log.close();
+		}
+	}
+
+	private void assertUploaded(int from, int to) {
+		Assert.assertEquals(to - from, server.uploadedData.size());
+		for (int i = from; i < to; i++) {
+			Assert.assertEquals(Integer.toString(i), server.uploadedData.get(i - from));
+		}
+	}
+
+	private static int segments(File dir) {
+		int segments = 0;
+		for (String name : dir.list()) {
+			if (name.endsWith(".wal")) {
+				segments++;
+			}
+		}
+		return segments;
+	}
+}